@@ -0,0 +1,758 @@
+package edu.mills.cs180a.pocketpoints;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import edu.mills.cs180a.pocketpoints.StudentManager.OnStudentsChangedListener;
+
+/**
+ * Asynchronous access to the students in the database, for use from the main thread. Every call
+ * returns immediately: the work is done by the {@link StudentManager} on a background thread, and
+ * the result is delivered to a {@link Callback} on the main thread.
+ *
+ * <p>
+ * Writes are made one at a time, in the order in which they were requested, by a single writer
+ * thread. Reads are made by a small pool of reader threads, so that they do not wait behind writes.
+ * A {@link Request} can be cancelled (for example, when the fragment that made it is hidden), in
+ * which case its callback is never called. A cancelled read is not made at all, if it has not yet
+ * started, but a cancelled write is always made, so that no change requested by the user is lost.
+ *
+ * <p>
+ * If a request fails with an exception (for example, because the disk is full or the database is
+ * corrupt), the exception is logged and the callback receives the request's failure result
+ * instead: {@code null}, {@code false}, {@code -1} or an empty list, as documented for each call.
+ *
+ * <p>
+ * {@link OnStudentsChangedListener}s registered with the {@code AsyncStudentManager} are notified
+ * on the main thread, so they are free to update the UI.
+ */
+public class AsyncStudentManager {
+    private static final String TAG = "AsyncStudentManager";
+
+    // The number of threads reading from the database at once.
+    private static final int NUM_READER_THREADS = 2;
+
+    private static AsyncStudentManager sAsyncStudentManager;
+
+    private final StudentManager mStudentManager;
+    private final ExecutorService mWriteExecutor;
+    private final ExecutorService mReadExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<OnStudentsChangedListener> mListeners =
+            new CopyOnWriteArrayList<OnStudentsChangedListener>();
+
+    /**
+     * Interface definition for the callback to be invoked on the main thread with the result of a
+     * {@link Request}.
+     *
+     * @param <T> the type of the result
+     */
+    public interface Callback<T> {
+        /**
+         * Called on the main thread with the result of the request, unless the request was
+         * cancelled.
+         *
+         * @param result the result of the request
+         */
+        public void onResult(T result);
+    }
+
+    /**
+     * A pending call to the {@code AsyncStudentManager}, which may be cancelled.
+     */
+    public static final class Request {
+        private volatile boolean mCancelled;
+        private RequestGroup mGroup; // Only accessed on the main thread.
+
+        private Request() {
+        }
+
+        /**
+         * Cancels this request, so that its callback is never called. A read that has not yet
+         * started is not made at all.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * Determines whether this request has been cancelled.
+         *
+         * @return {@code true} if this request has been cancelled; otherwise {@code false}
+         */
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * A group of the pending requests made by one component, such as a fragment, so that they can
+     * all be cancelled together. A request leaves its group once its callback has been called. A
+     * {@code RequestGroup} must only be used on the main thread.
+     */
+    public static final class RequestGroup {
+        private final Set<Request> mRequests = new HashSet<Request>();
+
+        /**
+         * Adds the given request to this group.
+         *
+         * @param request the request to add
+         * @return the request
+         */
+        public Request add(Request request) {
+            request.mGroup = this;
+            mRequests.add(request);
+            return request;
+        }
+
+        /**
+         * Cancels every pending request in this group.
+         */
+        public void cancelAll() {
+            for (Request request : mRequests) {
+                request.cancel();
+            }
+            mRequests.clear();
+        }
+    }
+
+    // A call to the StudentManager, made on a background thread.
+    private interface Operation<T> {
+        T run(StudentManager studentManager);
+    }
+
+    /**
+     * Gets the singleton instance of {@code AsyncStudentManager}, which uses the singleton
+     * {@link StudentManager}.
+     *
+     * @param context the context to use
+     * @return the singleton instance of {@code AsyncStudentManager}
+     */
+    public static synchronized AsyncStudentManager get(Context context) {
+        if (sAsyncStudentManager == null) {
+            sAsyncStudentManager = new AsyncStudentManager(StudentManager.get(context));
+        }
+        return sAsyncStudentManager;
+    }
+
+    /**
+     * Gets a new instance of {@code AsyncStudentManager} for testing purposes, which uses a new
+     * test instance of {@link StudentManager} (see {@link StudentManager#getTestInstance(Context)}).
+     * The instance must be shut down with {@link #shutdown(long)} when it is no longer needed.
+     *
+     * @param context the context to use
+     * @return a new instance of {@code AsyncStudentManager}
+     */
+    public static AsyncStudentManager getTestInstance(Context context) {
+        return new AsyncStudentManager(StudentManager.getTestInstance(context));
+    }
+
+    private AsyncStudentManager(StudentManager studentManager) {
+        mStudentManager = studentManager;
+        mWriteExecutor = Executors.newSingleThreadExecutor(new NamedThreadFactory("writer"));
+        mReadExecutor = Executors.newFixedThreadPool(NUM_READER_THREADS,
+                new NamedThreadFactory("reader"));
+        mStudentManager.registerOnStudentsChangedListener(new MainThreadRelay());
+    }
+
+    /**
+     * Gets the {@link StudentManager} that does the work for this {@code AsyncStudentManager}.
+     *
+     * @return the underlying {@code StudentManager}
+     */
+    public StudentManager getStudentManager() {
+        return mStudentManager;
+    }
+
+    /**
+     * Asynchronously gets the student with the given ID (see {@link StudentManager#getStudent}).
+     *
+     * @param id the ID of the student to get
+     * @param callback the callback to receive the student, or {@code null} if there is none
+     *        or it could not be read
+     * @return the pending request
+     */
+    public Request getStudent(final long id, Callback<Student> callback) {
+        return read(new Operation<Student>() {
+            @Override
+            public Student run(StudentManager studentManager) {
+                return studentManager.getStudent(id);
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Asynchronously gets an immutable snapshot of the student with the given ID (see
+     * {@link StudentManager#getStudentSnapshot}).
+     *
+     * @param id the ID of the student to get
+     * @param callback the callback to receive the snapshot, or {@code null} if there is no student
+     *        or it could not be read
+     * @return the pending request
+     */
+    public Request getStudentSnapshot(final long id, Callback<StudentSnapshot> callback) {
+        return read(new Operation<StudentSnapshot>() {
+            @Override
+            public StudentSnapshot run(StudentManager studentManager) {
+                return studentManager.getStudentSnapshot(id);
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Asynchronously gets a page of the students in a classroom, in alphabetical order (see
+     * {@link StudentManager#getStudentRowsAfter}).
+     *
+     * @param classId the ID of the classroom whose students to get
+     * @param projection the columns to load
+     * @param lastName the name of the last student on the previous page, or {@code null} to get
+     *        the first page
+     * @param lastId the ID of the last student on the previous page
+     * @param limit the maximum number of students to get
+     * @param callback the callback to receive the page of students (empty if it could not be read)
+     * @return the pending request
+     */
+    public Request getStudentRowsAfter(final long classId, final String[] projection,
+            final String lastName, final long lastId, final int limit,
+            Callback<List<StudentRow>> callback) {
+        return read(new Operation<List<StudentRow>>() {
+            @Override
+            public List<StudentRow> run(StudentManager studentManager) {
+                return studentManager.getStudentRowsAfter(classId, projection, lastName, lastId,
+                        limit);
+            }
+        }, Collections.<StudentRow>emptyList(), callback);
+    }
+
+    /**
+     * Asynchronously searches for students by name (see
+     * {@link StudentManager#searchStudentRows}).
+     *
+     * @param classId the ID of the classroom whose students to search
+     * @param projection the columns to read, which must include the ID and the name
+     * @param prefix the words with which the words of the students' names should start
+     * @param limit the maximum number of students to get
+     * @param callback the callback to receive the matching students (none if they could not be
+     *        read)
+     * @return the pending request
+     */
+    public Request searchStudentRows(final long classId, final String[] projection,
+            final String prefix, final int limit, Callback<List<StudentRow>> callback) {
+        return read(new Operation<List<StudentRow>>() {
+            @Override
+            public List<StudentRow> run(StudentManager studentManager) {
+                return studentManager.searchStudentRows(classId, projection, prefix, limit);
+            }
+        }, Collections.<StudentRow>emptyList(), callback);
+    }
+
+    /**
+     * Asynchronously gets the leaders of a classroom (see {@link StudentManager#getTopStudents}).
+     *
+     * @param classId the ID of the classroom whose leaders to get
+     * @param n the maximum number of students to get
+     * @param callback the callback to receive the leaders (none if they could not be read)
+     * @return the pending request
+     */
+    public Request getTopStudents(final long classId, final int n,
+            Callback<List<LeaderboardEntry>> callback) {
+        return read(new Operation<List<LeaderboardEntry>>() {
+            @Override
+            public List<LeaderboardEntry> run(StudentManager studentManager) {
+                return studentManager.getTopStudents(classId, n);
+            }
+        }, Collections.<LeaderboardEntry>emptyList(), callback);
+    }
+
+    /**
+     * Asynchronously gets the statistics of a classroom (see
+     * {@link StudentManager#getClassStats}).
+     *
+     * @param classId the ID of the classroom
+     * @param callback the callback to receive the statistics, or {@code null} if they could not be
+     *        read
+     * @return the pending request
+     */
+    public Request getClassStats(final long classId, Callback<ClassStats> callback) {
+        return read(new Operation<ClassStats>() {
+            @Override
+            public ClassStats run(StudentManager studentManager) {
+                return studentManager.getClassStats(classId);
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Asynchronously gets all of the classrooms (see {@link StudentManager#getClassrooms}).
+     *
+     * @param callback the callback to receive the classrooms (none if they could not be read)
+     * @return the pending request
+     */
+    public Request getClassrooms(Callback<List<Classroom>> callback) {
+        return read(new Operation<List<Classroom>>() {
+            @Override
+            public List<Classroom> run(StudentManager studentManager) {
+                return studentManager.getClassrooms();
+            }
+        }, Collections.<Classroom>emptyList(), callback);
+    }
+
+    /**
+     * Asynchronously adds a classroom with the given name (see
+     * {@link StudentManager#createClassroom}).
+     *
+     * @param name the name of the classroom (must be a non-empty string)
+     * @param callback the callback to receive the new classroom, or {@code null} if it could not
+     *        be added
+     * @return the pending request
+     */
+    public Request createClassroom(final String name, Callback<Classroom> callback) {
+        return write(new Operation<Classroom>() {
+            @Override
+            public Classroom run(StudentManager studentManager) {
+                return studentManager.createClassroom(name);
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Asynchronously adds the students in the given CSV roster file to the given classroom (see
+     * {@link StudentManager#importRoster}).
+     *
+     * @param rosterFile the roster file, encoded in UTF-8
+     * @param classId the ID of the classroom to which to add the students
+     * @param callback the callback to receive the outcome of the import, or {@code null} if the
+     *        file could not be read
+     * @return the pending request
+     */
+    public Request importRoster(final File rosterFile, final long classId,
+            Callback<RosterImporter.Result> callback) {
+        return write(new Operation<RosterImporter.Result>() {
+            @Override
+            public RosterImporter.Result run(StudentManager studentManager) {
+                Reader reader = null;
+                try {
+                    reader = new InputStreamReader(new FileInputStream(rosterFile), "UTF-8");
+                    return studentManager.importRoster(reader, classId);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to import the roster " + rosterFile, e);
+                    return null;
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (IOException e) {
+                            Log.w(TAG, "Unable to close the roster " + rosterFile, e);
+                        }
+                    }
+                }
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Asynchronously backs up the database and photos (see {@link BackupArchiver#backUp}). The
+     * backup is made by a reader thread, so writes only wait while the database is copied, and
+     * it is made even if the request is cancelled.
+     *
+     * @param archiver the archiver with which to back up
+     * @param callback the callback to receive the outcome of the backup, or {@code null} if it
+     *        could not be written
+     * @return the pending request
+     */
+    public Request backUp(final BackupArchiver archiver, Callback<BackupArchiver.Result> callback) {
+        return submit(mReadExecutor, false, new Operation<BackupArchiver.Result>() {
+            @Override
+            public BackupArchiver.Result run(StudentManager studentManager) {
+                try {
+                    return archiver.backUp();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to back up", e);
+                    return null;
+                }
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Asynchronously restores the database and photos from the given archive (see
+     * {@link BackupArchiver#restore}).
+     *
+     * @param archiver the archiver with which to restore
+     * @param archive the archive from which to restore
+     * @param callback the callback to receive whether the archive was restored
+     * @return the pending request
+     */
+    public Request restore(final BackupArchiver archiver, final File archive,
+            Callback<Boolean> callback) {
+        return write(new Operation<Boolean>() {
+            @Override
+            public Boolean run(StudentManager studentManager) {
+                try {
+                    archiver.restore(archive);
+                    return true;
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to restore " + archive, e);
+                    return false;
+                }
+            }
+        }, false, callback);
+    }
+
+    /**
+     * Asynchronously adds the given student to the database (see
+     * {@link StudentManager#createStudent}). The student's ID is set before the callback is called.
+     *
+     * @param student the student to add, which must not be changed until the callback is called
+     * @param callback the callback to receive whether the student was added
+     * @return the pending request
+     */
+    public Request createStudent(final Student student, Callback<Boolean> callback) {
+        return write(new Operation<Boolean>() {
+            @Override
+            public Boolean run(StudentManager studentManager) {
+                return studentManager.createStudent(student);
+            }
+        }, false, callback);
+    }
+
+    /**
+     * Asynchronously updates the given student in the database (see
+     * {@link StudentManager#updateStudent}).
+     *
+     * @param student the student to update, which must not be changed until the callback is called
+     * @param callback the callback to receive whether the student was updated
+     * @return the pending request
+     */
+    public Request updateStudent(final Student student, Callback<Boolean> callback) {
+        return write(new Operation<Boolean>() {
+            @Override
+            public Boolean run(StudentManager studentManager) {
+                return studentManager.updateStudent(student);
+            }
+        }, false, callback);
+    }
+
+    /**
+     * Asynchronously updates a student, unless it has changed since the given snapshot was read
+     * (see {@link StudentManager#compareAndSetStudent}).
+     *
+     * @param snapshot the updated snapshot of the student
+     * @param callback the callback to receive the snapshot of the updated student, or {@code null}
+     *        if the student was changed or deleted since the given snapshot was read
+     * @return the pending request
+     */
+    public Request compareAndSetStudent(final StudentSnapshot snapshot,
+            Callback<StudentSnapshot> callback) {
+        return write(new Operation<StudentSnapshot>() {
+            @Override
+            public StudentSnapshot run(StudentManager studentManager) {
+                return studentManager.compareAndSetStudent(snapshot);
+            }
+        }, null, callback);
+    }
+
+    /**
+     * Asynchronously adds stickers to the student with the given ID (see
+     * {@link StudentManager#addStickers}).
+     *
+     * @param id the ID of the student to whom to add stickers
+     * @param numStickers the number of stickers to add (must be nonnegative)
+     * @param callback the callback to receive the student's new number of stickers, or {@code -1}
+     * @return the pending request
+     */
+    public Request addStickers(final long id, final int numStickers, Callback<Integer> callback) {
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(StudentManager studentManager) {
+                return studentManager.addStickers(id, numStickers);
+            }
+        }, -1, callback);
+    }
+
+    /**
+     * Asynchronously removes stickers from the student with the given ID (see
+     * {@link StudentManager#removeStickers}).
+     *
+     * @param id the ID of the student from whom to remove stickers
+     * @param numStickers the number of stickers to remove (must be nonnegative)
+     * @param callback the callback to receive the student's new number of stickers, or {@code -1}
+     * @return the pending request
+     */
+    public Request removeStickers(final long id, final int numStickers,
+            Callback<Integer> callback) {
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(StudentManager studentManager) {
+                return studentManager.removeStickers(id, numStickers);
+            }
+        }, -1, callback);
+    }
+
+    /**
+     * Asynchronously queues stickers to be added to the student with the given ID (see
+     * {@link StudentManager#queueAddStickers}).
+     *
+     * @param id the ID of the student to whom to add stickers
+     * @param numStickers the number of stickers to add (must be nonnegative)
+     * @param callback the callback to receive the student's new number of stickers, or {@code -1}
+     * @return the pending request
+     */
+    public Request queueAddStickers(final long id, final int numStickers,
+            Callback<Integer> callback) {
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(StudentManager studentManager) {
+                return studentManager.queueAddStickers(id, numStickers);
+            }
+        }, -1, callback);
+    }
+
+    /**
+     * Asynchronously queues stickers to be removed from the student with the given ID (see
+     * {@link StudentManager#queueRemoveStickers}).
+     *
+     * @param id the ID of the student from whom to remove stickers
+     * @param numStickers the number of stickers to remove (must be nonnegative)
+     * @param callback the callback to receive the student's new number of stickers, or {@code -1}
+     * @return the pending request
+     */
+    public Request queueRemoveStickers(final long id, final int numStickers,
+            Callback<Integer> callback) {
+        return write(new Operation<Integer>() {
+            @Override
+            public Integer run(StudentManager studentManager) {
+                return studentManager.queueRemoveStickers(id, numStickers);
+            }
+        }, -1, callback);
+    }
+
+    /**
+     * Asynchronously writes the queued stickers to the database (see
+     * {@link StudentManager#flushStickers()}) once every write requested so far has been made, so
+     * that the stickers queued by those writes are written too. This should be called whenever the
+     * app may be about to be killed (for example, when the activity is paused); it never blocks
+     * the caller.
+     */
+    public void flushStickers() {
+        write(new Operation<Void>() {
+            @Override
+            public Void run(StudentManager studentManager) {
+                studentManager.flushStickers();
+                return null;
+            }
+        }, null, null);
+    }
+
+    /**
+     * Asynchronously removes all of the stickers from the student with the given ID (see
+     * {@link StudentManager#clearStickers}).
+     *
+     * @param id the ID of the student whose stickers to remove
+     * @param callback the callback to receive whether the stickers were removed
+     * @return the pending request
+     */
+    public Request clearStickers(final long id, Callback<Boolean> callback) {
+        return write(new Operation<Boolean>() {
+            @Override
+            public Boolean run(StudentManager studentManager) {
+                return studentManager.clearStickers(id);
+            }
+        }, false, callback);
+    }
+
+    /**
+     * Asynchronously deletes the student with the given ID from the database (see
+     * {@link StudentManager#deleteStudent}).
+     *
+     * @param id the ID of the student to delete
+     * @param callback the callback to receive whether the student was deleted
+     * @return the pending request
+     */
+    public Request deleteStudent(final long id, Callback<Boolean> callback) {
+        return write(new Operation<Boolean>() {
+            @Override
+            public Boolean run(StudentManager studentManager) {
+                return studentManager.deleteStudent(id);
+            }
+        }, false, callback);
+    }
+
+    /**
+     * Releases the memory held by the cache of students and by SQLite (see
+     * {@link StudentManager#releaseMemory()}) once every write requested so far has been made.
+     */
+    public void releaseMemory() {
+        write(new Operation<Void>() {
+            @Override
+            public Void run(StudentManager studentManager) {
+                studentManager.releaseMemory();
+                return null;
+            }
+        }, null, null);
+    }
+
+    /**
+     * Registers a listener to be notified, on the main thread, of every change made to the
+     * students in the database through the {@link StudentManager}.
+     *
+     * @param listener the listener to register
+     */
+    public void registerOnStudentsChangedListener(OnStudentsChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener registered with
+     * {@link #registerOnStudentsChangedListener(OnStudentsChangedListener)}. The listener is not
+     * notified of any more changes, even those made before it was unregistered.
+     *
+     * @param listener the listener to unregister
+     */
+    public void unregisterOnStudentsChangedListener(OnStudentsChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Stops the background threads, once every request made so far has been completed. Only test
+     * instances (see {@link #getTestInstance(Context)}) should be shut down.
+     *
+     * @param timeoutMillis the maximum time to wait for the requests to be completed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        mReadExecutor.shutdown();
+        mWriteExecutor.shutdown();
+        mReadExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        mWriteExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private <T> Request read(Operation<T> operation, T failureResult, Callback<T> callback) {
+        return submit(mReadExecutor, true, operation, failureResult, callback);
+    }
+
+    private <T> Request write(Operation<T> operation, T failureResult, Callback<T> callback) {
+        return submit(mWriteExecutor, false, operation, failureResult, callback);
+    }
+
+    // Runs the given operation on the given executor, and delivers its result, or the given failure
+    // result if it throws an exception, to the given callback on the main thread.
+    private <T> Request submit(ExecutorService executor, final boolean skipIfCancelled,
+            final Operation<T> operation, final T failureResult, final Callback<T> callback) {
+        final Request request = new Request();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (skipIfCancelled && request.isCancelled()) {
+                    return;
+                }
+                T operationResult;
+                try {
+                    operationResult = operation.run(mStudentManager);
+                } catch (RuntimeException e) {
+                    // Left uncaught, the exception would kill the app, and the callback would
+                    // never be called (leaving, say, a save button disabled for good).
+                    Log.e(TAG, "Unable to complete a request", e);
+                    operationResult = failureResult;
+                }
+                final T result = operationResult;
+                if (callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (request.mGroup != null) {
+                                request.mGroup.mRequests.remove(request);
+                            }
+                            if (!request.isCancelled()) {
+                                callback.onResult(result);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        return request;
+    }
+
+    // Passes on the changes published by the StudentManager (on whichever thread made them) to the
+    // listeners on the main thread, in the same order.
+    private class MainThreadRelay implements OnStudentsChangedListener {
+        @Override
+        public void onStudentInserted(final Student student) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnStudentsChangedListener listener : mListeners) {
+                        listener.onStudentInserted(student);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onStudentUpdated(final Student student, final int changedFields) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnStudentsChangedListener listener : mListeners) {
+                        listener.onStudentUpdated(student, changedFields);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onStudentDeleted(final long id) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnStudentsChangedListener listener : mListeners) {
+                        listener.onStudentDeleted(id);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onStudentsChanged() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (OnStudentsChangedListener listener : mListeners) {
+                        listener.onStudentsChanged();
+                    }
+                }
+            });
+        }
+    }
+
+    // Names the background threads, so that they can be told apart when debugging.
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, "AsyncStudentManager " + mName);
+        }
+    }
+}
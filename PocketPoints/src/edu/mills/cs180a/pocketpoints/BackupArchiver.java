@@ -0,0 +1,437 @@
+package edu.mills.cs180a.pocketpoints;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Backs up the database and the students' photos to a single zip archive, and restores them,
+ * possibly on another device.
+ *
+ * <p>
+ * Each archive holds a copy of the database, a manifest listing every photo with a hash of its
+ * contents, and the photos that changed since the previous backup. A photo that did not change is
+ * not copied again; the manifest instead names the earlier archive that holds it, so archives
+ * should be kept together in the backup directory. Photos whose size and modification time did
+ * not change are not even read.
+ *
+ * <p>
+ * Backing up and restoring both read and write files, so neither should be called on the main
+ * thread (see {@link AsyncStudentManager#backUp} and {@link AsyncStudentManager#restore}).
+ */
+public class BackupArchiver {
+    /**
+     * The name of the archive entry holding the database.
+     */
+    public static final String DATABASE_ENTRY = StudentSQLiteOpenHelper.DATABASE_NAME;
+
+    /**
+     * The name of the archive entry holding the manifest.
+     */
+    public static final String MANIFEST_ENTRY = "manifest.txt";
+
+    /**
+     * The prefix of the names of the archive entries holding photos.
+     */
+    public static final String PHOTO_ENTRY_PREFIX = "photos/";
+
+    private static final String ARCHIVE_PREFIX = "backup-";
+    private static final String ARCHIVE_SUFFIX = ".zip";
+    private static final String MANIFEST_HEADER = "pocketpoints-backup 1";
+    private static final String MANIFEST_SEPARATOR = "\t";
+    private static final String HASH_ALGORITHM = "SHA-1";
+    private static final String ENCODING = "UTF-8";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final StudentManager mStudentManager;
+    private final File mPhotoDirectory;
+    private final File mBackupDirectory;
+
+    /**
+     * The outcome of a backup.
+     */
+    public static final class Result {
+        private final File mArchive;
+        private final int mNumPhotos;
+        private final int mNumPhotosCopied;
+
+        private Result(File archive, int numPhotos, int numPhotosCopied) {
+            mArchive = archive;
+            mNumPhotos = numPhotos;
+            mNumPhotosCopied = numPhotosCopied;
+        }
+
+        /**
+         * Gets the archive that was written.
+         *
+         * @return the new archive
+         */
+        public File getArchive() {
+            return mArchive;
+        }
+
+        /**
+         * Gets the number of photos listed in the manifest of the archive.
+         *
+         * @return the number of photos backed up
+         */
+        public int getNumPhotos() {
+            return mNumPhotos;
+        }
+
+        /**
+         * Gets the number of photos copied into the archive, because they were new or had
+         * changed since the previous backup.
+         *
+         * @return the number of photos copied
+         */
+        public int getNumPhotosCopied() {
+            return mNumPhotosCopied;
+        }
+    }
+
+    // A photo listed in a manifest.
+    private static final class PhotoRecord {
+        final String mName;
+        final String mHash;
+        final long mSize;
+        final long mLastModified;
+        final String mArchiveName; // The name of the archive holding the photo.
+
+        PhotoRecord(String name, String hash, long size, long lastModified, String archiveName) {
+            mName = name;
+            mHash = hash;
+            mSize = size;
+            mLastModified = lastModified;
+            mArchiveName = archiveName;
+        }
+    }
+
+    /**
+     * Creates a {@code BackupArchiver} for the database of the given student manager.
+     *
+     * @param studentManager the student manager whose database to back up or restore
+     * @param photoDirectory the directory holding the students' photos on this device
+     * @param backupDirectory the directory holding the archives
+     */
+    public BackupArchiver(StudentManager studentManager, File photoDirectory,
+            File backupDirectory) {
+        mStudentManager = studentManager;
+        mPhotoDirectory = photoDirectory;
+        mBackupDirectory = backupDirectory;
+    }
+
+    /**
+     * Gets the most recent archive in the backup directory.
+     *
+     * @return the most recent archive, or {@code null} if there is none
+     */
+    public File getLatestArchive() {
+        File[] files = mBackupDirectory.listFiles();
+        File latest = null;
+        if (files != null) {
+            for (File file : files) {
+                // Archives are named by time, with the same number of digits, so sort by name.
+                String name = file.getName();
+                if (name.startsWith(ARCHIVE_PREFIX) && name.endsWith(ARCHIVE_SUFFIX)
+                        && (latest == null || name.compareTo(latest.getName()) > 0)) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Writes a new archive to the backup directory, holding the database and any photos that
+     * changed since the most recent archive. The archive only appears once it is complete.
+     *
+     * @return the outcome of the backup
+     * @throws IOException if the backup could not be written
+     */
+    public Result backUp() throws IOException {
+        if (!mBackupDirectory.isDirectory() && !mBackupDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mBackupDirectory);
+        }
+        Map<String, PhotoRecord> previousPhotos = new HashMap<String, PhotoRecord>();
+        File previousArchive = getLatestArchive();
+        if (previousArchive != null) {
+            ZipFile zip = new ZipFile(previousArchive);
+            try {
+                for (PhotoRecord photo : readManifest(zip)) {
+                    // A photo can only be referred to if the archive holding it still exists.
+                    if (new File(mBackupDirectory, photo.mArchiveName).isFile()) {
+                        previousPhotos.put(photo.mName, photo);
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+        }
+
+        File archive = newArchiveFile();
+        File partialArchive = new File(archive.getPath() + ".partial");
+        List<PhotoRecord> photos = new ArrayList<PhotoRecord>();
+        int numPhotosCopied = 0;
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(
+                new FileOutputStream(partialArchive)));
+        try {
+            // Copy the database to a file first, so that writes only wait for that copy.
+            File snapshot = File.createTempFile("snapshot", ".db", mBackupDirectory);
+            try {
+                mStudentManager.copyDatabaseTo(snapshot);
+                out.putNextEntry(new ZipEntry(DATABASE_ENTRY));
+                copy(new FileInputStream(snapshot), out, null);
+                out.closeEntry();
+            } finally {
+                snapshot.delete();
+            }
+
+            File[] files = mPhotoDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (!file.isFile()) {
+                        continue;
+                    }
+                    PhotoRecord previous = previousPhotos.get(file.getName());
+                    PhotoRecord photo = null;
+                    if (previous != null && previous.mSize == file.length()
+                            && previous.mLastModified == file.lastModified()) {
+                        photo = previous; // Assume it didn't change, without reading it.
+                    } else if (previous != null) {
+                        String hash = hash(file);
+                        if (hash.equals(previous.mHash)) {
+                            photo = new PhotoRecord(file.getName(), hash, file.length(),
+                                    file.lastModified(), previous.mArchiveName);
+                        }
+                    }
+                    if (photo == null) {
+                        MessageDigest digest = newDigest();
+                        out.putNextEntry(new ZipEntry(PHOTO_ENTRY_PREFIX + file.getName()));
+                        copy(new FileInputStream(file), out, digest);
+                        out.closeEntry();
+                        photo = new PhotoRecord(file.getName(), toHex(digest.digest()),
+                                file.length(), file.lastModified(), archive.getName());
+                        numPhotosCopied++;
+                    }
+                    photos.add(photo);
+                }
+            }
+
+            out.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+            writeManifest(photos, out);
+            out.closeEntry();
+        } catch (IOException e) {
+            out.close();
+            partialArchive.delete();
+            throw e;
+        }
+        out.close();
+        if (!partialArchive.renameTo(archive)) {
+            partialArchive.delete();
+            throw new IOException("Unable to create " + archive);
+        }
+        return new Result(archive, photos.size(), numPhotosCopied);
+    }
+
+    /**
+     * Restores the database and photos from the given archive, which must be in the backup
+     * directory with any earlier archives it refers to. Photos are restored to this device's photo
+     * directory (unless an identical photo is already there), and the students' photos are
+     * pointed at them. The database is only replaced once every photo has been restored.
+     *
+     * @param archive the archive from which to restore
+     * @throws IOException if the archive, or an archive it refers to, could not be read
+     */
+    public void restore(File archive) throws IOException {
+        Map<String, ZipFile> zips = new HashMap<String, ZipFile>();
+        File database = File.createTempFile("restore", ".db", mBackupDirectory);
+        try {
+            ZipFile zip = new ZipFile(archive);
+            zips.put(archive.getName(), zip);
+            List<PhotoRecord> photos = readManifest(zip);
+            ZipEntry databaseEntry = zip.getEntry(DATABASE_ENTRY);
+            if (databaseEntry == null) {
+                throw new IOException(archive + " holds no database");
+            }
+            copyToFile(zip.getInputStream(databaseEntry), database, null);
+
+            if (!mPhotoDirectory.isDirectory() && !mPhotoDirectory.mkdirs()) {
+                throw new IOException("Unable to create " + mPhotoDirectory);
+            }
+            for (PhotoRecord photo : photos) {
+                File file = new File(mPhotoDirectory, photo.mName);
+                if (file.isFile() && file.length() == photo.mSize
+                        && hash(file).equals(photo.mHash)) {
+                    continue; // Already here.
+                }
+                ZipFile photoZip = zips.get(photo.mArchiveName);
+                if (photoZip == null) {
+                    photoZip = new ZipFile(new File(archive.getParentFile(), photo.mArchiveName));
+                    zips.put(photo.mArchiveName, photoZip);
+                }
+                restorePhoto(photoZip, photo, file);
+            }
+
+            mStudentManager.restoreDatabase(database, mPhotoDirectory);
+        } finally {
+            database.delete();
+            for (ZipFile zip : zips.values()) {
+                zip.close();
+            }
+        }
+    }
+
+    private File newArchiveFile() {
+        long time = System.currentTimeMillis();
+        File archive;
+        do {
+            archive = new File(mBackupDirectory, ARCHIVE_PREFIX + time++ + ARCHIVE_SUFFIX);
+        } while (archive.exists());
+        return archive;
+    }
+
+    // Copies the given photo to the given file, checking that its contents are unchanged.
+    private static void restorePhoto(ZipFile zip, PhotoRecord photo, File file)
+            throws IOException {
+        ZipEntry entry = zip.getEntry(PHOTO_ENTRY_PREFIX + photo.mName);
+        if (entry == null) {
+            throw new IOException(zip.getName() + " does not hold " + photo.mName);
+        }
+        File partialFile = new File(file.getPath() + ".partial");
+        MessageDigest digest = newDigest();
+        copyToFile(zip.getInputStream(entry), partialFile, digest);
+        if (!toHex(digest.digest()).equals(photo.mHash)) {
+            partialFile.delete();
+            throw new IOException(photo.mName + " in " + zip.getName() + " is corrupt");
+        }
+        file.delete();
+        if (!partialFile.renameTo(file)) {
+            partialFile.delete();
+            throw new IOException("Unable to create " + file);
+        }
+    }
+
+    private static void writeManifest(List<PhotoRecord> photos, OutputStream out)
+            throws IOException {
+        Writer writer = new OutputStreamWriter(out, ENCODING);
+        writer.write(MANIFEST_HEADER + "\n");
+        for (PhotoRecord photo : photos) {
+            writer.write(photo.mHash + MANIFEST_SEPARATOR + photo.mSize + MANIFEST_SEPARATOR
+                    + photo.mLastModified + MANIFEST_SEPARATOR + photo.mArchiveName
+                    + MANIFEST_SEPARATOR + photo.mName + "\n");
+        }
+        writer.flush(); // Not closed, which would close the archive.
+    }
+
+    private static List<PhotoRecord> readManifest(ZipFile zip) throws IOException {
+        ZipEntry entry = zip.getEntry(MANIFEST_ENTRY);
+        if (entry == null) {
+            throw new IOException(zip.getName() + " holds no manifest");
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                zip.getInputStream(entry), ENCODING));
+        try {
+            if (!MANIFEST_HEADER.equals(reader.readLine())) {
+                throw new IOException(zip.getName() + " is not a backup");
+            }
+            List<PhotoRecord> photos = new ArrayList<PhotoRecord>();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                String[] fields = line.split(MANIFEST_SEPARATOR, 5);
+                // Names must not lead outside of the photo and backup directories.
+                if (fields.length != 5 || !isPlainFileName(fields[3])
+                        || !isPlainFileName(fields[4])) {
+                    throw new IOException("Invalid manifest in " + zip.getName() + ": " + line);
+                }
+                try {
+                    photos.add(new PhotoRecord(fields[4], fields[0], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), fields[3]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid manifest in " + zip.getName() + ": " + line);
+                }
+            }
+            return photos;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean isPlainFileName(String name) {
+        return !name.isEmpty() && !name.startsWith(".") && new File(name).getName().equals(name);
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        copy(new FileInputStream(file), null, digest);
+        return toHex(digest.digest());
+    }
+
+    // Copies the input to the output (if any), updating the digest (if any), and closes the input.
+    private static void copy(InputStream in, OutputStream out, MessageDigest digest)
+            throws IOException {
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int numBytes;
+            while ((numBytes = in.read(buffer)) != -1) {
+                if (out != null) {
+                    out.write(buffer, 0, numBytes);
+                }
+                if (digest != null) {
+                    digest.update(buffer, 0, numBytes);
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void copyToFile(InputStream in, File file, MessageDigest digest)
+            throws IOException {
+        OutputStream out;
+        try {
+            out = new FileOutputStream(file);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        try {
+            copy(in, out, digest);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // Every Java platform supports SHA-1.
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
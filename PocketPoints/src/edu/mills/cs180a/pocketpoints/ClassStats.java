@@ -0,0 +1,94 @@
+package edu.mills.cs180a.pocketpoints;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Statistics on the stickers of the students of a single classroom (see
+ * {@link StudentManager#getClassStats(long)}).
+ */
+public final class ClassStats {
+    private final int mNumStudents;
+    private final long mTotalStickers;
+    private final SortedMap<Integer, Integer> mHistogram;
+
+    /**
+     * Creates a {@code ClassStats} with the given values.
+     *
+     * @param numStudents the number of students in the classroom
+     * @param totalStickers the total number of stickers of the students
+     * @param histogram the number of students with each number of stickers, by number of stickers
+     */
+    public ClassStats(int numStudents, long totalStickers, SortedMap<Integer, Integer> histogram) {
+        mNumStudents = numStudents;
+        mTotalStickers = totalStickers;
+        mHistogram = Collections.unmodifiableSortedMap(histogram);
+    }
+
+    /**
+     * Gets the number of students in the classroom.
+     *
+     * @return the number of students
+     */
+    public int getNumStudents() {
+        return mNumStudents;
+    }
+
+    /**
+     * Gets the total number of stickers of the students in the classroom.
+     *
+     * @return the total number of stickers
+     */
+    public long getTotalStickers() {
+        return mTotalStickers;
+    }
+
+    /**
+     * Gets the mean number of stickers of the students in the classroom.
+     *
+     * @return the mean number of stickers, or 0 if there are no students
+     */
+    public double getMean() {
+        return mNumStudents == 0 ? 0 : (double) mTotalStickers / mNumStudents;
+    }
+
+    /**
+     * Gets the median number of stickers of the students in the classroom: the middle number of
+     * stickers, or the mean of the two middle numbers if there is an even number of students.
+     *
+     * @return the median number of stickers, or 0 if there are no students
+     */
+    public double getMedian() {
+        if (mNumStudents == 0) {
+            return 0;
+        }
+
+        // Find the numbers of stickers of the students at the middle positions (counting from 0).
+        int lowerPosition = (mNumStudents - 1) / 2;
+        int upperPosition = mNumStudents / 2;
+        int lower = -1;
+        int numStudentsBefore = 0;
+        for (Map.Entry<Integer, Integer> bucket : mHistogram.entrySet()) {
+            numStudentsBefore += bucket.getValue();
+            if (lower == -1 && numStudentsBefore > lowerPosition) {
+                lower = bucket.getKey();
+            }
+            if (numStudentsBefore > upperPosition) {
+                return (lower + bucket.getKey()) / 2.0;
+            }
+        }
+        return lower; // Only reached if the histogram does not add up to the number of students.
+    }
+
+    /**
+     * Gets the distribution of the stickers: for each number of stickers that any student in the
+     * classroom has, the number of students with that many stickers.
+     *
+     * @return the number of students with each number of stickers, in order of the number of
+     *         stickers
+     */
+    public SortedMap<Integer, Integer> getHistogram() {
+        return mHistogram;
+    }
+}
@@ -1,17 +1,25 @@
 package edu.mills.cs180a.pocketpoints;
 
+import java.util.List;
+
 import android.app.ListFragment;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
+import android.widget.SearchView;
 import android.widget.TextView;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Callback;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Request;
+import edu.mills.cs180a.pocketpoints.StudentManager.OnStudentsChangedListener;
 
 /**
  * A {@link ListFragment} that displays the current list of students in the PocketPoints app.
@@ -21,7 +29,9 @@ import android.widget.TextView;
  * <p>
  * Clicking on a student notifies a {@link OnStudentSelectedListener}. Clicking on the 'Edit
  * students' button allows the user to edit student information. Clicking on the 'Add Student'
- * button allows the user to add a new student to the database.
+ * button allows the user to add a new student to the database. Typing in the search box lists only
+ * the students whose names match what has been typed. The 'Leaderboard' option instead lists only
+ * the students with the most stickers, with their ranks.
  * 
  * @author chingmyu@gmail.com (Ching Yu)
  * @author renee.johnston@gmail.com (Renee Johnston)
@@ -31,8 +41,27 @@ public class ClasslistFragment extends BitmapListFragment {
     private static final String KEY_CURRENTLY_DISPLAYED =
             "edu.mills.cs180a.pocketpoints.ClasslistFragment.being_displayed";
 
+    // The time, in milliseconds, for which the user must stop typing before the list is searched.
+    private static final long SEARCH_DELAY_MILLIS = 250;
+
+    // The number of students listed on the leaderboard.
+    private static final int LEADERBOARD_SIZE = 10;
+
     private LayoutInflater mInflater;
     private ClasslistAdapter mAdapter;
+    private LeaderboardAdapter mLeaderboardAdapter;
+    private boolean mShowingLeaderboard;
+    private final Handler mSearchHandler = new Handler();
+    private String mSearchPrefix; // The prefix to search for once the user stops typing.
+    private final Runnable mSearch = new Runnable() {
+        @Override
+        public void run() {
+            if (mSearchPrefix != null) {
+                showLeaderboard(false); // Search the whole classroom.
+            }
+            mAdapter.setSearchPrefix(mSearchPrefix);
+        }
+    };
 
     /**
      * Interface definition for the callback to be invoked when a {@link Student} in the class list
@@ -44,16 +73,20 @@ public class ClasslistFragment extends BitmapListFragment {
         /**
          * Called when a student in the list is selected.
          *
-         * @param student the selected student
+         * @param studentId the ID of the selected student
          */
-        public void onStudentSelected(Student student);
+        public void onStudentSelected(long studentId);
     }
 
     @Override
     public void onHiddenChanged(boolean hidden) {
-        if (!hidden) {
-            mAdapter.clear();
-            mAdapter.addAll(StudentManager.get(getActivity()).getAllStudents());
+        // Only load students while they can be seen.
+        if (hidden) {
+            mAdapter.pauseLoading();
+        } else if (mShowingLeaderboard) {
+            mLeaderboardAdapter.loadIfStale();
+        } else {
+            mAdapter.resumeLoading();
         }
     }
 
@@ -66,6 +99,41 @@ public class ClasslistFragment extends BitmapListFragment {
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.classlist_options, menu);
+
+        // Search as the user types, but only once they pause, so that a search isn't made for
+        // every letter of a name.
+        SearchView searchView = (SearchView) menu.findItem(R.id.menu_item_search).getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextChange(String text) {
+                mSearchPrefix = text.trim().isEmpty() ? null : text;
+                mSearchHandler.removeCallbacks(mSearch);
+                mSearchHandler.postDelayed(mSearch, SEARCH_DELAY_MILLIS);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextSubmit(String text) {
+                mSearchHandler.removeCallbacks(mSearch);
+                mSearch.run();
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.menu_item_leaderboard).setChecked(mShowingLeaderboard);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.menu_item_leaderboard) {
+            showLeaderboard(!mShowingLeaderboard);
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
     }
 
     @Override
@@ -76,6 +144,10 @@ public class ClasslistFragment extends BitmapListFragment {
         // Set up the adapter.
         mAdapter = new ClasslistAdapter(getActivity());
         setListAdapter(mAdapter);
+        mAdapter.startObservingChanges(); // Keep the list up to date, even while hidden.
+        mLeaderboardAdapter = new LeaderboardAdapter(getActivity());
+        AsyncStudentManager.get(getActivity())
+                .registerOnStudentsChangedListener(mLeaderboardAdapter);
 
         // Determine if this fragment should be displayed.
         boolean currentlyDisplayed = true; // By default, this fragment should be displayed.
@@ -83,19 +155,99 @@ public class ClasslistFragment extends BitmapListFragment {
             currentlyDisplayed = savedInstanceState.getBoolean(KEY_CURRENTLY_DISPLAYED, true);
         }
 
-        // Hide the fragment, if necessary.
+        // Hide the fragment if necessary, or else start loading the students.
         if (!currentlyDisplayed) {
             getFragmentManager().beginTransaction().hide(this).commit();
+        } else {
+            mAdapter.resumeLoading();
         }
 
         return view;
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        // Load more students as the list is scrolled.
+        getListView().setOnScrollListener(mAdapter);
+    }
+
+    @Override
+    public void onDestroyView() {
+        mSearchHandler.removeCallbacks(mSearch);
+        mAdapter.pauseLoading();
+        mAdapter.stopObservingChanges();
+        mLeaderboardAdapter.cancelLoading();
+        AsyncStudentManager.get(getActivity())
+                .unregisterOnStudentsChangedListener(mLeaderboardAdapter);
+        super.onDestroyView();
+    }
+
+    /**
+     * Lists the students of the classroom with the given ID.
+     *
+     * @param classId the ID of the classroom whose students to list
+     */
+    public void setClassId(long classId) {
+        mAdapter.setClassId(classId);
+        mLeaderboardAdapter.setClassId(classId);
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         OnStudentSelectedListener listener = (OnStudentSelectedListener) getActivity();
-        Student selectedStudent = (Student) getListAdapter().getItem(position);
-        listener.onStudentSelected(selectedStudent);
+        StudentRow selectedStudent = mShowingLeaderboard
+                ? mLeaderboardAdapter.getItem(position).getStudent() : mAdapter.getItem(position);
+        listener.onStudentSelected(selectedStudent.getId());
+    }
+
+    // Lists the leaders of the classroom instead of all of its students, or the other way around.
+    private void showLeaderboard(boolean showLeaderboard) {
+        if (showLeaderboard == mShowingLeaderboard) {
+            return;
+        }
+        mShowingLeaderboard = showLeaderboard;
+        if (showLeaderboard) {
+            mAdapter.pauseLoading();
+            setListAdapter(mLeaderboardAdapter);
+            mLeaderboardAdapter.loadIfStale();
+        } else {
+            mLeaderboardAdapter.cancelLoading();
+            setListAdapter(mAdapter);
+            mAdapter.resumeLoading();
+        }
+        getActivity().invalidateOptionsMenu();
+    }
+
+    // Fills in the given row (inflating it if necessary) with the given student.
+    private View getRowView(View convertView, StudentRow student, String name) {
+        if (null == convertView) {
+            convertView = mInflater.inflate(R.layout.fragment_classlist_row, null);
+        }
+
+        // Populate the fields with the student data.
+        ImageView studentImageView = (ImageView) convertView
+                .findViewById(R.id.rowStudentPicture);
+        String studentImgPath = student.getImgName();
+        if (studentImgPath == null) {
+            studentImageView.setImageBitmap(mDefaultProfileImg);
+        } else {
+            loadBitmap(studentImgPath, studentImageView);
+        }
+
+        // Set the name of the student in the row.
+        TextView nameTextView = (TextView) convertView.findViewById(R.id.rowStudentName);
+        nameTextView.setText(name);
+
+        // Set the sticker count of the student in the row.
+        TextView stickerCountTextView = (TextView) convertView
+                .findViewById(R.id.rowStickerCount);
+        int numStickers = student.getNumStickers();
+        stickerCountTextView.setText(numStickers == StudentRow.UNKNOWN_NUM_STICKERS
+                ? "" : String.valueOf(numStickers));
+
+        return convertView;
     }
 
     @Override
@@ -107,42 +259,101 @@ public class ClasslistFragment extends BitmapListFragment {
         savedInstanceState.putBoolean(KEY_CURRENTLY_DISPLAYED, currentlyDisplayed);
     }
 
-    private class ClasslistAdapter extends ArrayAdapter<Student> {
+    private class ClasslistAdapter extends PagedStudentAdapter {
+        // Shown in place of the students whose page is being loaded again.
+        private final StudentRow mPlaceholderRow = new StudentRow(Student.INVALID_ID, "", null,
+                StudentRow.UNKNOWN_NUM_STICKERS);
+
         private ClasslistAdapter(Context context) {
-            super(context, R.layout.fragment_classlist_row, R.id.rowStudentName, StudentManager
-                    .get(context)
-                    .getAllStudents());
+            super(context, StudentManager.PROJECTION_NAME_IMAGE_AND_STICKERS,
+                    StudentManager.get(context).getCurrentClassId());
         }
 
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
-            if (null == convertView) {
-                convertView = mInflater.inflate(R.layout.fragment_classlist_row, null);
+            StudentRow student = getItem(position);
+            if (student == null) {
+                student = mPlaceholderRow;
             }
+            return getRowView(convertView, student, student.getName());
+        }
+    }
+
+    // Lists the students of a classroom with the most stickers, with their ranks. The leaders are
+    // loaded again whenever they are shown after a change.
+    private class LeaderboardAdapter extends ArrayAdapter<LeaderboardEntry>
+            implements OnStudentsChangedListener {
+        private long mClassId;
+        private boolean mStale = true;
+        private Request mRequest; // The request for the leaders being loaded, if any.
+
+        private LeaderboardAdapter(Context context) {
+            super(context, R.layout.fragment_classlist_row, R.id.rowStudentName);
+            mClassId = StudentManager.get(context).getCurrentClassId();
+        }
+
+        private void setClassId(long classId) {
+            mClassId = classId;
+            onStudentsChanged();
+        }
 
-            // Get the student for the current row.
-            Student student = getItem(position);
-
-            // Populate the fields with the student data.
-            ImageView studentImageView = (ImageView) convertView
-                    .findViewById(R.id.rowStudentPicture);
-            String studentImgPath = student.getImgName();
-            if (studentImgPath == null) {
-                studentImageView.setImageBitmap(mDefaultProfileImg);
-            } else {
-                loadBitmap(studentImgPath, studentImageView);
+        // Loads the leaders, if they may have changed since they were last loaded.
+        private void loadIfStale() {
+            if (!mStale) {
+                return;
             }
+            cancelLoading();
+            mStale = false;
+            mRequest = AsyncStudentManager.get(getContext()).getTopStudents(mClassId,
+                    LEADERBOARD_SIZE, new Callback<List<LeaderboardEntry>>() {
+                        @Override
+                        public void onResult(List<LeaderboardEntry> leaders) {
+                            mRequest = null;
+                            setNotifyOnChange(false);
+                            clear();
+                            addAll(leaders);
+                            notifyDataSetChanged();
+                        }
+                    });
+        }
 
-            // Set the name of the student in the row.
-            TextView nameTextView = (TextView) convertView.findViewById(R.id.rowStudentName);
-            nameTextView.setText(student.getName());
+        private void cancelLoading() {
+            if (mRequest != null) {
+                mRequest.cancel();
+                mRequest = null;
+                mStale = true;
+            }
+        }
+
+        @Override
+        public void onStudentInserted(Student student) {
+            onStudentsChanged();
+        }
+
+        @Override
+        public void onStudentUpdated(Student student, int changedFields) {
+            onStudentsChanged();
+        }
 
-            // Set the sticker count of the student in the row.
-            TextView stickerCountTextView = (TextView) convertView
-                    .findViewById(R.id.rowStickerCount);
-            stickerCountTextView.setText(String.valueOf(student.getNumStickers()));
+        @Override
+        public void onStudentDeleted(long id) {
+            onStudentsChanged();
+        }
+
+        @Override
+        public void onStudentsChanged() {
+            mStale = true;
+            if (mShowingLeaderboard && isVisible()) {
+                loadIfStale();
+            }
+        }
 
-            return convertView;
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            LeaderboardEntry leader = getItem(position);
+            return getRowView(convertView, leader.getStudent(), getString(
+                    R.string.leaderboard_row_name, leader.getRank(),
+                    leader.getStudent().getName()));
         }
     }
 }
@@ -0,0 +1,39 @@
+package edu.mills.cs180a.pocketpoints;
+
+/**
+ * Model class representing a single classroom, to which any number of students belong (see
+ * {@link Student#getClassId()}).
+ */
+public final class Classroom {
+    private final long mId;
+    private final String mName;
+
+    /**
+     * Creates a {@code Classroom} with the given values.
+     *
+     * @param id the unique ID of the classroom
+     * @param name the name of the classroom
+     */
+    public Classroom(long id, String name) {
+        mId = id;
+        mName = name;
+    }
+
+    /**
+     * Gets the unique ID of the classroom.
+     *
+     * @return the unique ID of the classroom
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Gets the name of the classroom.
+     *
+     * @return the name of the classroom
+     */
+    public String getName() {
+        return mName;
+    }
+}
@@ -1,17 +1,20 @@
 package edu.mills.cs180a.pocketpoints;
 
 import android.app.ListFragment;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
+import android.content.Loader;
+import android.database.Cursor;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
 
 /**
  * A {@link ListFragment} that displays a list of students available for editing. Clicking on a
@@ -22,12 +25,20 @@ import android.widget.TextView;
  * @author renee.johnston@gmail.com (Renee Johnston)
  * @author ajkwak@users.noreply.github.com (AJ Parmidge)
  */
-public class EditClasslistFragment extends BitmapListFragment {
+public class EditClasslistFragment extends BitmapListFragment
+        implements LoaderCallbacks<StudentCursor> {
     private static final String KEY_CURRENTLY_DISPLAYED =
             "edu.mills.cs180a.pocketpoints.EditClasslistFragment.being_displayed";
+    private static final String ARG_CLASS_ID =
+            "edu.mills.cs180a.pocketpoints.EditClasslistFragment.class_id";
+
+    // The ID of the loader of the students.
+    private static final int STUDENTS_LOADER = 0;
 
     private LayoutInflater mInflater;
     private EditClasslistAdapter mAdapter;
+    private long mClassId;
+    private boolean mLoadingPaused;
 
     /**
      * Interface definition for the callback to be invoked when a {@link Student} in the edit class
@@ -39,16 +50,18 @@ public class EditClasslistFragment extends BitmapListFragment {
         /**
          * Called when a student in the list is selected.
          *
-         * @param selectedStudent the selected student
+         * @param selectedStudentId the ID of the selected student
          */
-        public void onEditStudentSelected(Student selectedStudent);
+        public void onEditStudentSelected(long selectedStudentId);
     }
 
     @Override
     public void onHiddenChanged(boolean hidden) {
-        if (!hidden) {
-            mAdapter.clear();
-            mAdapter.addAll(StudentManager.get(getActivity()).getAllStudents());
+        // Only load students while they can be seen.
+        mLoadingPaused = hidden;
+        StudentCursorLoader loader = getStudentsLoader();
+        if (loader != null) {
+            loader.setPaused(hidden);
         }
     }
 
@@ -71,6 +84,7 @@ public class EditClasslistFragment extends BitmapListFragment {
         // Set up the ListView adapter.
         mAdapter = new EditClasslistAdapter(getActivity());
         setListAdapter(mAdapter);
+        mClassId = StudentManager.get(getActivity()).getCurrentClassId();
 
         // Determine if this fragment should be displayed.
         boolean currentlyDisplayed = false; // By default, this fragment should be hidden.
@@ -78,19 +92,69 @@ public class EditClasslistFragment extends BitmapListFragment {
             currentlyDisplayed = savedInstanceState.getBoolean(KEY_CURRENTLY_DISPLAYED, false);
         }
 
-        // Hide the fragment, if necessary.
+        // Hide the fragment if necessary; the students are only loaded while it is displayed.
         if (!currentlyDisplayed) {
             getFragmentManager().beginTransaction().hide(this).commit();
         }
+        mLoadingPaused = !currentlyDisplayed;
 
         return view;
     }
 
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+
+        // Start loading the students, or, if the activity was recreated, reconnect to the loader
+        // that already loaded them.
+        getLoaderManager().initLoader(STUDENTS_LOADER, classIdArgs(mClassId), this);
+        getStudentsLoader().setPaused(mLoadingPaused);
+    }
+
+    /**
+     * Lists the students of the classroom with the given ID.
+     *
+     * @param classId the ID of the classroom whose students to list
+     */
+    public void setClassId(long classId) {
+        if (classId == mClassId) {
+            return;
+        }
+        mClassId = classId;
+        getLoaderManager().restartLoader(STUDENTS_LOADER, classIdArgs(classId), this);
+    }
+
+    @Override
+    public Loader<StudentCursor> onCreateLoader(int id, Bundle args) {
+        return new StudentCursorLoader(getActivity(), args.getLong(ARG_CLASS_ID),
+                StudentManager.PROJECTION_NAME_AND_IMAGE, mLoadingPaused);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<StudentCursor> loader, StudentCursor studentCursor) {
+        mAdapter.swapCursor(studentCursor); // The loader closes the old cursor.
+    }
+
+    @Override
+    public void onLoaderReset(Loader<StudentCursor> loader) {
+        mAdapter.swapCursor(null);
+    }
+
+    private StudentCursorLoader getStudentsLoader() {
+        Loader<StudentCursor> loader = getLoaderManager().getLoader(STUDENTS_LOADER);
+        return (StudentCursorLoader) loader;
+    }
+
+    private static Bundle classIdArgs(long classId) {
+        Bundle args = new Bundle();
+        args.putLong(ARG_CLASS_ID, classId);
+        return args;
+    }
+
     @Override
     public void onListItemClick(ListView l, View v, int position, long id) {
         OnEditStudentSelectedListener listener = (OnEditStudentSelectedListener) getActivity();
-        Student selectedStudent = (Student) getListAdapter().getItem(position);
-        listener.onEditStudentSelected(selectedStudent);
+        listener.onEditStudentSelected(id); // The ID of each row is the ID of its student.
     }
 
     @Override
@@ -102,25 +166,21 @@ public class EditClasslistFragment extends BitmapListFragment {
         savedInstanceState.putBoolean(KEY_CURRENTLY_DISPLAYED, currentlyDisplayed);
     }
 
-    private class EditClasslistAdapter extends ArrayAdapter<Student> {
+    private class EditClasslistAdapter extends StudentCursorAdapter {
         private EditClasslistAdapter(Context context) {
-            super(context, R.layout.fragment_edit_classlist_row, R.id.rowStudentName,
-                    StudentManager.get(context).getAllStudents());
+            super(context);
         }
 
         @Override
-        public View getView(int position, View convertView, ViewGroup parent) {
-            if (null == convertView) {
-                convertView = mInflater.inflate(R.layout.fragment_edit_classlist_row, null);
-            }
-
-            // Get the student for the current row.
-            Student student = getItem(position);
+        public View newView(Context context, Cursor cursor, ViewGroup parent) {
+            return mInflater.inflate(R.layout.fragment_edit_classlist_row, parent, false);
+        }
 
+        @Override
+        void bindView(View view, StudentCursor studentCursor) {
             // Set the picture of the student in the row.
-            ImageView studentImageView = (ImageView) convertView
-                    .findViewById(R.id.rowStudentPicture);
-            String studentImgPath = student.getImgName();
+            ImageView studentImageView = (ImageView) view.findViewById(R.id.rowStudentPicture);
+            String studentImgPath = studentCursor.getImgName();
             if (studentImgPath == null) {
                 studentImageView.setImageBitmap(mDefaultProfileImg);
             } else {
@@ -128,10 +188,8 @@ public class EditClasslistFragment extends BitmapListFragment {
             }
 
             // Set the name of the student in the row.
-            TextView nameTextView = (TextView) convertView.findViewById(R.id.rowStudentName);
-            nameTextView.setText(student.getName());
-
-            return convertView;
+            TextView nameTextView = (TextView) view.findViewById(R.id.rowStudentName);
+            nameTextView.setText(studentCursor.getName());
         }
     }
 }
@@ -26,6 +26,8 @@ import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.TextView;
 import android.widget.Toast;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Callback;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.RequestGroup;
 
 /**
  * A {@link Fragment} that is displayed whenever the user wants to add a new student or edit a
@@ -42,6 +44,10 @@ import android.widget.Toast;
  * the database; otherwise, it will have no effect. Clicking on the Save button will either update a
  * previous database entry or add the student to the database.
  *
+ * <p>
+ * The database is read and written in the background (see {@link AsyncStudentManager}). Results
+ * that arrive after the fragment has been hidden are ignored, although the change is still made.
+ *
  * @author chingmyu@gmail.com (Ching Yu)
  * @author renee.johnston@gmail.com (Renee Johnston)
  * @author ajkwak@users.noreply.github.com (AJ Parmidge)
@@ -58,8 +64,10 @@ public class EditStudentFragment extends Fragment {
     private static final int REQUEST_TAKE_PHOTO = 1;
 
     private EditText mNameField;
-    private Student mStudent;
-    private StudentManager mStudentManager;
+    private StudentSnapshot mStudent; // Null while the student is being loaded.
+    private AsyncStudentManager mStudentManager;
+    private final RequestGroup mRequests = new RequestGroup();
+    private boolean mSaving;
     private ImageButton mImageButton;
     private Bitmap mDefaultProfileImg;
 
@@ -88,7 +96,7 @@ public class EditStudentFragment extends Fragment {
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mStudentManager = StudentManager.get(getActivity());
+        mStudentManager = AsyncStudentManager.get(getActivity());
         mDefaultProfileImg = BitmapFactory.decodeResource(getResources(),
                 R.drawable.ic_take_picture);
     }
@@ -155,16 +163,25 @@ public class EditStudentFragment extends Fragment {
     @Override
     public void onHiddenChanged(boolean hidden) {
         if (hidden) {
-            if (mNewProfilePhotoPath != null) {
+            mRequests.cancelAll(); // The results could no longer be seen.
+
+            if (mNewProfilePhotoPath != null && !mSaving) {
                 // Then need to delete the image file located at mNewProfilePath (it is not being
-                // used by the mStudent, and so should be removed from memory).
+                // used by the mStudent, and so should be removed from memory). While the student
+                // is being saved, the photo is kept, since the save still writes it.
                 deleteProfilePhoto(mNewProfilePhotoPath);
                 Log.d(TAG, mNewProfilePhotoPath + " has been deleted, since it is not being used");
-                mNewProfilePhotoPath = null;
             }
+            mNewProfilePhotoPath = null;
         }
     }
 
+    @Override
+    public void onDestroyView() {
+        mRequests.cancelAll();
+        super.onDestroyView();
+    }
+
     @Override
     public void onSaveInstanceState(Bundle savedInstanceState) {
         super.onSaveInstanceState(savedInstanceState);
@@ -200,26 +217,23 @@ public class EditStudentFragment extends Fragment {
         setStudent(studentId, getView());
     }
 
-    private void setStudent(long studentId, View fragmentView) {
-        TextView displayName = (TextView) fragmentView.findViewById(R.id.studentName);
-
-        // Get the student (if any) associated with the given ID.
+    private void setStudent(long studentId, final View fragmentView) {
+        // Forget the previous student (and any requests made for it).
+        mRequests.cancelAll();
         mStudent = null;
-        if (studentId != Student.INVALID_ID) {
-            mStudent = mStudentManager.getStudent(studentId);
-        }
+        mSaving = false;
 
-        // If this is a new student display fields with defaults.
-        if (mStudent == null) {
-            mStudent = new Student();
-            displayName.setText(DEFAULT_NAME);
-            mNameField.setText("");
-            displayProfilePhoto(null); // Displays the default image.
+        // Get the student (if any) associated with the given ID.
+        if (studentId == Student.INVALID_ID) {
+            displayStudent(null, fragmentView);
         } else {
-            String name = mStudent.getName();
-            displayName.setText(name);
-            mNameField.setText(name);
-            displayProfilePhoto(mStudent.getImgName());
+            mRequests.add(mStudentManager.getStudentSnapshot(studentId,
+                    new Callback<StudentSnapshot>() {
+                        @Override
+                        public void onResult(StudentSnapshot student) {
+                            displayStudent(student, fragmentView);
+                        }
+                    }));
         }
 
         // Add listeners.
@@ -234,10 +248,7 @@ public class EditStudentFragment extends Fragment {
         saveButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View arg0) {
-                if (saveCurrentStudent()) {
-                    OnEditStudentButtonClickedListener listener = (OnEditStudentButtonClickedListener) getActivity();
-                    listener.onEditStudentButtonClicked(R.id.studentSaveButton);
-                }
+                saveCurrentStudent();
             }
         });
 
@@ -245,7 +256,9 @@ public class EditStudentFragment extends Fragment {
         deleteButton.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View arg0) {
-                createDeleteStudentDialog().show();
+                if (mStudent != null) {
+                    createDeleteStudentDialog().show();
+                }
             }
         });
 
@@ -260,21 +273,54 @@ public class EditStudentFragment extends Fragment {
 
     }
 
-    private boolean deleteCurrentStudent() {
+    // Displays the given student, or the defaults for a new student if it is null.
+    private void displayStudent(StudentSnapshot student, View fragmentView) {
+        TextView displayName = (TextView) fragmentView.findViewById(R.id.studentName);
+
+        // If this is a new student display fields with defaults.
+        if (student == null) {
+            // New students are added to the classroom the user is working with.
+            mStudent = StudentSnapshot.forNewStudent(
+                    mStudentManager.getStudentManager().getCurrentClassId());
+            displayName.setText(DEFAULT_NAME);
+            mNameField.setText("");
+            displayProfilePhoto(null); // Displays the default image.
+        } else {
+            mStudent = student;
+            String name = mStudent.getName();
+            displayName.setText(name);
+            mNameField.setText(name);
+            displayProfilePhoto(mStudent.getImgName());
+        }
+    }
+
+    private void deleteCurrentStudent() {
         // Delete the student from the database, if necessary.
         if (mStudent.getId() != Student.INVALID_ID) {
-            boolean deleted = mStudentManager.deleteStudent(mStudent.getId());
-            if (deleted) {
-                Toast.makeText(getActivity(), R.string.delete_success_toast, Toast.LENGTH_SHORT)
-                        .show();
-            } else {
-                Toast.makeText(getActivity(), R.string.delete_failure_toast, Toast.LENGTH_SHORT)
-                        .show();
-            }
-            return deleted;
+            mRequests.add(mStudentManager.deleteStudent(mStudent.getId(),
+                    new Callback<Boolean>() {
+                        @Override
+                        public void onResult(Boolean deleted) {
+                            if (deleted) {
+                                Toast.makeText(getActivity(), R.string.delete_success_toast,
+                                        Toast.LENGTH_SHORT).show();
+                                notifyButtonClicked(R.id.studentDeleteButton);
+                            } else {
+                                Toast.makeText(getActivity(), R.string.delete_failure_toast,
+                                        Toast.LENGTH_SHORT).show();
+                            }
+                        }
+                    }));
+            return;
         }
         Toast.makeText(getActivity(), R.string.delete_success_toast, Toast.LENGTH_SHORT).show();
-        return true;
+        notifyButtonClicked(R.id.studentDeleteButton);
+    }
+
+    private void notifyButtonClicked(int buttonResId) {
+        OnEditStudentButtonClickedListener listener =
+                (OnEditStudentButtonClickedListener) getActivity();
+        listener.onEditStudentButtonClicked(buttonResId);
     }
 
     private AlertDialog createDeleteStudentDialog() {
@@ -283,10 +329,7 @@ public class EditStudentFragment extends Fragment {
         builder.setPositiveButton(R.string.yes_button, new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                if (deleteCurrentStudent()) {
-                    OnEditStudentButtonClickedListener listener = (OnEditStudentButtonClickedListener) getActivity();
-                    listener.onEditStudentButtonClicked(R.id.studentDeleteButton);
-                }
+                deleteCurrentStudent();
             }
         });
         builder.setNegativeButton(R.string.no_button, new DialogInterface.OnClickListener() {
@@ -298,43 +341,115 @@ public class EditStudentFragment extends Fragment {
         return builder.create();
     }
 
-    private boolean saveCurrentStudent() {
+    private void saveCurrentStudent() {
+        if (mStudent == null || mSaving) {
+            return; // The student is still being loaded or saved.
+        }
         String newName = mNameField.getText().toString();
         if (newName.isEmpty()) {
             // Can't save a student with an empty name.
             Toast.makeText(getActivity(), R.string.save_failure_empty_name_toast,
                     Toast.LENGTH_SHORT).show();
-            return false;
-        }
-        mStudent.setName(mNameField.getText().toString());
-
-        // Update the student's profile photo, if necessary.
-        if (mNewProfilePhotoPath != null) {
-            String currentProfilePhotoPath = mStudent.getImgName();
-            mStudent.setImgName(mNewProfilePhotoPath);
-            if (currentProfilePhotoPath != null) {
-                // Then need to delete the student's old profile photo from memory.
-                deleteProfilePhoto(currentProfilePhotoPath);
-                Log.d(TAG, "Deleted the old student profile photo at: " + currentProfilePhotoPath);
-            }
-            mNewProfilePhotoPath = null;
+            return;
         }
+        // The new profile photo is kept in mNewProfilePhotoPath until it has been saved.
+        final String newProfilePhotoPath = mNewProfilePhotoPath;
 
         // Try to save the student in the database.
-        boolean saved = false;
+        mSaving = true;
         if (mStudent.getId() == Student.INVALID_ID) {
-            saved = mStudentManager.createStudent(mStudent);
+            mRequests.add(mStudentManager.createStudent(
+                    withEdits(mStudent, newName, newProfilePhotoPath).toStudent(),
+                    new Callback<Boolean>() {
+                        @Override
+                        public void onResult(Boolean saved) {
+                            onSaveFinished(saved, newProfilePhotoPath);
+                        }
+                    }));
         } else {
-            saved = mStudentManager.updateStudent(mStudent);
+            saveEdits(newName, newProfilePhotoPath, true);
         }
+    }
+
+    // Saves the user's edits to the student being edited, unless the student has changed since it
+    // was read (for example, because stickers were added to it in the meantime). In that case,
+    // the edits are applied to the changed student instead, if retryOnConflict is true, so that
+    // saving them does not undo the other changes.
+    private void saveEdits(final String newName, final String newProfilePhotoPath,
+            final boolean retryOnConflict) {
+        final StudentSnapshot student = mStudent;
+        mRequests.add(mStudentManager.compareAndSetStudent(
+                withEdits(student, newName, newProfilePhotoPath),
+                new Callback<StudentSnapshot>() {
+                    @Override
+                    public void onResult(StudentSnapshot savedStudent) {
+                        if (savedStudent != null) {
+                            mStudent = savedStudent;
+                            String oldProfilePhotoPath = student.getImgName();
+                            if (newProfilePhotoPath != null && oldProfilePhotoPath != null) {
+                                // Then need to delete the student's old profile photo from memory.
+                                deleteProfilePhoto(oldProfilePhotoPath);
+                                Log.d(TAG, "Deleted the old student profile photo at: "
+                                        + oldProfilePhotoPath);
+                            }
+                            onSaveFinished(true, newProfilePhotoPath);
+                        } else if (retryOnConflict) {
+                            reloadAndSaveEdits(student.getId(), newName, newProfilePhotoPath);
+                        } else {
+                            onSaveFinished(false, newProfilePhotoPath);
+                        }
+                    }
+                }));
+    }
+
+    // Gets the current version of the student with the given ID, and saves the user's edits to it.
+    private void reloadAndSaveEdits(long studentId, final String newName,
+            final String newProfilePhotoPath) {
+        mRequests.add(mStudentManager.getStudentSnapshot(studentId,
+                new Callback<StudentSnapshot>() {
+                    @Override
+                    public void onResult(StudentSnapshot student) {
+                        if (student == null) {
+                            // The student has been deleted.
+                            onSaveFinished(false, newProfilePhotoPath);
+                        } else {
+                            mStudent = student;
+                            saveEdits(newName, newProfilePhotoPath, false);
+                        }
+                    }
+                }));
+    }
 
-        // Inform the user if the student was saved.
+    // Informs the user whether the student was saved. The given new profile photo (if any) is
+    // now used by the student, or, if the student was not saved, deleted, since nothing uses it.
+    private void onSaveFinished(boolean saved, String newProfilePhotoPath) {
+        mSaving = false;
+        boolean photoDisplayed = newProfilePhotoPath != null
+                && newProfilePhotoPath.equals(mNewProfilePhotoPath);
+        if (photoDisplayed) {
+            mNewProfilePhotoPath = null;
+        }
         if (saved) {
             Toast.makeText(getActivity(), R.string.save_success_toast, Toast.LENGTH_SHORT).show();
+            notifyButtonClicked(R.id.studentSaveButton);
         } else {
+            if (newProfilePhotoPath != null) {
+                deleteProfilePhoto(newProfilePhotoPath);
+                Log.d(TAG, newProfilePhotoPath + " has been deleted, since the save failed");
+                if (photoDisplayed) {
+                    displayProfilePhoto(mStudent.getImgName());
+                }
+            }
             Toast.makeText(getActivity(), R.string.save_failure_toast, Toast.LENGTH_SHORT).show();
         }
-        return saved;
+    }
+
+    // Applies the user's edits (the new profile photo, if any) to the given student.
+    private static StudentSnapshot withEdits(StudentSnapshot student, String newName,
+            String newProfilePhotoPath) {
+        StudentSnapshot editedStudent = student.withName(newName);
+        return newProfilePhotoPath == null ? editedStudent
+                : editedStudent.withImgName(newProfilePhotoPath);
     }
 
     private void takePicture() {
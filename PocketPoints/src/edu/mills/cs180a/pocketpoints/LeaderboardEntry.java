@@ -0,0 +1,40 @@
+package edu.mills.cs180a.pocketpoints;
+
+/**
+ * A student's place on the leaderboard of a classroom (see
+ * {@link StudentManager#getTopStudents(long, int)}).
+ */
+public final class LeaderboardEntry {
+    private final int mRank;
+    private final StudentRow mStudent;
+
+    /**
+     * Creates a {@code LeaderboardEntry} with the given values.
+     *
+     * @param rank the rank of the student, counting from 1
+     * @param student the student
+     */
+    public LeaderboardEntry(int rank, StudentRow student) {
+        mRank = rank;
+        mStudent = student;
+    }
+
+    /**
+     * Gets the rank of the student: one more than the number of students in the classroom with
+     * more stickers, so that students with the same number of stickers share a rank.
+     *
+     * @return the rank of the student, counting from 1
+     */
+    public int getRank() {
+        return mRank;
+    }
+
+    /**
+     * Gets the student, including the student's name, image and number of stickers.
+     *
+     * @return the student
+     */
+    public StudentRow getStudent() {
+        return mStudent;
+    }
+}
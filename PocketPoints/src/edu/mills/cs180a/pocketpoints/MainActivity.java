@@ -1,10 +1,21 @@
 package edu.mills.cs180a.pocketpoints;
 
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.FragmentManager;
+import android.content.ComponentCallbacks2;
+import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Environment;
 import android.util.Log;
 import android.view.MenuItem;
+import android.widget.EditText;
+import android.widget.Toast;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Callback;
 
 /**
  * The PocketPoints app's sole {@code Activity}. Determines which {@code Fragment} is displayed and
@@ -19,6 +30,12 @@ public class MainActivity extends Activity implements ClasslistFragment.OnStuden
         EditStudentFragment.OnEditStudentButtonClickedListener {
     private static final String TAG = "MainActivity";
 
+    // The file, in the app's external files directory, from which rosters are imported.
+    private static final String ROSTER_FILE_NAME = "roster.csv";
+
+    // The directory, in the app's external files directory, to which backups are written.
+    private static final String BACKUP_DIRECTORY_NAME = "backups";
+
     private FragmentManager mFragmentManager;
     private StickerChartFragment mStickerChartFragment;
     private EditStudentFragment mEditStudentFragment;
@@ -40,6 +57,43 @@ public class MainActivity extends Activity implements ClasslistFragment.OnStuden
                 .findFragmentById(R.id.editClasslistFragment);
         mStickerChartFragment = (StickerChartFragment) mFragmentManager
                 .findFragmentById(R.id.stickerChartFragment);
+
+        showCurrentClassroomName();
+
+        // Finish upgrading the database in the background, so that the students can be shown
+        // in the meantime.
+        StudentManager.get(this).copyMigrationDataInBackground();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        // The app may be killed once it is in the background, so save the queued stickers now,
+        // including those of taps still waiting to be queued (in the background, so that the main
+        // thread never waits for the disk).
+        AsyncStudentManager.get(this).flushStickers();
+
+        // The user isn't interacting with the app, so this is a good time for database upkeep.
+        StudentManager.get(this).checkpointInBackground();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+
+        // Release the cached students, but keep the connection, which cursors may still be using.
+        AsyncStudentManager.get(this).releaseMemory();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+
+        // Only give up the cached students if the system is starting to kill background apps.
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            AsyncStudentManager.get(this).releaseMemory();
+        }
     }
 
     @Override
@@ -65,14 +119,247 @@ public class MainActivity extends Activity implements ClasslistFragment.OnStuden
         case R.id.menu_item_done_edit:
             mFragmentManager.popBackStack();
             return true;
+        case R.id.menu_item_switch_class:
+            chooseClassroom();
+            return true;
+        case R.id.menu_item_import_roster:
+            importRoster();
+            return true;
+        case R.id.menu_item_class_stats:
+            showClassStats();
+            return true;
+        case R.id.menu_item_back_up:
+            backUp();
+            return true;
+        case R.id.menu_item_restore:
+            confirmRestore();
+            return true;
         default:
             return super.onOptionsItemSelected(item);
         }
     }
 
+    // Lets the user choose the classroom to work with, or add a new one.
+    private void chooseClassroom() {
+        AsyncStudentManager.get(this).getClassrooms(new Callback<List<Classroom>>() {
+            @Override
+            public void onResult(final List<Classroom> classrooms) {
+                if (isFinishing()) {
+                    return;
+                }
+                String[] names = new String[classrooms.size() + 1];
+                for (int i = 0; i < classrooms.size(); i++) {
+                    names[i] = classrooms.get(i).getName();
+                }
+                names[classrooms.size()] = getString(R.string.add_class);
+
+                new AlertDialog.Builder(MainActivity.this)
+                        .setTitle(R.string.switch_class)
+                        .setItems(names, new DialogInterface.OnClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which) {
+                                if (which < classrooms.size()) {
+                                    switchToClassroom(classrooms.get(which));
+                                } else {
+                                    addClassroom();
+                                }
+                            }
+                        })
+                        .show();
+            }
+        });
+    }
+
+    // Asks the user for the name of a new classroom, then adds it and switches to it.
+    private void addClassroom() {
+        final EditText nameField = new EditText(this);
+        nameField.setHint(R.string.class_name_prompt);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.add_class)
+                .setView(nameField)
+                .setPositiveButton(R.string.save_button, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        String name = nameField.getText().toString().trim();
+                        if (name.isEmpty()) {
+                            Toast.makeText(MainActivity.this, R.string.add_class_failure_toast,
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        AsyncStudentManager.get(MainActivity.this).createClassroom(name,
+                                new Callback<Classroom>() {
+                                    @Override
+                                    public void onResult(Classroom classroom) {
+                                        if (classroom == null) {
+                                            Toast.makeText(MainActivity.this,
+                                                    R.string.add_class_failure_toast,
+                                                    Toast.LENGTH_SHORT).show();
+                                        } else {
+                                            switchToClassroom(classroom);
+                                        }
+                                    }
+                                });
+                    }
+                })
+                .setNegativeButton(R.string.cancel_button, null)
+                .show();
+    }
+
+    // Adds the students in the roster file to the current classroom.
+    private void importRoster() {
+        File directory = getExternalFilesDir(null);
+        File rosterFile = new File(directory, ROSTER_FILE_NAME);
+        if (directory == null || !rosterFile.exists()) {
+            Toast.makeText(this, getString(R.string.import_roster_missing_toast, rosterFile),
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        long classId = StudentManager.get(this).getCurrentClassId();
+        AsyncStudentManager.get(this).importRoster(rosterFile, classId,
+                new Callback<RosterImporter.Result>() {
+                    @Override
+                    public void onResult(RosterImporter.Result result) {
+                        if (result == null) {
+                            Toast.makeText(MainActivity.this, R.string.import_roster_failure_toast,
+                                    Toast.LENGTH_SHORT).show();
+                            return;
+                        }
+                        for (RosterImporter.LineError error : result.getErrors()) {
+                            Log.w(TAG, "Skipped " + error);
+                        }
+                        Toast.makeText(MainActivity.this,
+                                getString(R.string.import_roster_success_toast,
+                                        result.getNumImported(), result.getNumErrors()),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+    }
+
+    // Shows the statistics of the current classroom's stickers.
+    private void showClassStats() {
+        long classId = StudentManager.get(this).getCurrentClassId();
+        AsyncStudentManager.get(this).getClassStats(classId, new Callback<ClassStats>() {
+            @Override
+            public void onResult(ClassStats stats) {
+                if (stats == null) {
+                    Toast.makeText(MainActivity.this, R.string.class_stats_failure_toast,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                StringBuilder message = new StringBuilder(getString(R.string.class_stats_summary,
+                        stats.getNumStudents(), stats.getTotalStickers(), stats.getMean(),
+                        stats.getMedian()));
+                for (Map.Entry<Integer, Integer> bucket : stats.getHistogram().entrySet()) {
+                    message.append('\n').append(getString(R.string.class_stats_histogram_row,
+                            bucket.getKey(), bucket.getValue()));
+                }
+                new AlertDialog.Builder(MainActivity.this)
+                        .setTitle(R.string.class_stats)
+                        .setMessage(message)
+                        .setPositiveButton(R.string.ok_button, null)
+                        .show();
+            }
+        });
+    }
+
+    // Backs up the database and photos to the backup directory.
+    private void backUp() {
+        BackupArchiver archiver = newBackupArchiver();
+        if (archiver == null) {
+            Toast.makeText(this, R.string.back_up_failure_toast, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        AsyncStudentManager.get(this).backUp(archiver, new Callback<BackupArchiver.Result>() {
+            @Override
+            public void onResult(BackupArchiver.Result result) {
+                if (result == null) {
+                    Toast.makeText(MainActivity.this, R.string.back_up_failure_toast,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Toast.makeText(MainActivity.this, getString(R.string.back_up_success_toast,
+                        result.getArchive().getName(), result.getNumPhotosCopied()),
+                        Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    // Asks whether to replace all of the students with those in the latest backup.
+    private void confirmRestore() {
+        final BackupArchiver archiver = newBackupArchiver();
+        final File archive = archiver == null ? null : archiver.getLatestArchive();
+        if (archive == null) {
+            Toast.makeText(this, R.string.restore_missing_toast, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.restore)
+                .setMessage(getString(R.string.restore_confirm, archive.getName()))
+                .setPositiveButton(R.string.yes_button, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        restore(archiver, archive);
+                    }
+                })
+                .setNegativeButton(R.string.no_button, null)
+                .show();
+    }
+
+    private void restore(BackupArchiver archiver, File archive) {
+        AsyncStudentManager.get(this).restore(archiver, archive, new Callback<Boolean>() {
+            @Override
+            public void onResult(Boolean restored) {
+                if (!restored) {
+                    Toast.makeText(MainActivity.this, R.string.restore_failure_toast,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+
+                // The restored students are listed in the default classroom.
+                mClasslistFragment.setClassId(Student.DEFAULT_CLASS_ID);
+                mEditClasslistFragment.setClassId(Student.DEFAULT_CLASS_ID);
+                showCurrentClassroomName();
+            }
+        });
+    }
+
+    // Creates an archiver for the photo and backup directories, or returns null if the external
+    // storage holding them is not available.
+    private BackupArchiver newBackupArchiver() {
+        File photoDirectory = getExternalFilesDir(Environment.DIRECTORY_PICTURES);
+        File backupDirectory = getExternalFilesDir(BACKUP_DIRECTORY_NAME);
+        if (photoDirectory == null || backupDirectory == null) {
+            return null;
+        }
+        return new BackupArchiver(StudentManager.get(this), photoDirectory, backupDirectory);
+    }
+
+    // Shows the name of the classroom the user is working with.
+    private void showCurrentClassroomName() {
+        final long currentClassId = StudentManager.get(this).getCurrentClassId();
+        AsyncStudentManager.get(this).getClassrooms(new Callback<List<Classroom>>() {
+            @Override
+            public void onResult(List<Classroom> classrooms) {
+                for (Classroom classroom : classrooms) {
+                    if (classroom.getId() == currentClassId) {
+                        setTitle(classroom.getName());
+                    }
+                }
+            }
+        });
+    }
+
+    // Lists the students of the given classroom, and remembers it as the current classroom.
+    private void switchToClassroom(Classroom classroom) {
+        StudentManager.get(this).setCurrentClassId(classroom.getId());
+        mClasslistFragment.setClassId(classroom.getId());
+        mEditClasslistFragment.setClassId(classroom.getId());
+        setTitle(classroom.getName());
+    }
+
     @Override
-    public void onStudentSelected(Student selectedStudent) {
-        long selectedPersonId = selectedStudent.getId();
+    public void onStudentSelected(long selectedPersonId) {
         Log.d(TAG, "Student id is " + selectedPersonId);
 
         // Display the StickerChartFragment.
@@ -88,9 +375,7 @@ public class MainActivity extends Activity implements ClasslistFragment.OnStuden
     }
 
     @Override
-    public void onEditStudentSelected(Student selectedStudent) {
-        long selectedPersonId = selectedStudent.getId();
-
+    public void onEditStudentSelected(long selectedPersonId) {
         // Display the EditStudentFragment.
         mFragmentManager
                 .beginTransaction()
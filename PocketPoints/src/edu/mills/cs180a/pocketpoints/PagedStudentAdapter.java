@@ -0,0 +1,613 @@
+package edu.mills.cs180a.pocketpoints;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.BaseAdapter;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Callback;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Request;
+import edu.mills.cs180a.pocketpoints.StudentManager.OnStudentsChangedListener;
+
+/**
+ * An adapter of the students in a classroom, in alphabetical order, that loads the students one
+ * page at a time as the list is scrolled, rather than loading every student up front. Only the
+ * columns the list displays are loaded, as {@link StudentRow}s. To load pages on demand, the
+ * adapter must be set as the {@link OnScrollListener} of the list that displays it. Pages are
+ * loaded in the background by the {@link AsyncStudentManager}, and only while loading is resumed
+ * (see {@link #resumeLoading()}), which it should be only while the list is shown.
+ *
+ * <p>
+ * So that the memory it uses does not grow with how far the list has been scrolled, the adapter
+ * drops the pages more than {@value #KEPT_PAGES} pages away from the visible rows, keeping only
+ * the IDs of their students, and loads them again, starting after the last student of the page
+ * before, when they are scrolled back into view. Until then, {@link #getItem(int)} returns
+ * {@code null} for their rows, which are disabled.
+ *
+ * <p>
+ * While it is observing changes (see {@link #startObservingChanges()}), the adapter applies each
+ * change made through the {@link StudentManager} to just the affected row, instead of reloading
+ * the students. A change made while a page is being loaded is also applied to the page once it
+ * arrives, since the page may have been read before the change was made.
+ *
+ * <p>
+ * While a search prefix is set (see {@link #setSearchPrefix(String)}), the adapter instead lists
+ * only the students whose names match it, loaded all at once.
+ */
+abstract class PagedStudentAdapter extends BaseAdapter
+        implements OnScrollListener, OnStudentsChangedListener {
+    // The number of students loaded at a time.
+    private static final int PAGE_SIZE = 50;
+
+    // The next page is loaded once the list is scrolled to within this many rows of the end.
+    private static final int PREFETCH_DISTANCE = 10;
+
+    // The number of pages kept loaded on each side of the pages of the visible rows.
+    private static final int KEPT_PAGES = 2;
+
+    // The maximum number of students listed as the results of a search.
+    private static final int MAX_SEARCH_RESULTS = 100;
+
+    private final AsyncStudentManager mAsyncStudentManager;
+    private final String[] mProjection;
+    private final int mDisplayedFields; // The StudentManager.FIELD_* flags in mProjection.
+    private long mClassId;
+    private String mSearchPrefix; // Null unless searching.
+    private boolean mAllStudentsLoaded;
+    private boolean mLoadingResumed;
+    private Request mPageRequest; // The request for the page being loaded, if any.
+    private Page mReloadingPage; // The dropped page being loaded again, if that is the request.
+
+    // The listed students, a page at a time, in order, and how many there are in all.
+    private final List<Page> mPages = new ArrayList<Page>();
+    private int mCount;
+
+    // The rows last reported to be visible, so that the pages near them can be kept loaded.
+    private int mFirstVisibleItem;
+    private int mVisibleItemCount;
+
+    // The students changed while the page being loaded was read, by ID, with null for the students
+    // that were deleted, so that the page can be brought up to date when it arrives.
+    private final Map<Long, Student> mChangesDuringLoad = new HashMap<Long, Student>();
+
+    /**
+     * Creates a {@code PagedStudentAdapter}, with loading paused.
+     *
+     * @param context the context in which the list is displayed
+     * @param projection the columns displayed in each row, such as
+     *        {@link StudentManager#PROJECTION_NAME_AND_IMAGE}
+     * @param classId the ID of the classroom whose students are listed
+     */
+    PagedStudentAdapter(Context context, String[] projection, long classId) {
+        mAsyncStudentManager = AsyncStudentManager.get(context);
+        mProjection = projection;
+        mClassId = classId;
+
+        List<String> columns = Arrays.asList(projection);
+        int displayedFields = StudentManager.FIELD_NAME;
+        if (columns.contains(StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME)) {
+            displayedFields |= StudentManager.FIELD_IMAGE_NAME;
+        }
+        if (columns.contains(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS)) {
+            displayedFields |= StudentManager.FIELD_NUM_STICKERS;
+        }
+        mDisplayedFields = displayedFields;
+    }
+
+    /**
+     * Lists the students of the given classroom instead, discarding the students loaded so far.
+     * If loading is resumed, the first page of the classroom's students starts loading at once.
+     *
+     * @param classId the ID of the classroom whose students to list
+     */
+    void setClassId(long classId) {
+        if (classId == mClassId) {
+            return;
+        }
+        mClassId = classId;
+        reload();
+    }
+
+    /**
+     * Lists only the students whose names match the given search prefix (see
+     * {@link StudentManager#searchStudents(long, String, int)}), or all students if it is
+     * {@code null}, discarding the students loaded so far.
+     *
+     * @param prefix the search prefix, or {@code null} to stop searching
+     */
+    void setSearchPrefix(String prefix) {
+        if (prefix == null ? mSearchPrefix == null : prefix.equals(mSearchPrefix)) {
+            return;
+        }
+        mSearchPrefix = prefix;
+        reload();
+    }
+
+    /**
+     * Allows pages of students to be loaded, and starts loading the next page if none have been
+     * loaded yet, or a dropped page if it is near the visible rows.
+     */
+    void resumeLoading() {
+        mLoadingResumed = true;
+        if (mPages.isEmpty()) {
+            loadNextPage();
+        } else {
+            loadVisiblePages();
+        }
+    }
+
+    /**
+     * Stops pages of students from being loaded, and cancels the loading of any page that has
+     * not yet been loaded.
+     */
+    void pauseLoading() {
+        mLoadingResumed = false;
+        cancelPageRequest();
+    }
+
+    /**
+     * Starts loading the next page of students in the background, if loading is resumed, no page
+     * is already being loaded, and there are any students left to load.
+     */
+    void loadNextPage() {
+        if (!mLoadingResumed || mPageRequest != null || mAllStudentsLoaded) {
+            return;
+        }
+
+        if (mSearchPrefix != null) {
+            mPageRequest = mAsyncStudentManager.searchStudentRows(mClassId, mProjection,
+                    mSearchPrefix, MAX_SEARCH_RESULTS, new Callback<List<StudentRow>>() {
+                        @Override
+                        public void onResult(List<StudentRow> results) {
+                            mPageRequest = null;
+                            mAllStudentsLoaded = true;
+                            addPage(results);
+                        }
+                    });
+            return;
+        }
+
+        // Start the page after the last student that has been loaded.
+        StudentRow bound = mPages.isEmpty() ? null : mPages.get(mPages.size() - 1).mBound;
+        mPageRequest = mAsyncStudentManager.getStudentRowsAfter(mClassId, mProjection,
+                bound == null ? null : bound.getName(),
+                bound == null ? Student.INVALID_ID : bound.getId(), PAGE_SIZE,
+                new Callback<List<StudentRow>>() {
+                    @Override
+                    public void onResult(List<StudentRow> page) {
+                        mPageRequest = null;
+                        mAllStudentsLoaded = page.size() < PAGE_SIZE;
+                        addPage(page);
+                    }
+                });
+    }
+
+    // Drops the loaded pages far from the visible rows, and starts loading the dropped page
+    // nearest to them again, if any is near enough to be scrolled into view soon.
+    private void loadVisiblePages() {
+        if (mPages.isEmpty()) {
+            return;
+        }
+        int firstPage = getPageIndex(Math.min(mFirstVisibleItem, mCount - 1));
+        int lastPage = getPageIndex(Math.min(mFirstVisibleItem + Math.max(mVisibleItemCount, 1),
+                mCount) - 1);
+        for (int i = 0; i < mPages.size(); i++) {
+            Page page = mPages.get(i);
+            if ((i < firstPage - KEPT_PAGES || i > lastPage + KEPT_PAGES)
+                    && page != mReloadingPage) {
+                page.drop();
+            }
+        }
+
+        if (!mLoadingResumed || mPageRequest != null) {
+            return;
+        }
+        for (int i = firstPage; i <= lastPage + 1 && i < mPages.size(); i++) {
+            if (mPages.get(i).isDropped()) {
+                reloadPage(i);
+                return;
+            }
+        }
+        if (firstPage > 0 && mPages.get(firstPage - 1).isDropped()) {
+            reloadPage(firstPage - 1);
+        }
+    }
+
+    // Starts loading the dropped page at the given index again, after the last student of the
+    // page before it.
+    private void reloadPage(int index) {
+        final Page page = mPages.get(index);
+        StudentRow after = index == 0 ? null : mPages.get(index - 1).mBound;
+        mReloadingPage = page;
+        mPageRequest = mAsyncStudentManager.getStudentRowsAfter(mClassId, mProjection,
+                after == null ? null : after.getName(),
+                after == null ? Student.INVALID_ID : after.getId(), page.size(),
+                new Callback<List<StudentRow>>() {
+                    @Override
+                    public void onResult(List<StudentRow> rows) {
+                        mPageRequest = null;
+                        mReloadingPage = null;
+                        fillPage(page, rows);
+                        loadVisiblePages();
+                    }
+                });
+    }
+
+    // Adds the given page of students, which may have been read before some of the changes made
+    // while it was being loaded, after the students loaded so far, applying those changes to it.
+    // Applying the changes, rather than loading the page again, means that the page is added even
+    // if the students keep changing.
+    private void addPage(List<StudentRow> rows) {
+        if (!rows.isEmpty()) {
+            Page page = new Page(rows.get(rows.size() - 1));
+            for (StudentRow row : rows) {
+                if (!mChangesDuringLoad.containsKey(row.getId())) {
+                    page.mRows.add(row);
+                }
+            }
+            mPages.add(page);
+            mCount += page.size();
+        }
+        applyChangesDuringLoad(rows);
+        loadVisiblePages();
+    }
+
+    // Fills in the given dropped page with the given students, read after the page before it,
+    // which may have been read before some of the changes made while it was being loaded.
+    private void fillPage(Page page, List<StudentRow> rows) {
+        if (!mPages.contains(page) || !page.isDropped()) {
+            mChangesDuringLoad.clear();
+            return;
+        }
+        List<StudentRow> pageRows = new ArrayList<StudentRow>(rows.size());
+        for (StudentRow row : rows) {
+            if (compare(row, page.mBound) <= 0 && !mChangesDuringLoad.containsKey(row.getId())) {
+                pageRows.add(row);
+            }
+        }
+        mCount += pageRows.size() - page.size();
+        page.mRows = pageRows;
+        page.mIds = null;
+        applyChangesDuringLoad(rows);
+    }
+
+    // Inserts the current values of the students changed while a page was being loaded in order.
+    // While searching, only those in the results are, since a change that could make a student
+    // match starts a new search.
+    private void applyChangesDuringLoad(List<StudentRow> rows) {
+        for (Map.Entry<Long, Student> change : mChangesDuringLoad.entrySet()) {
+            Student student = change.getValue();
+            if (student != null && student.getClassId() == mClassId
+                    && (mSearchPrefix == null || containsRow(rows, change.getKey()))) {
+                applyChange(student, true);
+            }
+        }
+        mChangesDuringLoad.clear();
+        notifyDataSetChanged();
+    }
+
+    private static boolean containsRow(List<StudentRow> rows, long id) {
+        for (StudentRow row : rows) {
+            if (row.getId() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Records a change to the given student (null if it was deleted) made while a page is being
+    // loaded, so that it can be applied to the page when it arrives.
+    private void recordChange(long id, Student student) {
+        if (mPageRequest != null) {
+            mChangesDuringLoad.put(id, student);
+        }
+    }
+
+    /**
+     * Starts applying the changes made through the {@link StudentManager} to the loaded students.
+     * Must be balanced by a call to {@link #stopObservingChanges()}.
+     */
+    void startObservingChanges() {
+        mAsyncStudentManager.registerOnStudentsChangedListener(this);
+    }
+
+    /**
+     * Stops applying the changes made through the {@link StudentManager} to the loaded students.
+     */
+    void stopObservingChanges() {
+        mAsyncStudentManager.unregisterOnStudentsChangedListener(this);
+    }
+
+    @Override
+    public void onStudentInserted(Student student) {
+        // The student may already have been loaded, if its page was read after it was inserted.
+        recordChange(student.getId(), student);
+        if (mSearchPrefix != null) {
+            reload(); // Search again, in case the student matches.
+        } else if (student.getClassId() == mClassId) {
+            applyChange(student, true);
+        }
+    }
+
+    @Override
+    public void onStudentUpdated(Student student, int changedFields) {
+        recordChange(student.getId(), student);
+        if (mSearchPrefix != null && (changedFields
+                & (StudentManager.FIELD_NAME | StudentManager.FIELD_CLASS_ID)) != 0) {
+            reload(); // Search again, in case the student no longer matches or now does.
+        } else if (student.getClassId() != mClassId) {
+            removeRow(student.getId()); // The student may have been moved out of this classroom.
+        } else if ((changedFields & StudentManager.FIELD_CLASS_ID) != 0) {
+            applyChange(student, true); // The student was moved into this classroom.
+        } else if ((changedFields & mDisplayedFields) != 0) {
+            applyChange(student, (changedFields & StudentManager.FIELD_NAME) != 0);
+        }
+    }
+
+    @Override
+    public void onStudentDeleted(long id) {
+        recordChange(id, null);
+        removeRow(id);
+    }
+
+    @Override
+    public void onStudentsChanged() {
+        reload();
+    }
+
+    // Discards the students loaded so far, and starts loading them again if loading is resumed.
+    private void reload() {
+        cancelPageRequest();
+        mAllStudentsLoaded = false;
+        mPages.clear();
+        mCount = 0;
+        notifyDataSetChanged();
+        if (mLoadingResumed) {
+            loadNextPage();
+        }
+    }
+
+    private void cancelPageRequest() {
+        if (mPageRequest != null) {
+            mPageRequest.cancel();
+            mPageRequest = null;
+            mReloadingPage = null;
+            mChangesDuringLoad.clear();
+        }
+    }
+
+    private void removeRow(long id) {
+        for (Page page : mPages) {
+            if (page.remove(id)) {
+                mCount--;
+                notifyDataSetChanged();
+                return;
+            }
+        }
+    }
+
+    // Replaces the row of the given student with its current values, if it has been loaded. If
+    // the student may have moved, it is instead inserted in order among the loaded students.
+    private void applyChange(Student student, boolean mayHaveMoved) {
+        StudentRow row = toRow(student);
+        if (mayHaveMoved) {
+            removeRow(student.getId());
+            insertInOrder(row);
+            return;
+        }
+        for (Page page : mPages) {
+            int index = page.mRows == null ? -1 : page.indexOf(student.getId());
+            if (index >= 0) {
+                page.mRows.set(index, row);
+                notifyDataSetChanged();
+                return;
+            }
+        }
+    }
+
+    // Inserts the given row in order among the loaded students, unless it belongs to a page that
+    // has not been loaded yet. A row that belongs to a dropped page is only counted in it.
+    private void insertInOrder(StudentRow row) {
+        Page page = null;
+        for (Page candidate : mPages) {
+            if (compare(row, candidate.mBound) <= 0) {
+                page = candidate;
+                break;
+            }
+        }
+        if (page == null) {
+            if (!mAllStudentsLoaded) {
+                return;
+            }
+            if (mPages.isEmpty()) {
+                mPages.add(new Page(row));
+            }
+            page = mPages.get(mPages.size() - 1);
+            page.mBound = row; // Every student is loaded, so the last page has no end.
+        }
+
+        if (page.isDropped()) {
+            page.mIds.add(row.getId());
+        } else {
+            int low = 0;
+            int high = page.mRows.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(page.mRows.get(mid), row) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            page.mRows.add(low, row);
+        }
+        mCount++;
+        notifyDataSetChanged();
+    }
+
+    // Returns the index of the page that holds the row at the given position.
+    private int getPageIndex(int position) {
+        for (int i = 0; i < mPages.size(); i++) {
+            int size = mPages.get(i).size();
+            if (position < size) {
+                return i;
+            }
+            position -= size;
+        }
+        return mPages.size() - 1;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Gets the student listed at the given position.
+     *
+     * @param position the position of the student
+     * @return the student, or {@code null} if the page it is in has been dropped and not yet
+     *         loaded again
+     */
+    @Override
+    public StudentRow getItem(int position) {
+        for (Page page : mPages) {
+            if (position < page.size()) {
+                return page.isDropped() ? null : page.mRows.get(position);
+            }
+            position -= page.size();
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        StudentRow row = getItem(position);
+        return row == null ? Student.INVALID_ID : row.getId();
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        return getItem(position) != null; // A row can't be chosen until it has been loaded.
+    }
+
+    private StudentRow toRow(Student student) {
+        return new StudentRow(student.getId(), student.getName(),
+                (mDisplayedFields & StudentManager.FIELD_IMAGE_NAME) != 0
+                        ? student.getImgName() : null,
+                (mDisplayedFields & StudentManager.FIELD_NUM_STICKERS) != 0
+                        ? student.getNumStickers() : StudentRow.UNKNOWN_NUM_STICKERS);
+    }
+
+    // Compares two rows in the order in which the database lists them: by name, ignoring the case
+    // of ASCII letters only, and then by ID. SQLite's nocase collation compares the UTF-8 bytes of
+    // the names, which are in the order of their code points; UTF-16 chars are not (a character
+    // outside the Basic Multilingual Plane is stored as surrogates, which come before U+E000 to
+    // U+FFFF), so the names are compared a code point at a time.
+    private static int compare(StudentRow row1, StudentRow row2) {
+        String name1 = row1.getName();
+        String name2 = row2.getName();
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < name1.length() && i2 < name2.length()) {
+            int codePoint1 = name1.codePointAt(i1);
+            int codePoint2 = name2.codePointAt(i2);
+            int difference = toLowerCaseAscii(codePoint1) - toLowerCaseAscii(codePoint2);
+            if (difference != 0) {
+                return difference;
+            }
+            i1 += Character.charCount(codePoint1);
+            i2 += Character.charCount(codePoint2);
+        }
+        if (i1 < name1.length() || i2 < name2.length()) {
+            return i1 < name1.length() ? 1 : -1; // A name comes after its prefixes.
+        }
+        return row1.getId() < row2.getId() ? -1 : (row1.getId() == row2.getId() ? 0 : 1);
+    }
+
+    private static int toLowerCaseAscii(int codePoint) {
+        return codePoint >= 'A' && codePoint <= 'Z' ? codePoint + ('a' - 'A') : codePoint;
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        mFirstVisibleItem = firstVisibleItem;
+        mVisibleItemCount = visibleItemCount;
+        loadVisiblePages();
+        if (firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        // Pages are loaded based on the scroll position only.
+    }
+
+    // A page of the listed students: those after the bound of the page before it, up to and
+    // including its own bound, which is the last student of the page when it was loaded. A
+    // dropped page keeps only the IDs of its students, in no particular order, so that changes to
+    // them can still be counted.
+    private static final class Page {
+        StudentRow mBound;
+        List<StudentRow> mRows = new ArrayList<StudentRow>(); // Null while dropped.
+        List<Long> mIds; // Null unless dropped.
+
+        Page(StudentRow bound) {
+            mBound = bound;
+        }
+
+        boolean isDropped() {
+            return mRows == null;
+        }
+
+        int size() {
+            return mRows != null ? mRows.size() : mIds.size();
+        }
+
+        int indexOf(long id) {
+            for (int i = mRows.size() - 1; i >= 0; i--) {
+                if (mRows.get(i).getId() == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Removes the student with the given ID from this page, and returns whether it was here.
+        boolean remove(long id) {
+            if (isDropped()) {
+                return mIds.remove(Long.valueOf(id));
+            }
+            int index = indexOf(id);
+            if (index >= 0) {
+                mRows.remove(index);
+            }
+            return index >= 0;
+        }
+
+        // Discards the students of this page, keeping only their IDs. An empty page is kept as it
+        // is, since there is nothing to load again.
+        void drop() {
+            if (isDropped() || mRows.isEmpty()) {
+                return;
+            }
+            mIds = new ArrayList<Long>(mRows.size());
+            for (StudentRow row : mRows) {
+                mIds.add(row.getId());
+            }
+            mRows = null;
+        }
+    }
+}
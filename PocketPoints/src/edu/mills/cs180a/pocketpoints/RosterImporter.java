@@ -0,0 +1,267 @@
+package edu.mills.cs180a.pocketpoints;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentSource;
+
+/**
+ * Reads a roster of students from a CSV file, one student at a time, so that a roster of any size
+ * is read in constant memory. Each record of the file holds the name of a student, optionally
+ * followed by the student's number of stickers; any further fields are ignored, as is a first
+ * record whose name is "name" (a header). Fields may be quoted, as spreadsheet programs do, to
+ * include commas, line breaks or (doubled) quotes.
+ *
+ * <p>
+ * Each student is checked against the same rules as the {@code students} table: a name that is
+ * not empty (once surrounding spaces are removed) and no longer than
+ * {@link StudentSQLiteOpenHelper#MAX_NAME_LENGTH}, and a number of stickers that is not negative.
+ * Records that break these rules are skipped, and reported in the {@link Result} by line number.
+ * Blank lines are skipped silently.
+ *
+ * <p>
+ * A {@code RosterImporter} is passed to {@link StudentManager#importRoster(Reader, long)}, which
+ * adds the students it reads to the database.
+ */
+public class RosterImporter implements StudentSource {
+    /**
+     * The maximum number of errors reported in a {@link Result}; later errors are only counted.
+     */
+    public static final int MAX_REPORTED_ERRORS = 100;
+
+    private static final String HEADER_NAME = "name";
+
+    // The longest a field may grow while being read; any longer field is invalid anyway.
+    private static final int MAX_FIELD_LENGTH = StudentSQLiteOpenHelper.MAX_NAME_LENGTH + 1;
+
+    private static final int NO_CHARACTER = -2; // A value of mPushedBack; -1 is the end of input.
+
+    private final BufferedReader mReader;
+    private final long mClassId;
+    private int mPushedBack = NO_CHARACTER;
+    private int mLineNumber = 1; // The line of the next character.
+    private int mRecordLineNumber; // The line on which the last record read started.
+    private boolean mFirstRecord = true;
+
+    // The fields of the last record read; reused for each record.
+    private final List<String> mFields = new ArrayList<String>();
+    private final StringBuilder mField = new StringBuilder();
+
+    private int mNumErrors;
+    private final List<LineError> mErrors = new ArrayList<LineError>();
+
+    /**
+     * An invalid record in a roster, which was skipped.
+     */
+    public static final class LineError {
+        private final int mLineNumber;
+        private final String mMessage;
+
+        private LineError(int lineNumber, String message) {
+            mLineNumber = lineNumber;
+            mMessage = message;
+        }
+
+        /**
+         * Gets the number of the line (counting from 1) on which the invalid record starts.
+         *
+         * @return the line number of the record
+         */
+        public int getLineNumber() {
+            return mLineNumber;
+        }
+
+        /**
+         * Gets a description of what is wrong with the record.
+         *
+         * @return the description of the error
+         */
+        public String getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        public String toString() {
+            return "Line " + mLineNumber + ": " + mMessage;
+        }
+    }
+
+    /**
+     * The outcome of importing a roster.
+     */
+    public static final class Result {
+        private final int mNumImported;
+        private final int mNumErrors;
+        private final List<LineError> mErrors;
+
+        private Result(int numImported, int numErrors, List<LineError> errors) {
+            mNumImported = numImported;
+            mNumErrors = numErrors;
+            mErrors = errors;
+        }
+
+        /**
+         * Gets the number of students that were added to the database.
+         *
+         * @return the number of students imported
+         */
+        public int getNumImported() {
+            return mNumImported;
+        }
+
+        /**
+         * Gets the number of records that were skipped because they were invalid.
+         *
+         * @return the number of invalid records
+         */
+        public int getNumErrors() {
+            return mNumErrors;
+        }
+
+        /**
+         * Gets the first {@link RosterImporter#MAX_REPORTED_ERRORS} invalid records, in the order
+         * in which they appear in the roster.
+         *
+         * @return the invalid records
+         */
+        public List<LineError> getErrors() {
+            return mErrors;
+        }
+    }
+
+    /**
+     * Creates a {@code RosterImporter} that reads the roster from the given reader, putting the
+     * students in the given classroom.
+     *
+     * @param reader the reader of the CSV file
+     * @param classId the ID of the classroom to which to add the students
+     */
+    public RosterImporter(Reader reader, long classId) {
+        mReader = reader instanceof BufferedReader ? (BufferedReader) reader
+                : new BufferedReader(reader);
+        mClassId = classId;
+    }
+
+    @Override
+    public Student next() throws IOException {
+        while (readRecord()) {
+            boolean firstRecord = mFirstRecord;
+            mFirstRecord = false;
+            String name = mFields.get(0).trim();
+            if (mFields.size() == 1 && name.isEmpty()) {
+                continue; // A blank line.
+            }
+            if (firstRecord && name.equalsIgnoreCase(HEADER_NAME)) {
+                continue;
+            }
+
+            // Check the student against the constraints of the students table.
+            if (name.isEmpty()) {
+                addError("The name is empty");
+                continue;
+            }
+            if (name.length() > StudentSQLiteOpenHelper.MAX_NAME_LENGTH) {
+                addError("The name is longer than " + StudentSQLiteOpenHelper.MAX_NAME_LENGTH
+                        + " characters");
+                continue;
+            }
+            int numStickers = 0;
+            String numStickersField = mFields.size() > 1 ? mFields.get(1).trim() : "";
+            if (!numStickersField.isEmpty()) {
+                try {
+                    numStickers = Integer.parseInt(numStickersField);
+                } catch (NumberFormatException e) {
+                    numStickers = -1;
+                }
+                if (numStickers < 0) {
+                    addError("The number of stickers is not a whole number of at least 0: "
+                            + numStickersField);
+                    continue;
+                }
+            }
+
+            return new Student().setName(name).setNumStickers(numStickers).setClassId(mClassId);
+        }
+        return null;
+    }
+
+    /**
+     * Gets the outcome of importing the roster.
+     *
+     * @param numImported the number of students that were added to the database
+     * @return the outcome of the import
+     */
+    public Result getResult(int numImported) {
+        return new Result(numImported, mNumErrors, Collections.unmodifiableList(mErrors));
+    }
+
+    private void addError(String message) {
+        mNumErrors++;
+        if (mErrors.size() < MAX_REPORTED_ERRORS) {
+            mErrors.add(new LineError(mRecordLineNumber, message));
+        }
+    }
+
+    // Reads the next record into mFields, returning false if there are no records left.
+    private boolean readRecord() throws IOException {
+        mRecordLineNumber = mLineNumber;
+        int c = read();
+        if (c == -1) {
+            return false;
+        }
+        mFields.clear();
+        mField.setLength(0);
+        boolean quoted = false;
+        while (c != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    int next = read();
+                    if (next == '"') {
+                        appendToField('"'); // A doubled quote stands for a quote.
+                    } else {
+                        quoted = false;
+                        mPushedBack = next;
+                    }
+                } else {
+                    appendToField((char) c); // Including commas and line breaks.
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                mFields.add(mField.toString());
+                mField.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                appendToField((char) c);
+            }
+            c = read();
+        }
+        mFields.add(mField.toString());
+        return true;
+    }
+
+    private void appendToField(char c) {
+        if (mField.length() < MAX_FIELD_LENGTH) {
+            mField.append(c);
+        }
+    }
+
+    private int read() throws IOException {
+        int c;
+        if (mPushedBack != NO_CHARACTER) {
+            c = mPushedBack;
+            mPushedBack = NO_CHARACTER;
+            return c; // Its line break, if any, was counted when it was first read.
+        }
+        c = mReader.read();
+        if (c == '\n') {
+            mLineNumber++;
+        }
+        return c;
+    }
+}
@@ -16,6 +16,8 @@ import android.widget.ArrayAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.TextView;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Callback;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.RequestGroup;
 
 /**
  * A {@link Fragment} that displays a graphical representation of the number of stickers currently
@@ -34,6 +36,11 @@ import android.widget.TextView;
  * Clicking the "clear stickers" button sets the student's sticker count to zero and updates the
  * PocketPoints database and UI accordingly.
  *
+ * <p>
+ * The database is read and written in the background (see {@link AsyncStudentManager}), and the
+ * display is updated once the result is available. Results that arrive after the fragment has
+ * been hidden are ignored.
+ *
  * @author chingmyu@gmail.com (Ching Yu)
  * @author renee.johnston@gmail.com (Renee Johnston)
  * @author ajkwak@users.noreply.github.com (AJ Parmidge)
@@ -48,13 +55,14 @@ public class StickerChartFragment extends Fragment {
     private GridView mGridView;
     private GridViewCustomAdapter mAdapter;
     private LayoutInflater mInflater;
-    private StudentManager mStudentManager;
-    private Student mStudent;
+    private AsyncStudentManager mStudentManager;
+    private final RequestGroup mRequests = new RequestGroup();
+    private StudentSnapshot mStudent;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mStudentManager = StudentManager.get(getActivity());
+        mStudentManager = AsyncStudentManager.get(getActivity());
         setHasOptionsMenu(true);
     }
 
@@ -67,17 +75,31 @@ public class StickerChartFragment extends Fragment {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
         case R.id.menu_item_undo_sticker_addition:
-            if (mStudent.getNumStickers() > 0) {
-                mStudent.removeLastSticker();
-                mStudentManager.updateStudent(mStudent);
-                setStickersForStudent(mStudent.getId());
+            if (mStudent != null && mStudent.getNumStickers() > 0) {
+                mRequests.add(mStudentManager.queueRemoveStickers(mStudent.getId(), 1,
+                        new Callback<Integer>() {
+                            @Override
+                            public void onResult(Integer numStickers) {
+                                if (numStickers > -1) {
+                                    mStudent = mStudent.withNumStickers(numStickers);
+                                    displayStickers(getView());
+                                }
+                            }
+                        }));
             }
             return true;
         case R.id.menu_item_clear_all_stickers:
-            if (mStudent.getNumStickers() > 0) {
-                mStudent.setNumStickers(0);
-                mStudentManager.updateStudent(mStudent);
-                setStickersForStudent(mStudent.getId());
+            if (mStudent != null && mStudent.getNumStickers() > 0) {
+                mRequests.add(mStudentManager.clearStickers(mStudent.getId(),
+                        new Callback<Boolean>() {
+                            @Override
+                            public void onResult(Boolean cleared) {
+                                if (cleared) {
+                                    mStudent = mStudent.withNumStickers(0);
+                                    displayStickers(getView());
+                                }
+                            }
+                        }));
             }
             return true;
         }
@@ -117,6 +139,19 @@ public class StickerChartFragment extends Fragment {
         return view;
     }
 
+    @Override
+    public void onHiddenChanged(boolean hidden) {
+        if (hidden) {
+            mRequests.cancelAll(); // The results could no longer be seen.
+        }
+    }
+
+    @Override
+    public void onDestroyView() {
+        mRequests.cancelAll();
+        super.onDestroyView();
+    }
+
     @Override
     public void onSaveInstanceState(Bundle savedInstanceState) {
         super.onSaveInstanceState(savedInstanceState);
@@ -147,20 +182,34 @@ public class StickerChartFragment extends Fragment {
         setStickersForStudent(studentId, getView());
     }
 
-    private void setStickersForStudent(long studentId, View fragmentView) {
-        mAdapter.clear();
-
-        // Get the student (if any) associated with this ID.
+    private void setStickersForStudent(long studentId, final View fragmentView) {
+        // Forget the previous student (and any requests made for it).
+        mRequests.cancelAll();
         mStudent = null;
-        if (studentId != Student.INVALID_ID) {
-            mStudent = mStudentManager.getStudent(studentId);
+        mAdapter.clear();
+        if (studentId == Student.INVALID_ID) {
+            displayStickers(fragmentView);
+            return;
         }
 
+        // Get the student associated with this ID, and display its stickers once loaded.
+        mRequests.add(mStudentManager.getStudentSnapshot(studentId,
+                new Callback<StudentSnapshot>() {
+                    @Override
+                    public void onResult(StudentSnapshot student) {
+                        mStudent = student;
+                        displayStickers(fragmentView);
+                    }
+                }));
+    }
+
+    // Displays the stickers of mStudent (as it is currently stored in memory).
+    private void displayStickers(View fragmentView) {
+        mAdapter.clear();
+
         if (mStudent == null) {
             Log.w(TAG, "invalid student ID");
         } else {
-            mStudent = mStudentManager.getStudent(studentId);
-
             // Get sticker count.
             int stickerCount = mStudent.getNumStickers();
 
@@ -197,9 +246,16 @@ public class StickerChartFragment extends Fragment {
                 sticker.setOnClickListener(new OnClickListener() {
                     @Override
                     public void onClick(View view) {
-                        mStudent.addSticker();
-                        mStudentManager.updateStudent(mStudent);
-                        setStickersForStudent(mStudent.getId());
+                        mRequests.add(mStudentManager.queueAddStickers(mStudent.getId(), 1,
+                                new Callback<Integer>() {
+                                    @Override
+                                    public void onResult(Integer numStickers) {
+                                        if (numStickers > -1) {
+                                            mStudent = mStudent.withNumStickers(numStickers);
+                                            displayStickers(StickerChartFragment.this.getView());
+                                        }
+                                    }
+                                }));
                     }
                 });
             }
@@ -13,10 +13,17 @@ public class Student {
      */
     public static final long INVALID_ID = -1;
 
+    /**
+     * The ID of the classroom that students belong to unless they are put in another one. This
+     * classroom always exists.
+     */
+    public static final long DEFAULT_CLASS_ID = 1;
+
     private long mId = INVALID_ID;
     private String mName = null;
     private String mImgName = null;
     private int mNumStickers = 0;
+    private long mClassId = DEFAULT_CLASS_ID;
 
     /**
      * Create an empty student object. The ID of the student will be set to {@link #INVALID_ID}.
@@ -126,6 +133,26 @@ public class Student {
         return this;
     }
 
+    /**
+     * Gets the ID of the classroom this student belongs to.
+     * 
+     * @return the ID of the student's classroom
+     */
+    public long getClassId() {
+        return mClassId;
+    }
+
+    /**
+     * Puts the student in the classroom with the given ID.
+     * 
+     * @param classId the ID of the classroom to set
+     * @return {@code this}, for chaining
+     */
+    public Student setClassId(long classId) {
+        mClassId = classId;
+        return this;
+    }
+
     /**
      * Adds a single sticker to the student's profile).
      * 
@@ -0,0 +1,41 @@
+package edu.mills.cs180a.pocketpoints;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.view.View;
+import android.widget.CursorAdapter;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
+
+/**
+ * A {@link CursorAdapter} of the students in a classroom that binds each row straight from a
+ * {@link StudentCursor} rather than from a list of objects, so only the cursor's window of rows is
+ * held in memory. The ID of each row is the student's ID, and row IDs are stable.
+ *
+ * <p>
+ * The cursors are loaded by a {@link StudentCursorLoader}, which queries the students again after
+ * each change made through the {@link StudentManager}; each new cursor should be swapped in with
+ * {@link #swapCursor(Cursor)}, which leaves the closing of the old cursor to the loader.
+ */
+abstract class StudentCursorAdapter extends CursorAdapter {
+    /**
+     * Creates a {@code StudentCursorAdapter} without a cursor.
+     *
+     * @param context the context in which the list is displayed
+     */
+    StudentCursorAdapter(Context context) {
+        super(context, null, 0); // The cursor is swapped, rather than requeried, on changes.
+    }
+
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+        bindView(view, (StudentCursor) cursor);
+    }
+
+    /**
+     * Fills in the given row with the student at the current position of the given cursor.
+     *
+     * @param view the row, as created by {@link #newView}
+     * @param studentCursor the cursor, moved to the student of the row
+     */
+    abstract void bindView(View view, StudentCursor studentCursor);
+}
@@ -0,0 +1,195 @@
+package edu.mills.cs180a.pocketpoints;
+
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import edu.mills.cs180a.pocketpoints.StudentManager.OnStudentsChangedListener;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
+
+/**
+ * A {@link android.content.Loader Loader} of a {@link StudentCursor} over the students in a
+ * classroom (see {@link StudentManager#queryStudents(long, String[])}), for use with a
+ * {@link StudentCursorAdapter}. The students are queried on a background thread. Because the
+ * loader is kept by the {@link android.app.LoaderManager LoaderManager} when the activity is
+ * recreated, such as when the device is rotated, the cursor is delivered again rather than
+ * queried again. The students are queried again only when the {@link StudentManager} reports a
+ * change that affects the loaded students: one to a student in the classroom (or moved out of it)
+ * in a column that was read or that orders the students. While the loader is paused (see
+ * {@link #setPaused(boolean)}), they are not queried again until it is resumed. The loader owns
+ * the cursors it delivers, and closes each one once it is replaced.
+ */
+class StudentCursorLoader extends AsyncTaskLoader<StudentCursor>
+        implements OnStudentsChangedListener {
+    private final long mClassId;
+    private final String[] mProjection;
+    private final int mLoadedFields; // The StudentManager.FIELD_* flags that affect the cursor.
+    private StudentCursor mStudentCursor; // The cursor delivered last, if any.
+    private boolean mLoading; // Whether students are being queried, which may predate a change.
+    private boolean mPaused;
+    private boolean mChangedWhilePaused;
+
+    /**
+     * Creates a {@code StudentCursorLoader}, which must be created on the main thread.
+     *
+     * @param context the context to use
+     * @param classId the ID of the classroom whose students to load
+     * @param projection the columns to read, such as
+     *        {@link StudentManager#PROJECTION_NAME_AND_IMAGE}
+     * @param paused whether the loader is initially paused
+     */
+    StudentCursorLoader(Context context, long classId, String[] projection, boolean paused) {
+        super(context);
+        mClassId = classId;
+        mProjection = projection;
+        mPaused = paused;
+
+        List<String> columns = Arrays.asList(projection);
+        int loadedFields = StudentManager.FIELD_NAME; // The students are ordered by name.
+        if (columns.contains(StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME)) {
+            loadedFields |= StudentManager.FIELD_IMAGE_NAME;
+        }
+        if (columns.contains(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS)) {
+            loadedFields |= StudentManager.FIELD_NUM_STICKERS;
+        }
+        mLoadedFields = loadedFields;
+        AsyncStudentManager.get(context).registerOnStudentsChangedListener(this);
+    }
+
+    /**
+     * Pauses or resumes the loader. While paused, the loader does not query the students when they
+     * change, but queries them as soon as it is resumed if they changed in the meantime.
+     *
+     * @param paused {@code true} to pause the loader, or {@code false} to resume it
+     */
+    void setPaused(boolean paused) {
+        mPaused = paused;
+        if (!paused && mChangedWhilePaused) {
+            mChangedWhilePaused = false;
+            onContentChanged();
+        }
+    }
+
+    @Override
+    public StudentCursor loadInBackground() {
+        return StudentManager.get(getContext()).queryStudents(mClassId, mProjection);
+    }
+
+    @Override
+    public void deliverResult(StudentCursor studentCursor) {
+        if (isReset()) {
+            if (studentCursor != null) {
+                studentCursor.close(); // The loader is no longer used.
+            }
+            return;
+        }
+        StudentCursor oldStudentCursor = mStudentCursor;
+        mStudentCursor = studentCursor;
+        mLoading = false;
+        if (isStarted()) {
+            super.deliverResult(studentCursor);
+        }
+        if (oldStudentCursor != null && oldStudentCursor != studentCursor) {
+            oldStudentCursor.close();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        if (mPaused) {
+            mChangedWhilePaused = true;
+        } else {
+            super.onContentChanged();
+        }
+    }
+
+    @Override
+    protected void onForceLoad() {
+        super.onForceLoad();
+        mLoading = true;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mStudentCursor != null) {
+            deliverResult(mStudentCursor); // Deliver the students already loaded at once.
+        }
+        if (mStudentCursor == null || takeContentChanged()) {
+            onContentChanged(); // Loads the students, unless the loader is paused.
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(StudentCursor studentCursor) {
+        if (studentCursor != null) {
+            studentCursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        onStopLoading();
+        AsyncStudentManager.get(getContext()).unregisterOnStudentsChangedListener(this);
+        if (mStudentCursor != null) {
+            mStudentCursor.close();
+            mStudentCursor = null;
+        }
+    }
+
+    @Override
+    public void onStudentInserted(Student student) {
+        if (student.getClassId() == mClassId) {
+            onContentChanged();
+        }
+    }
+
+    @Override
+    public void onStudentUpdated(Student student, int changedFields) {
+        if ((changedFields & StudentManager.FIELD_CLASS_ID) != 0) {
+            // The student was moved into this classroom, or perhaps out of it.
+            if (student.getClassId() == mClassId || isLoaded(student.getId())) {
+                onContentChanged();
+            }
+        } else if (student.getClassId() == mClassId && (changedFields & mLoadedFields) != 0) {
+            onContentChanged();
+        }
+    }
+
+    @Override
+    public void onStudentDeleted(long id) {
+        if (isLoaded(id)) {
+            onContentChanged();
+        }
+    }
+
+    // Returns whether the student with the given ID may be among the loaded students: whether it
+    // is in the cursor delivered last, or the students are being queried again.
+    private boolean isLoaded(long id) {
+        if (mStudentCursor == null || mLoading) {
+            return true;
+        }
+        int position = mStudentCursor.getPosition();
+        try {
+            for (mStudentCursor.moveToFirst(); !mStudentCursor.isAfterLast();
+                    mStudentCursor.moveToNext()) {
+                if (mStudentCursor.getId() == id) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mStudentCursor.moveToPosition(position);
+        }
+    }
+
+    @Override
+    public void onStudentsChanged() {
+        onContentChanged();
+    }
+}
@@ -1,11 +1,30 @@
 package edu.mills.cs180a.pocketpoints;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+import android.util.Log;
 import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.Transaction;
 
 /**
  * Class that manages all interactions with the {@code students} database in the PocketPoints app.
@@ -16,14 +35,202 @@ import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
  * All of the activities and fragments in the PocketPoints app should access the database through
  * this class. They should not (repeat: *NOT*) access the database implementation directly.
  *
+ * <p>
+ * A single connection to the database is opened the first time it is needed and is then held for
+ * the lifetime of the app, so that individual reads and writes do not pay the cost of reopening
+ * the database. When the system is low on memory, {@link #releaseMemory()} gives up the memory
+ * held by the cache and by SQLite without closing the connection, which cursors and queries on
+ * other threads may still be using.
+ *
+ * <p>
+ * The methods of this class may be called from any thread. Any number of threads may read from
+ * the database at the same time, including while another thread is writing to it; readers see the
+ * database as it was before the write began until the write is complete. Writes are serialized:
+ * only one thread writes to the database at a time, and every other writer waits for it to finish.
+ * Since every method may read or write the disk, the main thread should use the
+ * {@link AsyncStudentManager} instead.
+ *
+ * <p>
+ * Every student read from or written to the database is also kept in an in-memory cache, keyed by
+ * ID, so that {@link #getStudent(long)} usually doesn't need to read the database at all. Every
+ * write made through this class updates the cache as well as the database, so the cache never
+ * holds out-of-date students. Callers always receive their own copy of a cached student, which
+ * they are free to change.
+ *
+ * <p>
+ * Stickers can also be added and removed with {@link #queueAddStickers(long, int)} and
+ * {@link #queueRemoveStickers(long, int)}, which change the student in memory at once but write
+ * the change to the database later: the changes made to each student are combined, and written
+ * in a single transaction once no stickers have been added or removed for
+ * {@value #STICKER_FLUSH_DELAY_MILLIS} ms, or when {@link #flushStickers()} is called. Every
+ * read and write made through this class sees the queued changes: writes are made after them,
+ * and reads show the queued counts without writing them.
+ *
+ * <p>
+ * Students are divided into classrooms. Lists of students are read one classroom at a time (see
+ * {@link #getStudentRowsAfter(long, String[], String, long, int)}), and the classroom the user is
+ * working with is remembered across launches of the app (see {@link #getCurrentClassId()}).
+ *
+ * <p>
+ * Every change made through this class is also published to the registered
+ * {@link OnStudentsChangedListener}s, one student at a time, so that lists of students can apply
+ * just the change rather than reloading every student.
+ *
  * @author ajkwak@users.noreply.github.com (AJ Parmidge)
  */
 // Modeled after the RunManager class from the RunTracker app in "Android
 // Programming: The Big Nerd Ranch Guide".
 public class StudentManager {
+    private static final String TAG = "StudentManager";
+
+    /**
+     * The columns needed to list students by name and picture, for use with
+     * {@link #getStudentRowsAfter(long, String[], String, long, int)}.
+     */
+    public static final String[] PROJECTION_NAME_AND_IMAGE = {
+            StudentSQLiteOpenHelper.COLUMN_ID,
+            StudentSQLiteOpenHelper.COLUMN_NAME,
+            StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME };
+
+    /**
+     * The columns needed to list students by name and picture along with their sticker counts, for
+     * use with {@link #getStudentRowsAfter(long, String[], String, long, int)}.
+     */
+    public static final String[] PROJECTION_NAME_IMAGE_AND_STICKERS = {
+            StudentSQLiteOpenHelper.COLUMN_ID,
+            StudentSQLiteOpenHelper.COLUMN_NAME,
+            StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME,
+            StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS };
+
+    /**
+     * Flag passed to {@link OnStudentsChangedListener#onStudentUpdated(Student, int)} when the name
+     * of the student changed.
+     */
+    public static final int FIELD_NAME = 1;
+
+    /**
+     * Flag passed to {@link OnStudentsChangedListener#onStudentUpdated(Student, int)} when the
+     * image of the student changed.
+     */
+    public static final int FIELD_IMAGE_NAME = 1 << 1;
+
+    /**
+     * Flag passed to {@link OnStudentsChangedListener#onStudentUpdated(Student, int)} when the
+     * number of stickers of the student changed.
+     */
+    public static final int FIELD_NUM_STICKERS = 1 << 2;
+
+    /**
+     * Flag passed to {@link OnStudentsChangedListener#onStudentUpdated(Student, int)} when the
+     * student was moved to another classroom.
+     */
+    public static final int FIELD_CLASS_ID = 1 << 3;
+
+    private static final int ALL_FIELDS =
+            FIELD_NAME | FIELD_IMAGE_NAME | FIELD_NUM_STICKERS | FIELD_CLASS_ID;
+
+    private static final String PREFS_FILE = "classrooms";
+    private static final String PREF_CURRENT_CLASS_ID = "StudentManager.currentClassId";
+
+    /**
+     * The time, in milliseconds, for which stickers must not have been queued (see
+     * {@link #queueAddStickers(long, int)}) before the queued changes are written to the database.
+     */
+    public static final long STICKER_FLUSH_DELAY_MILLIS = 1000;
+
+    // The age after which sticker events are collapsed into a checkpoint event for each student.
+    private static final long STICKER_EVENT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    // The characters at which the search index splits names into words: every ASCII character
+    // other than a letter or digit.
+    private static final String SEARCH_WORD_SEPARATORS =
+            "[\\x00-\\x2f\\x3a-\\x40\\x5b-\\x60\\x7b-\\x7f]+";
+
+    // The columns read for the leaderboard: the student, and the student's rank within the
+    // classroom, which is counted from the leaderboard index.
+    private static final String[] LEADERBOARD_COLUMNS =
+            getLeaderboardColumns(new HashMap<Long, Integer>());
+
     private static StudentManager sStudentManager;
 
     private StudentSQLiteOpenHelper mHelper;
+    private SharedPreferences mPrefs;
+
+    // Held while writing to the database and then to the cache, so that the cache is updated in
+    // the same order as the database.
+    private final Object mWriteLock = new Object();
+
+    // Copies of the students most recently read from or written to the database, keyed by ID. The
+    // fields below are all guarded by the lock on mCache.
+    private final Map<Long, Student> mCache = new HashMap<Long, Student>();
+    private final Map<Long, StudentSnapshot> mSnapshots = new HashMap<Long, StudentSnapshot>();
+    private long mCacheGeneration; // Changed on every write, so stale reads are never cached.
+    private int mCacheHitCount;
+    private int mCacheMissCount;
+
+    // The stickers queued to be added to or removed from each student, keyed by ID, which have
+    // been applied to the cache but not yet to the database. Reads show the queued counts in place
+    // of those in the database, rather than writing them first. Also guarded by the lock on mCache,
+    // but only changed while holding mWriteLock.
+    private final Map<Long, QueuedStickers> mQueuedStickers = new HashMap<Long, QueuedStickers>();
+    private long mStickerFlushCount; // Guarded by the lock on mCache.
+    private ScheduledFuture<?> mScheduledStickerFlush; // Guarded by the lock on mCache.
+
+    // The thread that writes the queued stickers to the database; it stops when there is no work.
+    private final ScheduledThreadPoolExecutor mStickerFlushExecutor;
+
+    private final Runnable mStickerFlush = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flushStickers();
+            } catch (SQLException e) {
+                Log.e(TAG, "Unable to write the queued stickers", e);
+            }
+        }
+    };
+
+    private final List<OnStudentsChangedListener> mListeners =
+            new CopyOnWriteArrayList<OnStudentsChangedListener>();
+
+    /**
+     * Interface definition for the callbacks to be invoked when a student in the database is
+     * changed through the {@code StudentManager}. The callbacks are invoked on the thread that made
+     * the change, once the change has been made, in the order the changes were made.
+     */
+    public interface OnStudentsChangedListener {
+        /**
+         * Called when a student has been added to the database.
+         *
+         * @param student a copy of the student that was added
+         */
+        public void onStudentInserted(Student student);
+
+        /**
+         * Called when a student in the database has been changed.
+         *
+         * @param student a copy of the student, as it is now
+         * @param changedFields the fields of the student that may have changed, as a combination
+         *        of {@link StudentManager#FIELD_NAME}, {@link StudentManager#FIELD_IMAGE_NAME},
+         *        {@link StudentManager#FIELD_NUM_STICKERS} and
+         *        {@link StudentManager#FIELD_CLASS_ID}
+         */
+        public void onStudentUpdated(Student student, int changedFields);
+
+        /**
+         * Called when a student has been deleted from the database.
+         *
+         * @param id the ID of the student that was deleted
+         */
+        public void onStudentDeleted(long id);
+
+        /**
+         * Called when many students have been changed at once (for example, when a roster has
+         * been imported), instead of a call for each student. Any students read before this call
+         * may be out of date.
+         */
+        public void onStudentsChanged();
+    }
 
     /**
      * Gets the singleton instance of {@code StudentManager}. If no instance currently exists,
@@ -36,7 +243,7 @@ public class StudentManager {
         if (sStudentManager == null) {
             // Use the singleton application context to avoid leaking
             // activities.
-            return new StudentManager(context.getApplicationContext());
+            sStudentManager = new StudentManager(context.getApplicationContext());
         }
         return sStudentManager;
     }
@@ -58,6 +265,15 @@ public class StudentManager {
 
     private StudentManager(Context appContext) {
         mHelper = new StudentSQLiteOpenHelper(appContext);
+        mPrefs = appContext.getSharedPreferences(PREFS_FILE, Context.MODE_PRIVATE);
+        mStickerFlushExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "StudentManager sticker flush");
+            }
+        });
+        mStickerFlushExecutor.setKeepAliveTime(STICKER_FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        mStickerFlushExecutor.allowCoreThreadTimeOut(true);
     }
 
     /**
@@ -70,38 +286,481 @@ public class StudentManager {
      *         {@code false}
      */
     public boolean createStudent(Student student) {
-        return mHelper.insertStudent(student) > -1;
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            boolean created = mHelper.insertStudent(student) > -1;
+            if (created) {
+                writeToCache(student);
+                notifyStudentInserted(student);
+            }
+            return created;
+        }
     }
 
     /**
-     * Retrieves all of the students from the database.
+     * Adds all of the given students to the database in a single transaction, which is much faster
+     * than calling {@link #createStudent(Student)} for each student. The ID of each student that
+     * was added is changed to reflect the student's unique ID in the database; the ID of each
+     * student that could not be added is set to an invalid value.
      *
-     * @return a list of all students in the database
+     * @param students the students to add
+     * @return for each of the given students (in the same order), {@code true} if the student was
+     *         successfully created in the database; otherwise {@code false}
      */
-    public List<Student> getAllStudents() {
-        // Query the database for all students.
+    public boolean[] createStudents(List<Student> students) {
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            long[] studentIds = mHelper.insertStudents(students);
+            boolean[] created = new boolean[studentIds.length];
+            for (int i = 0; i < studentIds.length; i++) {
+                created[i] = studentIds[i] > -1;
+                if (created[i]) {
+                    writeToCache(students.get(i));
+                    notifyStudentInserted(students.get(i));
+                }
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Adds a classroom with the given name to the database.
+     *
+     * @param name the name of the classroom (must be a non-empty string)
+     * @return the new classroom, or {@code null} if it could not be added
+     */
+    public Classroom createClassroom(String name) {
+        long classId = mHelper.insertClassroom(name);
+        return classId > -1 ? new Classroom(classId, name) : null;
+    }
+
+    /**
+     * Retrieves all of the classrooms from the database, in alphabetical order (ignoring case).
+     *
+     * @return a list of all classrooms in the database
+     */
+    public List<Classroom> getClassrooms() {
         SQLiteDatabase db = mHelper.getReadableDatabase();
-        StudentCursor studentCursor = new StudentCursor(db.query(
-                StudentSQLiteOpenHelper.TABLE_STUDENTS, null, // All columns.
-                null, // No where (selection) clause.
+        Cursor cursor = db.query(StudentSQLiteOpenHelper.TABLE_CLASSROOMS, new String[] {
+                StudentSQLiteOpenHelper.COLUMN_ID, StudentSQLiteOpenHelper.COLUMN_NAME },
+                null, // All classrooms.
                 null, // No selection args.
                 null, // No grouping constraint.
                 null, // No 'having' constraint.
-                StudentSQLiteOpenHelper.COLUMN_NAME + " asc")); // Order by ascending student names.
+                StudentSQLiteOpenHelper.ORDER_BY_NAME); // Order by classroom names, ignoring case.
+
+        List<Classroom> classrooms = new ArrayList<Classroom>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            classrooms.add(new Classroom(cursor.getLong(0), cursor.getString(1)));
+        }
+        cursor.close();
+        return classrooms;
+    }
+
+    /**
+     * Gets the ID of the classroom the user is working with, which is remembered across launches
+     * of the app. Until one is chosen, this is {@link Student#DEFAULT_CLASS_ID}.
+     *
+     * @return the ID of the current classroom
+     */
+    public long getCurrentClassId() {
+        return mPrefs.getLong(PREF_CURRENT_CLASS_ID, Student.DEFAULT_CLASS_ID);
+    }
+
+    /**
+     * Sets the classroom the user is working with.
+     *
+     * @param classId the ID of the classroom
+     */
+    public void setCurrentClassId(long classId) {
+        mPrefs.edit().putLong(PREF_CURRENT_CLASS_ID, classId).apply();
+    }
+
+    /**
+     * Adds the students in the given CSV roster to the given classroom, in a single transaction
+     * (see {@link RosterImporter} for the format of the roster and the rules the students must
+     * follow). The roster is read one student at a time, so it may be of any size. If the roster
+     * cannot be read, no students are added. Listeners are notified once, with
+     * {@link OnStudentsChangedListener#onStudentsChanged()}, rather than once for each student.
+     *
+     * @param reader the reader of the roster
+     * @param classId the ID of the classroom to which to add the students
+     * @return the outcome of the import, including the records that were skipped
+     * @throws IOException if the roster could not be read
+     */
+    public RosterImporter.Result importRoster(Reader reader, long classId) throws IOException {
+        RosterImporter importer = new RosterImporter(reader, classId);
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            int numImported = mHelper.insertStudents(importer);
+            if (numImported > 0) {
+                synchronized (mCache) {
+                    mCacheGeneration++; // The new students are not cached until they are read.
+                }
+                notifyStudentsChanged();
+            }
+            return importer.getResult(numImported);
+        }
+    }
+
+    /**
+     * Copies the database, including any queued stickers, to the given file, which can later be
+     * passed to {@link #restoreDatabase(File, File)}. The copy is consistent: changes wait until it
+     * has been made.
+     *
+     * @param destination the file to which to copy the database
+     * @throws IOException if the database could not be copied
+     */
+    public void copyDatabaseTo(File destination) throws IOException {
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, so that they are copied.
+            mHelper.copyDatabaseTo(destination);
+        }
+    }
+
+    /**
+     * Replaces the database with one copied by {@link #copyDatabaseTo(File)}, possibly on another
+     * device, and points the students' images at the files of the same names in the given
+     * directory. The current classroom becomes {@link Student#DEFAULT_CLASS_ID}, which every
+     * database has. Listeners are notified with
+     * {@link OnStudentsChangedListener#onStudentsChanged()}.
+     *
+     * @param source the copy of the database
+     * @param imageDirectory the directory that holds the students' images on this device
+     * @throws IOException if the copy could not be read; the database is then unchanged
+     */
+    public void restoreDatabase(File source, File imageDirectory) throws IOException {
+        synchronized (mWriteLock) {
+            flushStickers();
+            synchronized (mCache) {
+                mCacheGeneration++;
+                mCache.clear();
+                mSnapshots.clear();
+            }
+            mHelper.replaceDatabase(source);
+            mHelper.moveImages(imageDirectory);
+            setCurrentClassId(Student.DEFAULT_CLASS_ID);
+            notifyStudentsChanged();
+        }
+        copyMigrationDataInBackground(); // The copy may have been made by an older version.
+    }
+
+    /**
+     * Retrieves all of the students from the database, in every classroom, in alphabetical order
+     * (ignoring case).
+     *
+     * @return a list of all students in the database
+     */
+    public List<Student> getAllStudents() {
+        return queryStudents(null, // No where (selection) clause.
+                null, // No selection args.
+                null); // No limit.
+    }
 
-        // Compile a list of all the students in the database.
+    /**
+     * Retrieves at most {@code limit} students in the given classroom from the database that come
+     * after the given student in alphabetical order (ignoring case). Students with the same name
+     * are ordered by ID. This allows a long list of students to be loaded one page at a time, each
+     * page starting just after the last student of the previous page; unlike paging by offset, the
+     * cost of loading a page does not grow with the number of pages before it, nor with the number
+     * of students in other classrooms.
+     *
+     * @param classId the ID of the classroom whose students to get
+     * @param lastName the name of the last student of the previous page, or {@code null} to get
+     *        the first page
+     * @param lastId the ID of the last student of the previous page (ignored if {@code lastName}
+     *        is {@code null})
+     * @param limit the maximum number of students to get
+     * @return the next page of students; if it contains fewer than {@code limit} students, there
+     *         are no more students after it
+     */
+    public List<Student> getStudentsAfter(long classId, String lastName, long lastId, int limit) {
+        long cacheGeneration = getCacheGeneration();
+        StudentCursor studentCursor = queryStudentsAfter(classId, null, // All columns.
+                lastName, lastId, limit);
+
+        // Compile a list of all the students in the page.
         List<Student> students = new ArrayList<Student>(studentCursor.getCount());
         while (studentCursor.moveToNext()) {
             students.add(studentCursor.getStudent());
         }
+        studentCursor.close();
+
+        readIntoCache(students, cacheGeneration);
+        return students;
+    }
 
-        // Close the cursor and the connection to the database.
+    /**
+     * Retrieves a page of students in the same way as
+     * {@link #getStudentsAfter(long, String, long, int)}, but reads only the given columns from
+     * the database, returning a compact {@link StudentRow} for each student. This is the preferred
+     * way to load students for display in a list.
+     *
+     * @param classId the ID of the classroom whose students to get
+     * @param projection the columns to read, such as {@link #PROJECTION_NAME_AND_IMAGE}; this
+     *        must include at least the ID and the name of the student
+     * @param lastName the name of the last student of the previous page, or {@code null} to get
+     *        the first page
+     * @param lastId the ID of the last student of the previous page (ignored if {@code lastName}
+     *        is {@code null})
+     * @param limit the maximum number of students to get
+     * @return the next page of students; if it contains fewer than {@code limit} students, there
+     *         are no more students after it
+     */
+    public List<StudentRow> getStudentRowsAfter(long classId, String[] projection, String lastName,
+            long lastId, int limit) {
+        StudentCursor studentCursor = queryStudentsAfter(classId, projection, lastName, lastId,
+                limit);
+
+        // Compile a list of all the students in the page.
+        List<StudentRow> rows = new ArrayList<StudentRow>(studentCursor.getCount());
+        while (studentCursor.moveToNext()) {
+            rows.add(studentCursor.getStudentRow());
+        }
         studentCursor.close();
-        db.close();
 
+        return rows;
+    }
+
+    /**
+     * Queries the given columns of every student in the given classroom, in alphabetical order
+     * (ignoring case), without reading the students into objects. The first window of rows is
+     * filled before this method returns, so it should be called off the main thread, as
+     * {@link StudentCursorLoader} does for the {@link StudentCursorAdapter}, which only binds the
+     * rows of the cursor it is given.
+     *
+     * @param classId the ID of the classroom whose students to query
+     * @param projection the columns to read, such as {@link #PROJECTION_NAME_AND_IMAGE}; this
+     *        must include at least the ID and the name of the student
+     * @return a cursor over the students, which the caller must close
+     */
+    public StudentCursor queryStudents(long classId, String[] projection) {
+        StudentCursor studentCursor = queryStudentCursor(projection,
+                StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = ?",
+                new String[] { String.valueOf(classId) },
+                null); // No limit.
+        studentCursor.getCount(); // Fill the window now, rather than on the main thread.
+        return studentCursor;
+    }
+
+    /**
+     * Queries the given columns of the students matching the given selection, without reading the
+     * students into objects.
+     *
+     * @param projection the columns to read, or {@code null} to read all columns
+     * @param selection the SQL {@code where} clause, or {@code null} to query every student
+     * @param selectionArgs the values of the {@code ?} parameters of the selection
+     * @param sortOrder the SQL {@code order by} clause, or {@code null} to order the students
+     *        alphabetically (ignoring case)
+     * @return a cursor over the students, which the caller must close
+     */
+    public StudentCursor query(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        Map<Long, Integer> queuedNumStickers = getQueuedNumStickers(Student.INVALID_ID);
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        return new StudentCursor(db.query(
+                StudentSQLiteOpenHelper.TABLE_STUDENTS, projection,
+                selection,
+                selectionArgs,
+                null, // No grouping constraint.
+                null, // No 'having' constraint.
+                sortOrder == null ? StudentSQLiteOpenHelper.ORDER_BY_NAME : sortOrder),
+                queuedNumStickers);
+    }
+
+    /**
+     * Retrieves at most {@code limit} students in the given classroom whose names match the given
+     * search prefix, in alphabetical order (ignoring case). A name matches if, for each word of
+     * the prefix, one of the words of the name starts with it (ignoring the case of ASCII
+     * letters), so "ph go" and "gor" both find "Phillipa Gordon". The words are looked up in the
+     * {@link StudentSQLiteOpenHelper#TABLE_STUDENT_NAME_SEARCH} index, so only the matching
+     * students are read.
+     *
+     * @param classId the ID of the classroom whose students to search
+     * @param prefix the words with which the words of the students' names should start
+     * @param limit the maximum number of students to get
+     * @return the matching students; if the prefix has no words, there are none
+     */
+    public List<Student> searchStudents(long classId, String prefix, int limit) {
+        long cacheGeneration = getCacheGeneration();
+        StudentCursor studentCursor = queryStudentsMatching(classId, null, // All columns.
+                prefix, limit);
+        if (studentCursor == null) {
+            return new ArrayList<Student>();
+        }
+
+        List<Student> students = new ArrayList<Student>(studentCursor.getCount());
+        while (studentCursor.moveToNext()) {
+            students.add(studentCursor.getStudent());
+        }
+        studentCursor.close();
+
+        readIntoCache(students, cacheGeneration);
         return students;
     }
 
+    /**
+     * Searches for students in the same way as {@link #searchStudents(long, String, int)}, but
+     * reads only the given columns from the database, returning a compact {@link StudentRow} for
+     * each student.
+     *
+     * @param classId the ID of the classroom whose students to search
+     * @param projection the columns to read, such as {@link #PROJECTION_NAME_AND_IMAGE}; this
+     *        must include at least the ID and the name of the student
+     * @param prefix the words with which the words of the students' names should start
+     * @param limit the maximum number of students to get
+     * @return the matching students; if the prefix has no words, there are none
+     */
+    public List<StudentRow> searchStudentRows(long classId, String[] projection, String prefix,
+            int limit) {
+        StudentCursor studentCursor = queryStudentsMatching(classId, projection, prefix, limit);
+        if (studentCursor == null) {
+            return new ArrayList<StudentRow>();
+        }
+
+        List<StudentRow> rows = new ArrayList<StudentRow>(studentCursor.getCount());
+        while (studentCursor.moveToNext()) {
+            rows.add(studentCursor.getStudentRow());
+        }
+        studentCursor.close();
+
+        return rows;
+    }
+
+    /**
+     * Searches for students in the same way as {@link #searchStudents(long, String, int)}, but
+     * returns a cursor over the given columns instead of reading the students into objects.
+     *
+     * @param classId the ID of the classroom whose students to search
+     * @param projection the columns to read, or {@code null} to read all columns
+     * @param prefix the words with which the words of the students' names should start
+     * @param limit the maximum number of students to get
+     * @return a cursor over the matching students, which the caller must close; if the prefix has
+     *         no words, there are none
+     */
+    public StudentCursor searchStudentCursor(long classId, String[] projection, String prefix,
+            int limit) {
+        StudentCursor studentCursor = queryStudentsMatching(classId, projection, prefix, limit);
+        if (studentCursor == null) {
+            return query(projection, "0", null, null); // Match no students.
+        }
+        return studentCursor;
+    }
+
+    /**
+     * Retrieves the {@code n} students in the given classroom with the most stickers, from the
+     * most to the fewest, with their ranks. Students with the same number of stickers share a rank
+     * and are listed by name. Both the students and their ranks are read from the
+     * {@link StudentSQLiteOpenHelper#INDEX_STUDENTS_CLASS_ID_NUM_STICKERS} index, so the cost of
+     * the query depends on {@code n}, not on the number of students. While stickers are queued for
+     * students of the classroom, the students are ranked by their queued counts instead, which
+     * means scanning the whole classroom until the stickers are written.
+     *
+     * @param classId the ID of the classroom whose leaders to get
+     * @param n the maximum number of students to get
+     * @return the leaders of the classroom
+     */
+    public List<LeaderboardEntry> getTopStudents(long classId, int n) {
+        Map<Long, Integer> queuedNumStickers = getQueuedNumStickers(classId);
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        StudentCursor studentCursor = new StudentCursor(db.query(
+                StudentSQLiteOpenHelper.TABLE_STUDENTS, queuedNumStickers.isEmpty()
+                        ? LEADERBOARD_COLUMNS : getLeaderboardColumns(queuedNumStickers),
+                StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = ?",
+                new String[] { String.valueOf(classId) },
+                null, // No grouping constraint.
+                null, // No 'having' constraint.
+                StudentSQLiteOpenHelper.ORDER_BY_NUM_STICKERS, // Order by stickers, then names.
+                String.valueOf(n)));
+
+        int rankIndex = LEADERBOARD_COLUMNS.length - 1;
+        List<LeaderboardEntry> leaders = new ArrayList<LeaderboardEntry>(studentCursor.getCount());
+        while (studentCursor.moveToNext()) {
+            leaders.add(new LeaderboardEntry(studentCursor.getInt(rankIndex),
+                    studentCursor.getStudentRow()));
+        }
+        studentCursor.close();
+        return leaders;
+    }
+
+    /**
+     * Retrieves statistics on the stickers of the students in the given classroom. The statistics
+     * are kept up to date by the database as stickers change, so they are read rather than
+     * computed: the cost of the query depends on the number of different numbers of stickers the
+     * students have, not on the number of students. Stickers queued for students of the classroom
+     * count as though they had been written.
+     *
+     * @param classId the ID of the classroom
+     * @return the statistics of the classroom
+     */
+    public ClassStats getClassStats(long classId) {
+        Map<Long, Integer> queuedNumStickers = getQueuedNumStickers(classId);
+
+        // A single query, so that the totals, the histogram, and the written counts of the students
+        // with queued stickers (the rows with no totals) are read from the same snapshot.
+        String sql = "select stats." + StudentSQLiteOpenHelper.COLUMN_NUM_STUDENTS
+                + ", stats." + StudentSQLiteOpenHelper.COLUMN_TOTAL_STICKERS + ", histogram."
+                + StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS + ", histogram."
+                + StudentSQLiteOpenHelper.COLUMN_NUM_STUDENTS + " from "
+                + StudentSQLiteOpenHelper.TABLE_CLASS_STATS + " as stats join "
+                + StudentSQLiteOpenHelper.TABLE_STICKER_HISTOGRAM + " as histogram on stats."
+                + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = histogram."
+                + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " where stats."
+                + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = ?";
+        if (!queuedNumStickers.isEmpty()) {
+            sql += " union all select null, null, " + StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS
+                    + ", " + StudentSQLiteOpenHelper.COLUMN_ID + " from "
+                    + StudentSQLiteOpenHelper.TABLE_STUDENTS + " where "
+                    + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = ? and "
+                    + StudentSQLiteOpenHelper.COLUMN_ID + " in ("
+                    + TextUtils.join(", ", queuedNumStickers.keySet()) + ")";
+        }
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery(sql, queuedNumStickers.isEmpty()
+                ? new String[] { String.valueOf(classId) }
+                : new String[] { String.valueOf(classId), String.valueOf(classId) });
+
+        int numStudents = 0;
+        long totalStickers = 0;
+        SortedMap<Integer, Integer> histogram = new TreeMap<Integer, Integer>();
+        long queuedStickers = 0;
+        Map<Integer, Integer> histogramChanges = new HashMap<Integer, Integer>();
+        while (cursor.moveToNext()) {
+            if (cursor.isNull(0)) {
+                // Move the student from its written count to its queued count.
+                int writtenNumStickers = cursor.getInt(2);
+                int numStickers = queuedNumStickers.get(cursor.getLong(3));
+                addToCount(histogramChanges, writtenNumStickers, -1);
+                addToCount(histogramChanges, numStickers, 1);
+                queuedStickers += numStickers - writtenNumStickers;
+                continue;
+            }
+            numStudents = cursor.getInt(0);
+            totalStickers = cursor.getLong(1);
+            histogram.put(cursor.getInt(2), cursor.getInt(3));
+        }
+        cursor.close();
+        for (Map.Entry<Integer, Integer> change : histogramChanges.entrySet()) {
+            addToCount(histogram, change.getKey(), change.getValue());
+        }
+        return new ClassStats(numStudents, totalStickers + queuedStickers, histogram);
+    }
+
+    /**
+     * Checks that the statistics returned by {@link #getClassStats(long)} match the students, and
+     * rebuilds them from the students if they do not (see
+     * {@link StudentSQLiteOpenHelper#verifyClassStats()}). This reads every student, so it should
+     * only be done in the background.
+     *
+     * @return {@code true} if the statistics were correct, or {@code false} if they were rebuilt
+     */
+    public boolean verifyClassStats() {
+        synchronized (mWriteLock) {
+            flushStickers();
+            return mHelper.verifyClassStats();
+        }
+    }
+
     /**
      * Retrieves the student with the given ID from the database.
      *
@@ -110,7 +769,19 @@ public class StudentManager {
      *         ID in the database
      */
     public Student getStudent(long id) {
+        long cacheGeneration;
+        synchronized (mCache) {
+            Student cachedStudent = mCache.get(id);
+            if (cachedStudent != null) {
+                mCacheHitCount++;
+                return copyOf(cachedStudent);
+            }
+            mCacheMissCount++;
+            cacheGeneration = mCacheGeneration;
+        }
+
         // Query the database for the desired student.
+        Map<Long, Integer> queuedNumStickers = getQueuedNumStickers(Student.INVALID_ID);
         SQLiteDatabase db = mHelper.getReadableDatabase();
         StudentCursor studentCursor = new StudentCursor(db.query(
                 StudentSQLiteOpenHelper.TABLE_STUDENTS, null, // All columns.
@@ -119,7 +790,8 @@ public class StudentManager {
                 null, // No grouping constraint.
                 null, // No 'having' constraint.
                 null, // No ordering constraint.
-                "1")); // Limit the result to 1 row (there should only be 1).
+                "1"), // Limit the result to 1 row (there should only be 1).
+                queuedNumStickers);
 
         // Get the desired student, if there is any.
         Student student = null;
@@ -127,13 +799,100 @@ public class StudentManager {
             student = studentCursor.getStudent();
         }
 
-        // Close the cursor and the connection to the database.
+        // Close the cursor (the connection to the database stays open for later calls).
         studentCursor.close();
-        db.close();
 
+        if (student != null) {
+            List<Student> students = new ArrayList<Student>(1);
+            students.add(student);
+            readIntoCache(students, cacheGeneration);
+        }
         return student;
     }
 
+    /**
+     * Gets an immutable snapshot of the student with the given ID, as it is in the database. The
+     * same snapshot is returned until the student changes, so it can be shared between threads
+     * without copying or locking. To change the student, pass a snapshot derived from this one to
+     * {@link #compareAndSetStudent(StudentSnapshot)}.
+     *
+     * @param id the ID of the student to get
+     * @return the snapshot of the student with the given ID, or {@code null} if there is no student
+     *         with the given ID in the database
+     */
+    public StudentSnapshot getStudentSnapshot(long id) {
+        long cacheGeneration;
+        synchronized (mCache) {
+            StudentSnapshot snapshot = mSnapshots.get(id);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            cacheGeneration = mCacheGeneration;
+        }
+
+        // Query the database for the student, including its version. Writing the student's
+        // queued stickers will increment its version, so the snapshot is given that version,
+        // unless they were written during the read, in which case it is read again.
+        StudentSnapshot snapshot = null;
+        long stickerFlushCount;
+        do {
+            boolean stickersQueued;
+            synchronized (mCache) {
+                stickerFlushCount = mStickerFlushCount;
+                stickersQueued = mQueuedStickers.containsKey(id);
+            }
+            StudentCursor studentCursor = queryStudentCursor(null, // All columns.
+                    StudentSQLiteOpenHelper.COLUMN_ID + " = ?",
+                    new String[] { String.valueOf(id) }, "1");
+            if (studentCursor.moveToFirst()) {
+                snapshot = studentCursor.getSnapshot();
+                if (stickersQueued) {
+                    snapshot = StudentSnapshot.of(snapshot.toStudent(), snapshot.getVersion() + 1);
+                }
+            }
+            studentCursor.close();
+        } while (stickerFlushCount != getStickerFlushCount());
+
+        if (snapshot != null) {
+            synchronized (mCache) {
+                // Unless the database was written to during the read, share the snapshot.
+                if (cacheGeneration == mCacheGeneration) {
+                    mSnapshots.put(id, snapshot);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Updates the student in the database to the values of the given snapshot, but only if the
+     * student has not changed since the snapshot (or the snapshot it was derived from) was read
+     * with {@link #getStudentSnapshot(long)}. Otherwise, the update is based on a stale copy of the
+     * student and is not made: the caller should get a new snapshot and decide what to do.
+     *
+     * @param snapshot the updated snapshot of the student
+     * @return the snapshot of the updated student, with its new version, or {@code null} if the
+     *         student was changed or deleted since the given snapshot was read
+     */
+    public StudentSnapshot compareAndSetStudent(StudentSnapshot snapshot) {
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, so that they are compared.
+            Student student = snapshot.toStudent();
+            if (mHelper.updateStudentIfVersion(student, snapshot.getVersion()) == 0) {
+                removeFromCache(student.getId());
+                return null;
+            }
+
+            StudentSnapshot updatedSnapshot =
+                    StudentSnapshot.of(student, snapshot.getVersion() + 1);
+            notifyStudentUpdated(student, writeToCache(student));
+            synchronized (mCache) {
+                mSnapshots.put(student.getId(), updatedSnapshot);
+            }
+            return updatedSnapshot;
+        }
+    }
+
     /**
      * Updates the values associated with the given student in the database.
      *
@@ -142,7 +901,182 @@ public class StudentManager {
      *         {@code false}
      */
     public boolean updateStudent(Student student) {
-        return mHelper.updateStudent(student) != 0;
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            boolean updated = mHelper.updateStudent(student) != 0;
+            if (updated) {
+                notifyStudentUpdated(student, writeToCache(student));
+            } else {
+                removeFromCache(student.getId());
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * Updates the values associated with all of the given students in the database in a single
+     * transaction.
+     *
+     * @param students the students to update
+     * @return for each of the given students (in the same order), {@code true} if the student was
+     *         successfully updated in the database; otherwise {@code false}
+     */
+    public boolean[] updateStudents(List<Student> students) {
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            boolean[] updated = toSucceeded(mHelper.updateStudents(students));
+            for (int i = 0; i < updated.length; i++) {
+                if (updated[i]) {
+                    notifyStudentUpdated(students.get(i), writeToCache(students.get(i)));
+                } else {
+                    removeFromCache(students.get(i).getId());
+                }
+            }
+            return updated;
+        }
+    }
+
+    /**
+     * Adds the given number of stickers to the student with the given ID. The change is made
+     * directly in the database, so only the student's sticker count is written, and it is never
+     * based on an out-of-date copy of the student.
+     *
+     * @param id the ID of the student to whom to add stickers
+     * @param numStickers the number of stickers to add (must be nonnegative)
+     * @return the student's new number of stickers, or {@code -1} if there is no student with the
+     *         given ID in the database
+     */
+    public int addStickers(long id, int numStickers) {
+        assert numStickers >= 0 : "Number of stickers to add cannot be negative.";
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            int newNumStickers = mHelper.addStickers(id, numStickers);
+            notifyNumStickersUpdated(id, newNumStickers,
+                    writeNumStickersToCache(id, newNumStickers));
+            return newNumStickers;
+        }
+    }
+
+    /**
+     * Removes the given number of stickers from the student with the given ID. The change is made
+     * directly in the database, and is not made at all if the student does not have enough
+     * stickers to remove.
+     *
+     * @param id the ID of the student from whom to remove stickers
+     * @param numStickers the number of stickers to remove (must be nonnegative)
+     * @return the student's new number of stickers, or {@code -1} if there is no student with the
+     *         given ID in the database or the student has fewer than {@code numStickers} stickers
+     */
+    public int removeStickers(long id, int numStickers) {
+        assert numStickers >= 0 : "Number of stickers to remove cannot be negative.";
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            int newNumStickers = mHelper.addStickers(id, -numStickers);
+            notifyNumStickersUpdated(id, newNumStickers,
+                    writeNumStickersToCache(id, newNumStickers));
+            return newNumStickers;
+        }
+    }
+
+    /**
+     * Queues the given number of stickers to be added to the student with the given ID. The
+     * student is changed in memory at once, so that it can be read back immediately, but the
+     * change is written to the database later, together with any other queued changes (see
+     * {@link StudentManager}). This makes repeatedly adding stickers much cheaper than
+     * {@link #addStickers(long, int)}. The database is read only if the student is not cached.
+     *
+     * @param id the ID of the student to whom to add stickers
+     * @param numStickers the number of stickers to add (must be nonnegative)
+     * @return the student's new number of stickers, or {@code -1} if there is no student with the
+     *         given ID in the database
+     */
+    public int queueAddStickers(long id, int numStickers) {
+        assert numStickers >= 0 : "Number of stickers to add cannot be negative.";
+        return queueStickers(id, numStickers);
+    }
+
+    /**
+     * Queues the given number of stickers to be removed from the student with the given ID, in the
+     * same way as {@link #queueAddStickers(long, int)}. Nothing is queued if the student does not
+     * have enough stickers to remove.
+     *
+     * @param id the ID of the student from whom to remove stickers
+     * @param numStickers the number of stickers to remove (must be nonnegative)
+     * @return the student's new number of stickers, or {@code -1} if there is no student with the
+     *         given ID in the database or the student has fewer than {@code numStickers} stickers
+     */
+    public int queueRemoveStickers(long id, int numStickers) {
+        assert numStickers >= 0 : "Number of stickers to remove cannot be negative.";
+        return queueStickers(id, -numStickers);
+    }
+
+    /**
+     * Writes the stickers queued by {@link #queueAddStickers(long, int)} and
+     * {@link #queueRemoveStickers(long, int)} to the database in a single transaction, without
+     * waiting for them to be written later. This should be called whenever the app may be about to
+     * be killed (for example, when the activity is paused), so that no queued stickers are lost.
+     */
+    public void flushStickers() {
+        synchronized (mWriteLock) {
+            Map<Long, QueuedStickers> queuedStickers;
+            synchronized (mCache) {
+                if (mScheduledStickerFlush != null) {
+                    mScheduledStickerFlush.cancel(false);
+                    mScheduledStickerFlush = null;
+                }
+                if (mQueuedStickers.isEmpty()) {
+                    return;
+                }
+                queuedStickers = new HashMap<Long, QueuedStickers>(mQueuedStickers);
+            }
+
+            long[] ids = new long[queuedStickers.size()];
+            int[] numStickers = new int[ids.length];
+            int i = 0;
+            for (Map.Entry<Long, QueuedStickers> entry : queuedStickers.entrySet()) {
+                ids[i] = entry.getKey();
+                numStickers[i] = entry.getValue().mChange;
+                i++;
+            }
+            // If this throws, the transaction is rolled back, and the stickers stay queued.
+            int[] numStudentsUpdated = mHelper.addStickers(ids, numStickers);
+
+            synchronized (mCache) {
+                mQueuedStickers.clear();
+                mStickerFlushCount++;
+            }
+            for (i = 0; i < ids.length; i++) {
+                if (numStudentsUpdated[i] == 0) {
+                    // The student was deleted, or left with too few stickers to remove, behind
+                    // this class's back, so the cached count was never written: read it again.
+                    removeFromCache(ids[i]);
+                    Student student = getStudent(ids[i]);
+                    if (student == null) {
+                        notifyStudentDeleted(ids[i]);
+                    } else {
+                        notifyStudentUpdated(student, FIELD_NUM_STICKERS);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all of the stickers from the student with the given ID.
+     *
+     * @param id the ID of the student whose stickers to remove
+     * @return {@code true} if the student's stickers were successfully removed; otherwise
+     *         {@code false}
+     */
+    public boolean clearStickers(long id) {
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            boolean cleared = mHelper.clearStickers(id) != 0;
+            int newNumStickers = cleared ? 0 : -1;
+            notifyNumStickersUpdated(id, newNumStickers,
+                    writeNumStickersToCache(id, newNumStickers));
+            return cleared;
+        }
     }
 
     /**
@@ -153,6 +1087,525 @@ public class StudentManager {
      *         {@code false}
      */
     public boolean deleteStudent(long id) {
-        return mHelper.deleteStudent(id) != 0;
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            boolean deleted = mHelper.deleteStudent(id) != 0;
+            removeFromCache(id);
+            if (deleted) {
+                notifyStudentDeleted(id);
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * Deletes the students with the given IDs from the database in a single transaction.
+     *
+     * @param ids the IDs of the students to delete
+     * @return for each of the given IDs (in the same order), {@code true} if the student was
+     *         successfully deleted from the database; otherwise {@code false}
+     */
+    public boolean[] deleteStudents(long[] ids) {
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            boolean[] deleted = toSucceeded(mHelper.deleteStudents(ids));
+            for (int i = 0; i < ids.length; i++) {
+                removeFromCache(ids[i]);
+                if (deleted[i]) {
+                    notifyStudentDeleted(ids[i]);
+                }
+            }
+            return deleted;
+        }
+    }
+
+    /**
+     * Makes all of the writes of the given transaction, which may use any of the methods of this
+     * {@code StudentManager}, in a single database transaction (see
+     * {@link StudentSQLiteOpenHelper#runInTransaction(Transaction)}). No other thread can write
+     * until it is done. The listeners are notified of each change as it is made; if the
+     * transaction fails, they are then notified that the students changed, because the changes
+     * were rolled back.
+     *
+     * @param transaction the transaction to run
+     * @return the result of the transaction
+     * @throws E if the transaction failed, in which case all of its writes were rolled back
+     */
+    public <T, E extends Exception> T runInTransaction(Transaction<T, E> transaction) throws E {
+        synchronized (mWriteLock) {
+            flushStickers(); // Queued stickers are written first, to keep the writes in order.
+            boolean committed = false;
+            try {
+                T result = mHelper.runInTransaction(transaction);
+                committed = true;
+                return result;
+            } finally {
+                if (!committed) {
+                    // The cache may hold some of the changes that were rolled back.
+                    synchronized (mCache) {
+                        mCacheGeneration++;
+                        mCache.clear();
+                        mSnapshots.clear();
+                    }
+                    notifyStudentsChanged();
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a listener to be notified of every change made to the students in the database
+     * through this {@code StudentManager}.
+     *
+     * @param listener the listener to register
+     */
+    public void registerOnStudentsChangedListener(OnStudentsChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener registered with
+     * {@link #registerOnStudentsChangedListener(OnStudentsChangedListener)}.
+     *
+     * @param listener the listener to unregister
+     */
+    public void unregisterOnStudentsChangedListener(OnStudentsChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Gets the number of times {@link #getStudent(long)} has found the requested student in the
+     * in-memory cache, without reading the database.
+     *
+     * @return the number of cache hits so far
+     */
+    public int getCacheHitCount() {
+        synchronized (mCache) {
+            return mCacheHitCount;
+        }
+    }
+
+    /**
+     * Gets the number of times {@link #getStudent(long)} has had to read the requested student from
+     * the database, because it was not in the in-memory cache.
+     *
+     * @return the number of cache misses so far
+     */
+    public int getCacheMissCount() {
+        synchronized (mCache) {
+            return mCacheMissCount;
+        }
+    }
+
+    /**
+     * Copies the data that the last upgrade of the database left to copy on a background thread
+     * (see {@link StudentSQLiteOpenHelper#copyMigrationData()}). The students can be read and
+     * changed while it is being copied. This should be called when the app starts.
+     */
+    public void copyMigrationDataInBackground() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.copyMigrationData();
+                } catch (SQLException e) {
+                    Log.w(TAG, "Unable to copy the data of the upgraded database.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves recent changes from the database's write-ahead log into the database itself on a
+     * background thread, so that later reads don't have to consult a long log. Sticker events
+     * older than a month are compacted first, and, if the database has been upgraded or restored
+     * since they were last checked, the class statistics are checked (see
+     * {@link StudentSQLiteOpenHelper#isClassStatsCheckDue()}). This should be called when the app
+     * is idle, for example when it is paused.
+     */
+    public void checkpointInBackground() {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.compactStickerEvents(
+                            System.currentTimeMillis() - STICKER_EVENT_RETENTION_MILLIS);
+                    if (mHelper.isClassStatsCheckDue() && !verifyClassStats()) {
+                        Log.w(TAG, "The class statistics did not match the students.");
+                    }
+                    mHelper.checkpoint();
+                } catch (SQLException e) {
+                    Log.w(TAG, "Unable to checkpoint the database.", e);
+                }
+            }
+        });
+    }
+
+    // Queries the database for the students matching the given selection, in alphabetical order.
+    private List<Student> queryStudents(String selection, String[] selectionArgs, String limit) {
+        long cacheGeneration = getCacheGeneration();
+        StudentCursor studentCursor = queryStudentCursor(null, // All columns.
+                selection, selectionArgs, limit);
+
+        // Compile a list of all the matching students.
+        List<Student> students = new ArrayList<Student>(studentCursor.getCount());
+        while (studentCursor.moveToNext()) {
+            students.add(studentCursor.getStudent());
+        }
+
+        // Close the cursor (the connection to the database stays open for later calls).
+        studentCursor.close();
+
+        readIntoCache(students, cacheGeneration);
+        return students;
+    }
+
+    // Queries the database for the given columns of the page of students in the given classroom
+    // that comes after the given student, in alphabetical order.
+    private StudentCursor queryStudentsAfter(long classId, String[] projection, String lastName,
+            long lastId, int limit) {
+        String classSelection = StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = ?";
+        if (lastName == null) {
+            return queryStudentCursor(projection, classSelection,
+                    new String[] { String.valueOf(classId) }, String.valueOf(limit));
+        }
+
+        // The conditions on the classroom and the name start the scan of the classroom and name
+        // index at the last student's name.
+        String nameColumn = StudentSQLiteOpenHelper.COLUMN_NAME + " collate nocase";
+        return queryStudentCursor(projection, classSelection + " and " + nameColumn + " >= ? and ("
+                + nameColumn + " > ? or " + StudentSQLiteOpenHelper.COLUMN_ID + " > ?)",
+                new String[] { String.valueOf(classId), lastName, lastName,
+                        String.valueOf(lastId) },
+                String.valueOf(limit));
+    }
+
+    // Queries the students of the given classroom whose names match the given search prefix, or
+    // returns null if the prefix has no words.
+    private StudentCursor queryStudentsMatching(long classId, String[] projection, String prefix,
+            int limit) {
+        // Make each word of the prefix a prefix query. The separators include every character
+        // that has a meaning in full-text queries.
+        StringBuilder match = new StringBuilder();
+        for (String word : prefix.split(SEARCH_WORD_SEPARATORS)) {
+            if (!word.isEmpty()) {
+                match.append(match.length() > 0 ? " " : "").append(word).append('*');
+            }
+        }
+        if (match.length() == 0) {
+            return null;
+        }
+
+        // The matching students are found in the search index and then read by ID.
+        return queryStudentCursor(projection, StudentSQLiteOpenHelper.COLUMN_CLASS_ID
+                + " = ? and " + StudentSQLiteOpenHelper.COLUMN_ID + " in (select docid from "
+                + StudentSQLiteOpenHelper.TABLE_STUDENT_NAME_SEARCH + " where "
+                + StudentSQLiteOpenHelper.TABLE_STUDENT_NAME_SEARCH + " match ?)",
+                new String[] { String.valueOf(classId), match.toString() },
+                String.valueOf(limit));
+    }
+
+    // Queries the database for the given columns of the students matching the given selection, in
+    // alphabetical order.
+    private StudentCursor queryStudentCursor(String[] projection, String selection,
+            String[] selectionArgs, String limit) {
+        Map<Long, Integer> queuedNumStickers = getQueuedNumStickers(Student.INVALID_ID);
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        return new StudentCursor(db.query(
+                StudentSQLiteOpenHelper.TABLE_STUDENTS, projection,
+                selection,
+                selectionArgs,
+                null, // No grouping constraint.
+                null, // No 'having' constraint.
+                StudentSQLiteOpenHelper.ORDER_BY_NAME, // Order by student names, ignoring case.
+                limit), queuedNumStickers);
+    }
+
+    /**
+     * Empties the in-memory cache of students and asks SQLite to release the memory it can, such as
+     * its page caches. The connection to the database stays open, so it is safe to call this method
+     * while cursors or queries on other threads are still using it (for example, when the system is
+     * low on memory).
+     */
+    public void releaseMemory() {
+        synchronized (mWriteLock) {
+            flushStickers(); // The cache is the only other record of the queued stickers.
+            synchronized (mCache) {
+                mCacheGeneration++;
+                mCache.clear();
+                mSnapshots.clear();
+            }
+        }
+        SQLiteDatabase.releaseMemory();
+    }
+
+    /**
+     * Closes the connection to the database and empties the in-memory cache of students, releasing
+     * the memory held by them. The connection is reopened automatically the next time the database
+     * is accessed, but any cursor still open on it can no longer be read, so this method should only
+     * be called when no cursors or reads are outstanding (for example, at the end of a test). When
+     * memory is low, call {@link #releaseMemory()} instead.
+     */
+    public void closeDatabase() {
+        synchronized (mWriteLock) {
+            flushStickers(); // The cache is the only other record of the queued stickers.
+            synchronized (mCache) {
+                mCacheGeneration++;
+                mCache.clear();
+                mSnapshots.clear();
+            }
+        }
+        mHelper.close();
+    }
+
+    // Applies the given change to the sticker count of the student with the given ID in memory,
+    // and queues it to be written to the database.
+    private int queueStickers(long id, int numStickers) {
+        synchronized (mWriteLock) {
+            Student student = getStudent(id); // Only reads the database if not cached.
+            if (student == null || student.getNumStickers() + numStickers < 0) {
+                return -1;
+            }
+            int newNumStickers = student.getNumStickers() + numStickers;
+
+            synchronized (mCache) {
+                QueuedStickers queuedStickers = mQueuedStickers.get(id);
+                int change = queuedStickers == null ? numStickers
+                        : queuedStickers.mChange + numStickers;
+                mQueuedStickers.put(id,
+                        new QueuedStickers(student.getClassId(), newNumStickers, change));
+
+                // Wait for the stickers to stop changing before writing them.
+                if (mScheduledStickerFlush != null) {
+                    mScheduledStickerFlush.cancel(false);
+                }
+                mScheduledStickerFlush = mStickerFlushExecutor.schedule(mStickerFlush,
+                        STICKER_FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            notifyNumStickersUpdated(id, newNumStickers,
+                    writeNumStickersToCache(id, newNumStickers));
+            return newNumStickers;
+        }
+    }
+
+    // Returns the numbers of stickers the students of the given classroom (or of every classroom,
+    // if the ID is invalid) will have once their queued stickers are written, keyed by ID, to be
+    // read in place of those in the database.
+    private Map<Long, Integer> getQueuedNumStickers(long classId) {
+        Map<Long, Integer> queuedNumStickers = new HashMap<Long, Integer>();
+        synchronized (mCache) {
+            for (Map.Entry<Long, QueuedStickers> entry : mQueuedStickers.entrySet()) {
+                if (classId == Student.INVALID_ID || entry.getValue().mClassId == classId) {
+                    queuedNumStickers.put(entry.getKey(), entry.getValue().mNumStickers);
+                }
+            }
+        }
+        return queuedNumStickers;
+    }
+
+    private long getStickerFlushCount() {
+        synchronized (mCache) {
+            return mStickerFlushCount;
+        }
+    }
+
+    // Returns the columns read for the leaderboard, with the given numbers of stickers, keyed by
+    // student ID, in place of those in the database.
+    private static String[] getLeaderboardColumns(Map<Long, Integer> numStickers) {
+        String students = StudentSQLiteOpenHelper.TABLE_STUDENTS;
+        return new String[] {
+                StudentSQLiteOpenHelper.COLUMN_ID,
+                StudentSQLiteOpenHelper.COLUMN_NAME,
+                StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME,
+                numStickers.isEmpty() ? StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS
+                        : getNumStickersExpression(students, numStickers) + " as "
+                                + StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS,
+                "(select count(*) from " + students + " as other where other."
+                        + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = " + students + "."
+                        + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " and "
+                        + getNumStickersExpression("other", numStickers) + " > "
+                        + getNumStickersExpression(students, numStickers) + ") + 1" };
+    }
+
+    // Returns an SQL expression for the number of stickers of the student in the given table, with
+    // the given numbers of stickers, keyed by student ID, in place of those in the table.
+    private static String getNumStickersExpression(String table,
+            Map<Long, Integer> numStickers) {
+        String column = table + "." + StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS;
+        if (numStickers.isEmpty()) {
+            return column;
+        }
+        StringBuilder expression = new StringBuilder("(case ").append(table).append('.')
+                .append(StudentSQLiteOpenHelper.COLUMN_ID);
+        for (Map.Entry<Long, Integer> entry : numStickers.entrySet()) {
+            expression.append(" when ").append(entry.getKey()).append(" then ")
+                    .append(entry.getValue());
+        }
+        return expression.append(" else ").append(column).append(" end)").toString();
+    }
+
+    // Adds the given amount to the count of the given key, removing the key once its count is 0.
+    private static void addToCount(Map<Integer, Integer> counts, int key, int amount) {
+        Integer count = counts.get(key);
+        int newCount = (count == null ? 0 : count) + amount;
+        if (newCount == 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, newCount);
+        }
+    }
+
+    private long getCacheGeneration() {
+        synchronized (mCache) {
+            return mCacheGeneration;
+        }
+    }
+
+    // Caches copies of the given students, which were read from the database when the cache was at
+    // the given generation.
+    private void readIntoCache(List<Student> students, long cacheGeneration) {
+        synchronized (mCache) {
+            if (cacheGeneration != mCacheGeneration) {
+                return; // The database was written to during the read, so it may be out of date.
+            }
+            for (Student student : students) {
+                mCache.put(student.getId(), copyOf(student));
+            }
+        }
+    }
+
+    // Caches a copy of the given student, which has just been written to the database, and
+    // returns the fields that differ from the previously cached copy (all fields, if there was no
+    // previously cached copy).
+    private int writeToCache(Student student) {
+        Student previousStudent;
+        synchronized (mCache) {
+            mCacheGeneration++;
+            previousStudent = mCache.put(student.getId(), copyOf(student));
+            mSnapshots.remove(student.getId()); // The student's version has changed.
+        }
+        if (previousStudent == null) {
+            return ALL_FIELDS;
+        }
+
+        int changedFields = 0;
+        if (!student.getName().equals(previousStudent.getName())) {
+            changedFields |= FIELD_NAME;
+        }
+        String imgName = student.getImgName();
+        if (imgName == null ? previousStudent.getImgName() != null
+                : !imgName.equals(previousStudent.getImgName())) {
+            changedFields |= FIELD_IMAGE_NAME;
+        }
+        if (student.getNumStickers() != previousStudent.getNumStickers()) {
+            changedFields |= FIELD_NUM_STICKERS;
+        }
+        if (student.getClassId() != previousStudent.getClassId()) {
+            changedFields |= FIELD_CLASS_ID;
+        }
+        return changedFields;
+    }
+
+    // Updates the sticker count of the given student (if cached) after it has been changed in the
+    // database, and returns a copy of the updated student (or null if it was not cached). A
+    // negative count means the student may not be in the database.
+    private Student writeNumStickersToCache(long id, int numStickers) {
+        synchronized (mCache) {
+            mCacheGeneration++;
+            mSnapshots.remove(id);
+            if (numStickers < 0) {
+                mCache.remove(id);
+                return null;
+            }
+            Student cachedStudent = mCache.get(id);
+            if (cachedStudent == null) {
+                return null;
+            }
+            cachedStudent.setNumStickers(numStickers);
+            return copyOf(cachedStudent);
+        }
+    }
+
+    // Removes the given student from the cache, after it has been changed in the database.
+    private void removeFromCache(long id) {
+        synchronized (mCache) {
+            mCacheGeneration++;
+            mCache.remove(id);
+            mSnapshots.remove(id);
+        }
+    }
+
+    private void notifyStudentInserted(Student student) {
+        for (OnStudentsChangedListener listener : mListeners) {
+            listener.onStudentInserted(copyOf(student));
+        }
+    }
+
+    private void notifyStudentUpdated(Student student, int changedFields) {
+        if (changedFields == 0) {
+            return;
+        }
+        for (OnStudentsChangedListener listener : mListeners) {
+            listener.onStudentUpdated(copyOf(student), changedFields);
+        }
+    }
+
+    // Notifies the listeners that the sticker count of the student with the given ID changed to
+    // the given count (negative if it did not change), given the updated copy of the student from
+    // the cache. If the student was not cached, it is read from the database, but only if there is
+    // a listener to notify.
+    private void notifyNumStickersUpdated(long id, int numStickers, Student cachedStudent) {
+        if (numStickers < 0 || mListeners.isEmpty()) {
+            return;
+        }
+        Student student = cachedStudent != null ? cachedStudent : getStudent(id);
+        if (student != null) {
+            notifyStudentUpdated(student, FIELD_NUM_STICKERS);
+        }
+    }
+
+    private void notifyStudentDeleted(long id) {
+        for (OnStudentsChangedListener listener : mListeners) {
+            listener.onStudentDeleted(id);
+        }
+    }
+
+    private void notifyStudentsChanged() {
+        for (OnStudentsChangedListener listener : mListeners) {
+            listener.onStudentsChanged();
+        }
+    }
+
+    private static Student copyOf(Student student) {
+        return new Student()
+                .setID(student.getId())
+                .setName(student.getName())
+                .setImgName(student.getImgName())
+                .setNumStickers(student.getNumStickers())
+                .setClassId(student.getClassId());
+    }
+
+    // Converts the number of rows affected by each operation in a batch into whether or not that
+    // operation succeeded.
+    private static boolean[] toSucceeded(int[] numRowsAffected) {
+        boolean[] succeeded = new boolean[numRowsAffected.length];
+        for (int i = 0; i < numRowsAffected.length; i++) {
+            succeeded[i] = numRowsAffected[i] != 0;
+        }
+        return succeeded;
+    }
+
+    // The stickers queued for a student, which have been applied to the cache but not yet to the
+    // database.
+    private static final class QueuedStickers {
+        final long mClassId; // The student's classroom.
+        final int mNumStickers; // The student's number of stickers once they are written.
+        final int mChange; // The number of stickers to add (negative to remove).
+
+        QueuedStickers(long classId, int numStickers, int change) {
+            mClassId = classId;
+            mNumStickers = numStickers;
+            mChange = change;
+        }
     }
 }
@@ -0,0 +1,336 @@
+package edu.mills.cs180a.pocketpoints;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.net.Uri;
+import edu.mills.cs180a.pocketpoints.StudentManager.OnStudentsChangedListener;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.Transaction;
+
+/**
+ * A {@link ContentProvider} of the students in the database, so that other components, such as
+ * widgets, exports or a companion app, can read and change them. Every read and write goes through
+ * the {@link StudentManager}, so its cache and listeners stay up to date. The columns are those of
+ * the {@link StudentSQLiteOpenHelper#TABLE_STUDENTS students} table.
+ *
+ * <p>
+ * The content URIs are:
+ * <ul>
+ * <li>{@link #CONTENT_URI}, for every student (which can be narrowed with a selection), and for
+ * inserting students;</li>
+ * <li>{@link #CONTENT_URI}{@code /<id>}, for the student with the given ID;</li>
+ * <li>{@link #SEARCH_URI}{@code /<prefix>}, for the students whose names match the given search
+ * prefix (see {@link StudentManager#searchStudents(long, String, int)}), in the classroom given by
+ * the {@link #PARAM_CLASS_ID} query parameter (the default classroom if it is missing), and at
+ * most as many as the {@link #PARAM_LIMIT} query parameter (or {@link #DEFAULT_SEARCH_LIMIT}).</li>
+ * </ul>
+ *
+ * <p>
+ * Observers of {@link #CONTENT_URI} (with descendants) are notified of every change made through
+ * the {@link StudentManager}, whether or not it was made through this provider. The operations of
+ * a batch (see {@link #applyBatch(ArrayList)}) are all made in a single transaction, and their
+ * observers are notified once, after the batch.
+ */
+public class StudentProvider extends ContentProvider {
+    /**
+     * The authority of this provider.
+     */
+    public static final String AUTHORITY = "edu.mills.cs180a.pocketpoints.students";
+
+    /**
+     * The content URI of the students.
+     */
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/students");
+
+    /**
+     * The content URI under which to search for students by name, followed by the search prefix.
+     */
+    public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, "search");
+
+    /**
+     * The query parameter of a search URI giving the ID of the classroom whose students to search.
+     */
+    public static final String PARAM_CLASS_ID = "class_id";
+
+    /**
+     * The query parameter of a search URI giving the maximum number of students to get.
+     */
+    public static final String PARAM_LIMIT = "limit";
+
+    /**
+     * The maximum number of students a search gets, if the search URI does not give one.
+     */
+    public static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    /**
+     * The MIME type of the list of students.
+     */
+    public static final String CONTENT_TYPE =
+            ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd.edu.mills.cs180a.pocketpoints.student";
+
+    /**
+     * The MIME type of a single student.
+     */
+    public static final String CONTENT_ITEM_TYPE =
+            ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.edu.mills.cs180a.pocketpoints.student";
+
+    private static final int MATCH_STUDENTS = 1;
+    private static final int MATCH_STUDENT = 2;
+    private static final int MATCH_SEARCH = 3;
+
+    private static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        URI_MATCHER.addURI(AUTHORITY, "students", MATCH_STUDENTS);
+        URI_MATCHER.addURI(AUTHORITY, "students/#", MATCH_STUDENT);
+        URI_MATCHER.addURI(AUTHORITY, "students/search/*", MATCH_SEARCH);
+    }
+
+    private StudentManager mStudentManager;
+    private volatile boolean mApplyingBatch; // Only changed while writes are locked out.
+
+    /**
+     * Creates a {@code StudentProvider} for testing purposes, which uses a new test instance of
+     * {@link StudentManager} (see {@link StudentManager#getTestInstance(Context)}).
+     *
+     * @param context the context of the test
+     * @return a new instance of {@code StudentProvider}
+     */
+    public static StudentProvider getTestInstance(Context context) {
+        StudentProvider provider = new StudentProvider();
+        provider.mStudentManager = StudentManager.getTestInstance(context);
+        provider.attachInfo(context, null); // Calls onCreate().
+        return provider;
+    }
+
+    @Override
+    public boolean onCreate() {
+        if (mStudentManager == null) {
+            mStudentManager = StudentManager.get(getContext());
+        }
+        mStudentManager.registerOnStudentsChangedListener(new ChangeNotifier());
+        return true;
+    }
+
+    /**
+     * Gets the {@link StudentManager} through which this provider reads and writes the students.
+     *
+     * @return the underlying {@code StudentManager}
+     */
+    public StudentManager getStudentManager() {
+        return mStudentManager;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        switch (URI_MATCHER.match(uri)) {
+            case MATCH_STUDENTS:
+            case MATCH_SEARCH:
+                return CONTENT_TYPE;
+            case MATCH_STUDENT:
+                return CONTENT_ITEM_TYPE;
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        StudentCursor studentCursor;
+        switch (URI_MATCHER.match(uri)) {
+            case MATCH_STUDENTS:
+                studentCursor = mStudentManager.query(projection, selection, selectionArgs,
+                        sortOrder);
+                break;
+            case MATCH_STUDENT:
+                studentCursor = mStudentManager.query(projection,
+                        withId(selection, ContentUris.parseId(uri)), selectionArgs, sortOrder);
+                break;
+            case MATCH_SEARCH:
+                String classId = uri.getQueryParameter(PARAM_CLASS_ID);
+                String limit = uri.getQueryParameter(PARAM_LIMIT);
+                studentCursor = mStudentManager.searchStudentCursor(
+                        classId == null ? Student.DEFAULT_CLASS_ID : Long.parseLong(classId),
+                        projection, uri.getLastPathSegment(),
+                        limit == null ? DEFAULT_SEARCH_LIMIT : Integer.parseInt(limit));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        studentCursor.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        return studentCursor;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        if (URI_MATCHER.match(uri) != MATCH_STUDENTS) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        Student student = setValues(new Student(), values);
+        if (!mStudentManager.createStudent(student)) {
+            return null;
+        }
+        return ContentUris.withAppendedId(CONTENT_URI, student.getId());
+    }
+
+    /**
+     * Updates the selected students. Each student is read and written in the same transaction, so
+     * that a change made to it in between by another thread is not overwritten.
+     */
+    @Override
+    public int update(final Uri uri, final ContentValues values, final String selection,
+            final String[] selectionArgs) {
+        return mStudentManager.runInTransaction(new Transaction<Integer, RuntimeException>() {
+            @Override
+            public Integer run() {
+                long[] ids = queryIds(uri, selection, selectionArgs);
+                List<Student> students = new ArrayList<Student>(ids.length);
+                for (long id : ids) {
+                    Student student = mStudentManager.getStudent(id);
+                    if (student != null) { // The student may have been deleted meanwhile.
+                        students.add(setValues(student, values));
+                    }
+                }
+                return count(mStudentManager.updateStudents(students));
+            }
+        });
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return count(mStudentManager.deleteStudents(queryIds(uri, selection, selectionArgs)));
+    }
+
+    /**
+     * Applies the given operations in a single transaction: if any of them fails, none of them is
+     * applied. This is much faster than applying the operations one at a time, each in its own
+     * transaction. The observers of {@link #CONTENT_URI} are notified once, after the batch.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        ContentProviderResult[] results = mStudentManager.runInTransaction(
+                new Transaction<ContentProviderResult[], OperationApplicationException>() {
+                    @Override
+                    public ContentProviderResult[] run() throws OperationApplicationException {
+                        mApplyingBatch = true;
+                        try {
+                            ContentProviderResult[] results =
+                                    new ContentProviderResult[operations.size()];
+                            for (int i = 0; i < results.length; i++) {
+                                results[i] = operations.get(i).apply(StudentProvider.this,
+                                        results, i);
+                            }
+                            return results;
+                        } finally {
+                            mApplyingBatch = false;
+                        }
+                    }
+                });
+        notifyChange(CONTENT_URI);
+        return results;
+    }
+
+    // Gets the IDs of the students given by the given URI and selection, which are to be changed.
+    private long[] queryIds(Uri uri, String selection, String[] selectionArgs) {
+        switch (URI_MATCHER.match(uri)) {
+            case MATCH_STUDENTS:
+                break;
+            case MATCH_STUDENT:
+                selection = withId(selection, ContentUris.parseId(uri));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+        StudentCursor studentCursor = mStudentManager.query(
+                new String[] { StudentSQLiteOpenHelper.COLUMN_ID }, selection, selectionArgs,
+                StudentSQLiteOpenHelper.COLUMN_ID);
+        long[] ids = new long[studentCursor.getCount()];
+        for (int i = 0; studentCursor.moveToNext(); i++) {
+            ids[i] = studentCursor.getId();
+        }
+        studentCursor.close();
+        return ids;
+    }
+
+    // Narrows the given selection to the student with the given ID.
+    private static String withId(String selection, long id) {
+        String idSelection = StudentSQLiteOpenHelper.COLUMN_ID + " = " + id;
+        return selection == null ? idSelection : idSelection + " and (" + selection + ")";
+    }
+
+    // Sets the fields of the given student that are given by the given values.
+    private static Student setValues(Student student, ContentValues values) {
+        if (values.containsKey(StudentSQLiteOpenHelper.COLUMN_NAME)) {
+            student.setName(values.getAsString(StudentSQLiteOpenHelper.COLUMN_NAME));
+        }
+        if (values.containsKey(StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME)) {
+            student.setImgName(values.getAsString(StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME));
+        }
+        if (values.containsKey(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS)) {
+            student.setNumStickers(
+                    values.getAsInteger(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS));
+        }
+        if (values.containsKey(StudentSQLiteOpenHelper.COLUMN_CLASS_ID)) {
+            student.setClassId(values.getAsLong(StudentSQLiteOpenHelper.COLUMN_CLASS_ID));
+        }
+        return student;
+    }
+
+    private static int count(boolean[] succeeded) {
+        int count = 0;
+        for (boolean studentSucceeded : succeeded) {
+            if (studentSucceeded) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void notifyChange(Uri uri) {
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    // Notifies the observers of the content URIs of the changes made through the StudentManager,
+    // other than those made by a batch, whose observers are notified once the batch is done.
+    private class ChangeNotifier implements OnStudentsChangedListener {
+        @Override
+        public void onStudentInserted(Student student) {
+            onStudentChanged(student.getId());
+        }
+
+        @Override
+        public void onStudentUpdated(Student student, int changedFields) {
+            onStudentChanged(student.getId());
+        }
+
+        @Override
+        public void onStudentDeleted(long id) {
+            onStudentChanged(id);
+        }
+
+        @Override
+        public void onStudentsChanged() {
+            if (!mApplyingBatch) {
+                notifyChange(CONTENT_URI);
+            }
+        }
+
+        private void onStudentChanged(long id) {
+            if (!mApplyingBatch) {
+                notifyChange(ContentUris.withAppendedId(CONTENT_URI, id));
+            }
+        }
+    }
+}
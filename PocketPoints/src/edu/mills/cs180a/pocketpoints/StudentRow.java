@@ -0,0 +1,73 @@
+package edu.mills.cs180a.pocketpoints;
+
+/**
+ * A compact, read-only summary of a single student, containing only the information needed to
+ * display the student in a list. Unlike {@link Student}, a {@code StudentRow} is built from only
+ * the columns a list asks for, so adding columns to the {@code students} table does not make
+ * loading a list any slower.
+ */
+public final class StudentRow {
+    /**
+     * The number of stickers of a {@code StudentRow} loaded without the number of stickers.
+     */
+    public static final int UNKNOWN_NUM_STICKERS = -1;
+
+    private final long mId;
+    private final String mName;
+    private final String mImgName;
+    private final int mNumStickers;
+
+    /**
+     * Creates a {@code StudentRow} with the given values.
+     *
+     * @param id the unique ID of the student
+     * @param name the name of the student
+     * @param imgName the name of the image of the student, or {@code null} if there is none
+     * @param numStickers the number of stickers earned by the student, or
+     *        {@link #UNKNOWN_NUM_STICKERS} if it was not loaded
+     */
+    public StudentRow(long id, String name, String imgName, int numStickers) {
+        mId = id;
+        mName = name;
+        mImgName = imgName;
+        mNumStickers = numStickers;
+    }
+
+    /**
+     * Gets the unique ID of the student.
+     *
+     * @return the unique ID of the student
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Gets the name of the student.
+     *
+     * @return the name of the student
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the name of the image of the student, if there is one.
+     *
+     * @return the name of the image associated with the student (if it exists, and was loaded);
+     *         otherwise {@code null}
+     */
+    public String getImgName() {
+        return mImgName;
+    }
+
+    /**
+     * Gets the number of stickers the student has earned.
+     *
+     * @return the number of stickers earned by the student, or {@link #UNKNOWN_NUM_STICKERS} if
+     *         it was not loaded
+     */
+    public int getNumStickers() {
+        return mNumStickers;
+    }
+}
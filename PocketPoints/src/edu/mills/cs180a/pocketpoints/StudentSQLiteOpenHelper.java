@@ -1,22 +1,70 @@
 package edu.mills.cs180a.pocketpoints;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 /**
  * Creates and upgrades a database for storing student data.
  *
+ * <p>
+ * The methods of this class do not close the database after using it: the connection is cached by
+ * the {@link SQLiteOpenHelper} and reused by later calls until {@link #close()} is called. The
+ * statements used to write to the database are compiled once per connection and then reused,
+ * rebinding their arguments for each call.
+ *
+ * <p>
+ * The database uses write-ahead logging, so any number of threads can read from it while another
+ * thread writes to it. Writes made through this class are serialized, so there is only ever one
+ * writer at a time.
+ *
+ * <p>
+ * Every change to the number of stickers of a student is recorded in the append-only
+ * {@code sticker_events} table, in the same transaction as the change to the student's
+ * {@code num_stickers} column, which is kept as the running total of the student's events so that
+ * it can be read without adding up the events. Old events are collapsed into checkpoint events by
+ * {@link #compactStickerEvents(long)}, so the ledger does not grow without bound.
+ *
+ * <p>
+ * The schema is upgraded by an ordered list of migrations, one for each version. The schema
+ * changes of every pending migration are made by {@link #onUpgrade(SQLiteDatabase, int, int)}.
+ * Any data a migration has to copy is copied afterwards, in the background, by
+ * {@link #copyMigrationData()}, a chunk of rows at a time, each chunk in its own transaction, so
+ * that the database can be used in the meantime. The progress of each copy is recorded in the
+ * {@code migrations} table, so a copy that is interrupted (for example, because the app was
+ * killed) resumes where it left off the next time it is started.
+ *
  * @author ajkwak@users.noreply.github.com (AJ Parmidge)
  */
 public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
     private static final String TAG = "StudentSQLiteOpenHelper";
-    private static final String DATABASE_NAME = "class_info.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 8;
+
+    /**
+     * The name of the file in which the database is stored.
+     */
+    public static final String DATABASE_NAME = "class_info.db";
 
     /**
      * The name of the table storing student information.
@@ -43,6 +91,269 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
      */
     public static final String COLUMN_NUM_STICKERS = "num_stickers";
 
+    /**
+     * The maximum length of the name of a student, as declared by the {@code students} table.
+     */
+    public static final int MAX_NAME_LENGTH = 255;
+
+    /**
+     * The title of the column containing the ID of the classroom the student belongs to.
+     */
+    public static final String COLUMN_CLASS_ID = "class_id";
+
+    /**
+     * The title of the column containing the version of a student, which is incremented by every
+     * update of the student (see {@link #updateStudentIfVersion(Student, long)}).
+     */
+    public static final String COLUMN_VERSION = "version";
+
+    /**
+     * The name of the table of classrooms. Its columns are {@link #COLUMN_ID} and
+     * {@link #COLUMN_NAME}, the ID and the name of each classroom.
+     */
+    public static final String TABLE_CLASSROOMS = "classrooms";
+
+    /**
+     * The name of the table recording every change to the number of stickers of each student.
+     */
+    public static final String TABLE_STICKER_EVENTS = "sticker_events";
+
+    /**
+     * The title of the column containing the ID of the student whose stickers changed.
+     */
+    public static final String COLUMN_EVENT_STUDENT_ID = "student_id";
+
+    /**
+     * The title of the column containing the number of stickers added by an event (negative if
+     * stickers were removed).
+     */
+    public static final String COLUMN_EVENT_DELTA = "delta";
+
+    /**
+     * The title of the column containing the time of an event, in milliseconds since the epoch.
+     */
+    public static final String COLUMN_EVENT_TIMESTAMP = "timestamp";
+
+    /**
+     * The title of the column containing the reason for an event, such as {@link #REASON_AWARD}.
+     */
+    public static final String COLUMN_EVENT_REASON = "reason";
+
+    /**
+     * The reason for an event in which stickers were awarded to a student.
+     */
+    public static final String REASON_AWARD = "award";
+
+    /**
+     * The reason for an event in which stickers awarded by mistake were taken away from a student.
+     */
+    public static final String REASON_UNDO = "undo";
+
+    /**
+     * The reason for an event in which all of a student's stickers were taken away.
+     */
+    public static final String REASON_CLEAR = "clear";
+
+    /**
+     * The reason for an event in which the number of stickers was set when adding or editing a
+     * student.
+     */
+    public static final String REASON_EDIT = "edit";
+
+    /**
+     * The reason for an event in which the number of stickers was set when importing a student.
+     */
+    public static final String REASON_IMPORT = "import";
+
+    /**
+     * The reason for an event that stands for a number of older events, which have been removed.
+     */
+    public static final String REASON_CHECKPOINT = "checkpoint";
+
+    /**
+     * The name of the index on the classrooms of the students and then on their names (ignoring
+     * case), which lists the students of a single classroom in order without scanning the others.
+     */
+    public static final String INDEX_STUDENTS_CLASS_ID_NAME = "students_class_id_name_index";
+
+    // The index on the names of the students (ignoring case), replaced in version 4 by
+    // INDEX_STUDENTS_CLASS_ID_NAME.
+    private static final String INDEX_STUDENTS_NAME = "students_name_index";
+
+    /**
+     * The name of the index on the classrooms of the students, then on their numbers of stickers
+     * (from most to fewest) and then on their names (ignoring case), which lists the leaders of a
+     * single classroom in order without reading the rest of the students.
+     */
+    public static final String INDEX_STUDENTS_CLASS_ID_NUM_STICKERS =
+            "students_class_id_num_stickers_index";
+
+    // The index on the number of stickers associated with the students, replaced in version 6 by
+    // INDEX_STUDENTS_CLASS_ID_NUM_STICKERS.
+    private static final String INDEX_STUDENTS_NUM_STICKERS = "students_num_stickers_index";
+
+    /**
+     * The name of the index on the students of the sticker events.
+     */
+    public static final String INDEX_STICKER_EVENTS_STUDENT_ID = "sticker_events_student_id_index";
+
+    /**
+     * The name of the full-text index of the names of the students, an FTS4 table whose
+     * {@code docid} is the ID of the student. It is kept up to date by triggers on the
+     * {@code students} table, and searched by prefix with {@code match}.
+     */
+    public static final String TABLE_STUDENT_NAME_SEARCH = "student_name_search";
+
+    /**
+     * The name of the table summarizing the students of each classroom that has any: their number
+     * and their total number of stickers. It is kept up to date by triggers on the
+     * {@code students} table, so that it never has to be computed by reading every student.
+     */
+    public static final String TABLE_CLASS_STATS = "class_stats";
+
+    /**
+     * The name of the table counting, for each classroom and number of stickers, the students of
+     * the classroom with that number of stickers. Like {@link #TABLE_CLASS_STATS}, it is kept up
+     * to date by triggers, and only has rows with a count of at least 1.
+     */
+    public static final String TABLE_STICKER_HISTOGRAM = "class_sticker_histogram";
+
+    /**
+     * The title of the column containing a number of students, in {@link #TABLE_CLASS_STATS} and
+     * {@link #TABLE_STICKER_HISTOGRAM}.
+     */
+    public static final String COLUMN_NUM_STUDENTS = "num_students";
+
+    /**
+     * The title of the column containing the total number of stickers of the students of a
+     * classroom, in {@link #TABLE_CLASS_STATS}.
+     */
+    public static final String COLUMN_TOTAL_STICKERS = "total_stickers";
+
+    /**
+     * The name of the table recording the progress of the migrations whose data has not all been
+     * copied yet.
+     */
+    public static final String TABLE_MIGRATIONS = "migrations";
+
+    /**
+     * The title of the column containing the version to which a migration upgrades the database.
+     */
+    public static final String COLUMN_MIGRATION_VERSION = "version";
+
+    /**
+     * The title of the column containing the ID of the last row whose data a migration has copied.
+     */
+    public static final String COLUMN_MIGRATION_LAST_ID = "last_id";
+
+    // The suffix of the name of the write-ahead log of a database file.
+    private static final String LOG_FILE_SUFFIX = "-wal";
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    // The number of rows whose data is copied in each transaction by a migration.
+    private static final int MIGRATION_CHUNK_SIZE = 500;
+
+    // The version of the migration that counts the existing students in the class statistics.
+    private static final int CLASS_STATS_VERSION = 7;
+
+    // The name of the classroom that the existing students are put in when classrooms are added.
+    private static final String DEFAULT_CLASSROOM_NAME = "My Class";
+
+    // The trigger that deletes the sticker events of a student when the student is deleted.
+    private static final String TRIGGER_DELETE_STICKER_EVENTS = "students_delete_sticker_events";
+
+    // The triggers that keep TABLE_STUDENT_NAME_SEARCH up to date.
+    private static final String TRIGGER_INSERT_NAME_SEARCH = "students_insert_name_search";
+    private static final String TRIGGER_UPDATE_NAME_SEARCH = "students_update_name_search";
+    private static final String TRIGGER_DELETE_NAME_SEARCH = "students_delete_name_search";
+
+    // The triggers that keep TABLE_CLASS_STATS and TABLE_STICKER_HISTOGRAM up to date.
+    private static final String TRIGGER_INSERT_CLASS_STATS = "students_insert_class_stats";
+    private static final String TRIGGER_UPDATE_CLASS_STATS = "students_update_class_stats";
+    private static final String TRIGGER_DELETE_CLASS_STATS = "students_delete_class_stats";
+
+    // The trigger that increments the version of a student whenever the student is updated.
+    private static final String TRIGGER_UPDATE_VERSION = "students_update_version";
+
+    /**
+     * The 'order by' clause that sorts students alphabetically by name, ignoring case (students
+     * with the same name are sorted by ID). Queries for the students of a single classroom that use
+     * this ordering are answered from the {@link #INDEX_STUDENTS_CLASS_ID_NAME} index, rather than
+     * by sorting the table.
+     */
+    public static final String ORDER_BY_NAME = COLUMN_NAME + " collate nocase asc, "
+            + COLUMN_ID + " asc";
+
+    /**
+     * The 'order by' clause that sorts students from the most to the fewest stickers (students
+     * with the same number of stickers are sorted alphabetically by name, ignoring case, and then
+     * by ID). Queries for the students of a single classroom that use this ordering are answered
+     * from the {@link #INDEX_STUDENTS_CLASS_ID_NUM_STICKERS} index, rather than by sorting the
+     * table.
+     */
+    public static final String ORDER_BY_NUM_STICKERS = COLUMN_NUM_STICKERS + " desc, "
+            + ORDER_BY_NAME;
+
+    // Indices into STATEMENT_SQL (and mStatements) of the statements that are precompiled.
+    private static final int STATEMENT_INSERT = 0;
+    private static final int STATEMENT_UPDATE = 1;
+    private static final int STATEMENT_DELETE = 2;
+    private static final int STATEMENT_ADD_STICKERS = 3;
+    private static final int STATEMENT_CLEAR_STICKERS = 4;
+    private static final int STATEMENT_INSERT_STICKER_EVENT = 5;
+    private static final int STATEMENT_UPDATE_IF_VERSION = 6;
+    private static final int STATEMENT_QUERY_NUM_STICKERS = 7;
+    private static final String[] STATEMENT_SQL = {
+            // STATEMENT_INSERT
+            "insert into " + TABLE_STUDENTS + " (" + COLUMN_NAME + ", " + COLUMN_IMAGE_NAME + ", "
+                    + COLUMN_NUM_STICKERS + ", " + COLUMN_CLASS_ID + ") values (?, ?, ?, ?)",
+            // STATEMENT_UPDATE
+            "update " + TABLE_STUDENTS + " set " + COLUMN_NAME + " = ?, " + COLUMN_IMAGE_NAME
+                    + " = ?, " + COLUMN_NUM_STICKERS + " = ?, " + COLUMN_CLASS_ID + " = ? where "
+                    + COLUMN_ID + " = ?",
+            // STATEMENT_DELETE
+            "delete from " + TABLE_STUDENTS + " where " + COLUMN_ID + " = ?",
+            // STATEMENT_ADD_STICKERS
+            "update " + TABLE_STUDENTS + " set " + COLUMN_NUM_STICKERS + " = "
+                    + COLUMN_NUM_STICKERS + " + ? where " + COLUMN_ID + " = ? and "
+                    + COLUMN_NUM_STICKERS + " + ? > -1",
+            // STATEMENT_CLEAR_STICKERS
+            "update " + TABLE_STUDENTS + " set " + COLUMN_NUM_STICKERS + " = 0 where "
+                    + COLUMN_ID + " = ?",
+            // STATEMENT_INSERT_STICKER_EVENT
+            "insert into " + TABLE_STICKER_EVENTS + " (" + COLUMN_EVENT_STUDENT_ID + ", "
+                    + COLUMN_EVENT_DELTA + ", " + COLUMN_EVENT_TIMESTAMP + ", "
+                    + COLUMN_EVENT_REASON + ") values (?, ?, ?, ?)",
+            // STATEMENT_UPDATE_IF_VERSION
+            "update " + TABLE_STUDENTS + " set " + COLUMN_NAME + " = ?, " + COLUMN_IMAGE_NAME
+                    + " = ?, " + COLUMN_NUM_STICKERS + " = ?, " + COLUMN_CLASS_ID + " = ?, "
+                    + COLUMN_VERSION + " = " + COLUMN_VERSION + " + 1 where " + COLUMN_ID
+                    + " = ? and " + COLUMN_VERSION + " = ?",
+            // STATEMENT_QUERY_NUM_STICKERS
+            "select " + COLUMN_NUM_STICKERS + " from " + TABLE_STUDENTS + " where " + COLUMN_ID
+                    + " = ?",
+    };
+
+    // The precompiled statements, which are compiled the first time they are needed. They can
+    // only be used with the connection to the database against which they were compiled, and only
+    // by the thread holding mWriteLock, since their bindings are shared.
+    private final SQLiteStatement[] mStatements = new SQLiteStatement[STATEMENT_SQL.length];
+    private SQLiteDatabase mStatementDb;
+
+    // Held while writing to the database, so that there is only ever one writer at a time. This
+    // is deliberately not the lock on this helper, which getReadableDatabase() also takes, so that
+    // a long write does not block readers.
+    private final Object mWriteLock = new Object();
+
+    // Set when the database has been opened with the data of a migration still to copy, until
+    // it has all been copied (see copyMigrationData()).
+    private volatile boolean mMigrationDataPending;
+
+    // Set when the database has been upgraded or replaced, until the class statistics have next
+    // been verified (see isClassStatsCheckDue()).
+    private volatile boolean mClassStatsCheckDue;
+
     /**
      * Creates a {@code StudentSQLiteOpenHelper} for the 'students' database with the given context.
      *
@@ -50,6 +361,14 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
      */
     public StudentSQLiteOpenHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void enableWriteAheadLogging() {
+        setWriteAheadLoggingEnabled(true);
     }
 
     @Override
@@ -61,11 +380,223 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
                 + COLUMN_NUM_STICKERS + " integer not null default 0 "
                 + "check (" + COLUMN_NUM_STICKERS + ">-1)"
                 + ")");
+
+        // Bring the version 1 schema created above up to date.
+        onUpgrade(db, 1, DATABASE_VERSION);
+        mClassStatsCheckDue = false; // The statistics of an empty database are correct.
+        db.delete(TABLE_MIGRATIONS, null, null); // An empty database has no data to copy.
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Add code when upgrading the database.
+        db.execSQL("create table if not exists " + TABLE_MIGRATIONS + "("
+                + COLUMN_MIGRATION_VERSION + " integer primary key, "
+                + COLUMN_MIGRATION_LAST_ID + " integer not null"
+                + ")");
+
+        // Make the schema changes of each pending migration, in order, and record the migrations
+        // with data still to copy. The data is copied by copyMigrationData(), after the upgrade
+        // is committed and the database is open.
+        for (Migration migration : MIGRATIONS) {
+            if (migration.mVersion > oldVersion && migration.mVersion <= newVersion) {
+                migration.upgradeSchema(db);
+                if (migration.mHasData) {
+                    db.execSQL("insert into " + TABLE_MIGRATIONS + " (" + COLUMN_MIGRATION_VERSION
+                            + ", " + COLUMN_MIGRATION_LAST_ID + ") values (?, ?)",
+                            new Object[] { migration.mVersion, 0 });
+                }
+            }
+        }
+        mClassStatsCheckDue = true;
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // Before Jelly Bean, write-ahead logging has to be enabled on each connection once it is
+        // open (the statements cached for a previous connection are discarded by getStatement()).
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+
+        // Enforce the references between the tables, so that a student cannot be put in a
+        // classroom that does not exist, and a classroom cannot be deleted while it has students
+        // (a student's sticker events are deleted along with it by a trigger). This is only done
+        // once the database has been upgraded, since SQLite refuses to add a column with a
+        // reference and a default value, as migration 4 does, while references are enforced.
+        if (!db.isReadOnly()) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                db.setForeignKeyConstraintsEnabled(true);
+            } else {
+                db.execSQL("pragma foreign_keys = on");
+            }
+        }
+
+        // Only note whether there is data to copy: copying it here would keep every reader
+        // waiting for the database to open until it was all copied.
+        mMigrationDataPending = DatabaseUtils.queryNumEntries(db, TABLE_MIGRATIONS) > 0;
+    }
+
+    @Override
+    public void close() {
+        synchronized (mWriteLock) {
+            releaseStatements();
+            super.close();
+        }
+    }
+
+    /**
+     * Copies the changes recorded in the write-ahead log back into the database file, without
+     * waiting for any readers. This keeps the log short, so that reads stay fast; it is meant to
+     * be called from a background thread while the app is idle.
+     */
+    public void checkpoint() {
+        synchronized (mWriteLock) { // So that the database file doesn't change during a copy.
+            // The pragma returns a row, so it has to be run as a query.
+            Cursor cursor = getWritableDatabase().rawQuery("pragma wal_checkpoint", null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Copies the database, as of the last write, to the given file, which can then be opened on
+     * its own (it has no write-ahead log). Writes wait until the database has been copied, but
+     * reads do not.
+     *
+     * @param destination the file to which to copy the database
+     * @throws IOException if the database could not be copied
+     */
+    public void copyDatabaseTo(File destination) throws IOException {
+        File destinationLog = new File(destination.getPath() + LOG_FILE_SUFFIX);
+        synchronized (mWriteLock) {
+            // While nothing is being written, the database file and its write-ahead log together
+            // hold exactly the committed changes.
+            String path = getWritableDatabase().getPath();
+            copyFile(new File(path), destination);
+            File log = new File(path + LOG_FILE_SUFFIX);
+            if (log.exists()) {
+                copyFile(log, destinationLog);
+            } else {
+                destinationLog.delete();
+            }
+        }
+
+        // Fold the copied log into the copy of the database, so that the copy is a single file.
+        SQLiteDatabase copy = SQLiteDatabase.openDatabase(destination.getPath(), null,
+                SQLiteDatabase.OPEN_READWRITE);
+        try {
+            Cursor cursor = copy.rawQuery("pragma journal_mode = delete", null);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            copy.close();
+        }
+    }
+
+    /**
+     * Replaces the database with a copy made by {@link #copyDatabaseTo(File)} (possibly on another
+     * device, or by an older version of the app). The connection to the database is closed
+     * first, and the copy is upgraded when it is next opened. Readers that try to open the
+     * database in the meantime wait until the copy is in place.
+     *
+     * @param source the copy of the database
+     * @throws IOException if the copy could not be read; the database is then unchanged
+     */
+    public void replaceDatabase(File source) throws IOException {
+        synchronized (mWriteLock) {
+            // The lock on this helper, which getReadableDatabase() takes, keeps a reader from
+            // reopening the old files in the middle of the swap. It is always taken after
+            // mWriteLock, as close() and getStatement() do.
+            synchronized (this) {
+                File database = new File(getWritableDatabase().getPath());
+                close();
+
+                // Copy to a temporary file first, so a failed copy leaves the database intact.
+                File newDatabase = new File(database.getPath() + ".new");
+                copyFile(source, newDatabase);
+                new File(database.getPath() + LOG_FILE_SUFFIX).delete();
+                new File(database.getPath() + "-shm").delete();
+                if (!newDatabase.renameTo(database)) {
+                    newDatabase.delete();
+                    throw new IOException("Unable to replace " + database);
+                }
+                mClassStatsCheckDue = true;
+            }
+        }
+    }
+
+    /**
+     * Points the image of every student that has one at the file of the same name in the given
+     * directory, for example after the images have been restored there on another device.
+     *
+     * @param directory the directory that now holds the images
+     * @return the number of students whose image was moved
+     */
+    public int moveImages(File directory) {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                Cursor cursor = db.query(TABLE_STUDENTS,
+                        new String[] { COLUMN_ID, COLUMN_IMAGE_NAME },
+                        COLUMN_IMAGE_NAME + " is not null", null, null, null, null);
+                List<Long> ids = new ArrayList<Long>(cursor.getCount());
+                List<String> imageNames = new ArrayList<String>(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getLong(0));
+                    imageNames.add(cursor.getString(1));
+                }
+                cursor.close();
+
+                int numStudentsUpdated = 0;
+                for (int i = 0; i < ids.size(); i++) {
+                    String imageName = new File(directory,
+                            new File(imageNames.get(i)).getName()).getAbsolutePath();
+                    if (!imageName.equals(imageNames.get(i))) {
+                        ContentValues values = new ContentValues();
+                        values.put(COLUMN_IMAGE_NAME, imageName);
+                        numStudentsUpdated += db.update(TABLE_STUDENTS, values,
+                                COLUMN_ID + " = ?", new String[] { String.valueOf(ids.get(i)) });
+                    }
+                }
+                db.setTransactionSuccessful();
+                return numStudentsUpdated;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Runs the given transaction in a single database transaction, which is committed only if the
+     * transaction returns normally. The writes of the transaction may use any of the other methods
+     * of this helper, whose own transactions are nested within it, and no other thread can write
+     * until it is done.
+     *
+     * @param transaction the transaction to run
+     * @return the result of the transaction
+     * @throws E if the transaction failed, in which case all of its writes were rolled back
+     */
+    public <T, E extends Exception> T runInTransaction(Transaction<T, E> transaction) throws E {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                T result = transaction.run();
+                db.setTransactionSuccessful();
+                return result;
+            } finally {
+                db.endTransaction();
+            }
+        }
     }
 
     /**
@@ -77,18 +608,32 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
      * @return the row at which the student was inserted, or {@code -1} if an error occurred
      */
     public long insertStudent(Student student) {
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_NAME, student.getName());
-        values.put(COLUMN_IMAGE_NAME, student.getImgName());
-        values.put(COLUMN_NUM_STICKERS, student.getNumStickers());
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement insertStatement = getStatement(STATEMENT_INSERT);
+            bindStudentValues(insertStatement, student);
 
-        // Insert the new values into the database.
-        SQLiteDatabase db = getWritableDatabase();
-        long studentId = db.insert(TABLE_STUDENTS, null, values);
-        student.setID(studentId);
-        db.close();
+            // Insert the new values into the database, along with the student's first stickers.
+            long studentId;
+            db.beginTransaction();
+            try {
+                try {
+                    studentId = insertStatement.executeInsert();
+                } catch (SQLException e) {
+                    Log.e(TAG, "Unable to insert student with name " + student.getName(), e);
+                    studentId = -1;
+                }
+                if (studentId > -1) {
+                    insertStickerEvent(studentId, student.getNumStickers(), REASON_EDIT);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            student.setID(studentId);
 
-        return studentId;
+            return studentId;
+        }
     }
 
     /**
@@ -98,24 +643,60 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
      * @return the number of students in the database that were updated
      */
     public int updateStudent(Student student) {
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_NAME, student.getName());
-        values.put(COLUMN_IMAGE_NAME, student.getImgName());
-        values.put(COLUMN_NUM_STICKERS, student.getNumStickers());
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // Update the student in the database, recording any change to its stickers.
+                int numStudentsUpdated = updateStudentAndRecordStickers(student);
 
-        // Update the student in the database.
-        SQLiteDatabase db = getWritableDatabase();
-        int numStudentsUpdated = db.update(TABLE_STUDENTS, values,
-                COLUMN_ID + " = ?", new String[] { String.valueOf(student.getId()) });
-        db.close();
+                // This should have only updated a single student.
+                if (numStudentsUpdated > 1) {
+                    Log.e(TAG, "When attempted to update student with ID = " + student.getId()
+                            + ", " + numStudentsUpdated + " students were updated!");
+                }
 
-        // This should have only updated a single student.
-        if (numStudentsUpdated > 1) {
-            Log.e(TAG, "When attempted to update student with ID = " + student.getId() + ", "
-                    + numStudentsUpdated + " students were updated!");
+                db.setTransactionSuccessful();
+                return numStudentsUpdated;
+            } finally {
+                db.endTransaction();
+            }
         }
+    }
 
-        return numStudentsUpdated;
+    /**
+     * Updates the given student in the database, but only if the student is still at the given
+     * version, that is, if it has not been updated since that version was read (see
+     * {@link #COLUMN_VERSION}). The student's version is then one more than the given version.
+     *
+     * @param student the student to update
+     * @param version the version of the student on which the update is based
+     * @return the number of students in the database that were updated: 0 if the student has been
+     *         updated or deleted since it was at the given version
+     */
+    public int updateStudentIfVersion(Student student, long version) {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // Update the student in the database, recording any change to its stickers.
+                long oldNumStickers = readNumStickers(student.getId());
+                SQLiteStatement updateStatement = getStatement(STATEMENT_UPDATE_IF_VERSION);
+                bindStudentValues(updateStatement, student);
+                updateStatement.bindLong(5, student.getId());
+                updateStatement.bindLong(6, version);
+                int numStudentsUpdated = updateStatement.executeUpdateDelete();
+                if (numStudentsUpdated == 1) {
+                    insertStickerEvent(student.getId(),
+                            student.getNumStickers() - oldNumStickers, REASON_EDIT);
+                }
+
+                db.setTransactionSuccessful();
+                return numStudentsUpdated;
+            } finally {
+                db.endTransaction();
+            }
+        }
     }
 
     /**
@@ -125,20 +706,906 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
      * @return the number of students in the database that were deleted
      */
     public int deleteStudent(long id) {
+        synchronized (mWriteLock) {
+            SQLiteStatement deleteStatement = getStatement(STATEMENT_DELETE);
+            deleteStatement.bindLong(1, id);
+
+            // Delete the student with the given ID from the database.
+            int numStudentsDeleted = deleteStatement.executeUpdateDelete();
+
+            // This should only have deleted a single student.
+            if (numStudentsDeleted > 1) {
+                Log.e(TAG, "When attempted to delete student with ID = " + id + ", "
+                        + numStudentsDeleted + " students were deleted!");
+            }
+
+            return numStudentsDeleted;
+        }
+    }
+
+    /**
+     * Adds the given number of stickers to the student with the given ID, directly in the
+     * database. The sticker count is changed by a single {@code UPDATE} statement, so concurrent
+     * changes to the same student cannot be lost. A negative number removes stickers; the change
+     * is not made if it would leave the student with a negative number of stickers.
+     *
+     * @param id the ID of the student to whom to add stickers
+     * @param numStickers the number of stickers to add (negative to remove stickers)
+     * @return the student's new number of stickers, or {@code -1} if there is no student with the
+     *         given ID or if the student does not have enough stickers to remove
+     */
+    public int addStickers(long id, int numStickers) {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement updateStatement = getStatement(STATEMENT_ADD_STICKERS);
+            db.beginTransaction();
+            try {
+                updateStatement.bindLong(1, numStickers);
+                updateStatement.bindLong(2, id);
+                updateStatement.bindLong(3, numStickers);
+                int newNumStickers = -1;
+                if (updateStatement.executeUpdateDelete() == 1) {
+                    insertStickerEvent(id, numStickers, reasonForStickers(numStickers));
+
+                    // Read the new count in the same transaction, so it reflects only this change.
+                    newNumStickers = (int) readNumStickers(id);
+                }
+                db.setTransactionSuccessful();
+                return newNumStickers;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Removes all of the stickers from the student with the given ID, directly in the database.
+     *
+     * @param id the ID of the student whose stickers to remove
+     * @return the number of students in the database that were updated
+     */
+    public int clearStickers(long id) {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement updateStatement = getStatement(STATEMENT_CLEAR_STICKERS);
+            db.beginTransaction();
+            try {
+                long oldNumStickers = readNumStickers(id);
+                updateStatement.bindLong(1, id);
+                int numStudentsUpdated = updateStatement.executeUpdateDelete();
+                if (numStudentsUpdated == 1) {
+                    insertStickerEvent(id, -oldNumStickers, REASON_CLEAR);
+                }
+                db.setTransactionSuccessful();
+                return numStudentsUpdated;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of stickers of the student with the given ID, without reading the rest of the
+     * student's row.
+     *
+     * @param id the ID of the student whose stickers to count
+     * @return the number of stickers the student has, or {@code -1} if there is no student with the
+     *         given ID in the database
+     */
+    public long queryNumStickers(long id) {
+        // Like the other reads, this doesn't take the write lock (and so can't use the shared
+        // precompiled statements), so that it never waits for a writer. Writers use
+        // readNumStickers() instead.
+        try {
+            return DatabaseUtils.longForQuery(getReadableDatabase(), "select "
+                    + COLUMN_NUM_STICKERS + " from " + TABLE_STUDENTS + " where " + COLUMN_ID
+                    + " = ?", new String[] { String.valueOf(id) });
+        } catch (SQLiteDoneException e) {
+            return -1; // No such student.
+        }
+    }
+
+    /**
+     * Inserts the students read from the given source into the {@code students} table of the
+     * database in a single transaction, reading and inserting them one at a time with the same
+     * compiled statement, so that any number of students can be inserted in constant memory. A
+     * student that cannot be inserted does not prevent the other students from being inserted, but
+     * if the source cannot be read, none of the students are inserted.
+     *
+     * @param source the source of the students to insert
+     * @return the number of students that were inserted
+     * @throws IOException if the source could not be read
+     */
+    public int insertStudents(StudentSource source) throws IOException {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement insertStatement = getStatement(STATEMENT_INSERT);
+            int numStudentsInserted = 0;
+            db.beginTransaction();
+            try {
+                for (Student student = source.next(); student != null; student = source.next()) {
+                    bindStudentValues(insertStatement, student);
+                    try {
+                        long studentId = insertStatement.executeInsert();
+                        insertStickerEvent(studentId, student.getNumStickers(), REASON_IMPORT);
+                        numStudentsInserted++;
+                    } catch (SQLiteConstraintException e) {
+                        Log.w(TAG, "Unable to insert student with name " + student.getName(), e);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return numStudentsInserted;
+        }
+    }
+
+    /**
+     * Inserts all of the given students into the {@code students} table of the database in a
+     * single transaction. The ID of each student is changed to reflect the student's unique ID in
+     * the database, or set to an invalid value if that student could not be inserted. A student
+     * that cannot be inserted (for example, because it has no name) does not prevent the other
+     * students from being inserted.
+     *
+     * @param students the students to insert
+     * @return the row at which each student was inserted (in the same order as the given list), or
+     *         {@code -1} for each student that could not be inserted
+     */
+    public long[] insertStudents(List<Student> students) {
+        synchronized (mWriteLock) {
+            long[] studentIds = new long[students.size()];
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement insertStatement = getStatement(STATEMENT_INSERT);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < studentIds.length; i++) {
+                    Student student = students.get(i);
+                    bindStudentValues(insertStatement, student);
+                    try {
+                        studentIds[i] = insertStatement.executeInsert();
+                        insertStickerEvent(studentIds[i], student.getNumStickers(), REASON_EDIT);
+                    } catch (SQLiteConstraintException e) {
+                        Log.w(TAG, "Unable to insert student with name " + student.getName(), e);
+                        studentIds[i] = -1;
+                    }
+                    student.setID(studentIds[i]);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return studentIds;
+        }
+    }
+
+    /**
+     * Updates all of the given students in the database in a single transaction. A student that
+     * cannot be updated does not prevent the other students from being updated.
+     *
+     * @param students the students to update
+     * @return the number of students in the database that were updated for each of the given
+     *         students (in the same order as the given list)
+     */
+    public int[] updateStudents(List<Student> students) {
+        synchronized (mWriteLock) {
+            int[] numStudentsUpdated = new int[students.size()];
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < numStudentsUpdated.length; i++) {
+                    Student student = students.get(i);
+                    try {
+                        numStudentsUpdated[i] = updateStudentAndRecordStickers(student);
+                    } catch (SQLiteConstraintException e) {
+                        Log.w(TAG, "Unable to update student with ID = " + student.getId(), e);
+                        numStudentsUpdated[i] = 0;
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return numStudentsUpdated;
+        }
+    }
+
+    /**
+     * Deletes the students with the given IDs from the database in a single transaction.
+     *
+     * @param ids the IDs of the students to delete
+     * @return the number of students in the database that were deleted for each of the given IDs
+     *         (in the same order as the given array)
+     */
+    public int[] deleteStudents(long[] ids) {
+        synchronized (mWriteLock) {
+            int[] numStudentsDeleted = new int[ids.length];
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement deleteStatement = getStatement(STATEMENT_DELETE);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    deleteStatement.bindLong(1, ids[i]);
+                    numStudentsDeleted[i] = deleteStatement.executeUpdateDelete();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return numStudentsDeleted;
+        }
+    }
+
+    /**
+     * Adds the given numbers of stickers to the students with the given IDs in a single
+     * transaction, as {@link #addStickers(long, int)} does for a single student.
+     *
+     * @param ids the IDs of the students to whom to add stickers
+     * @param numStickers the number of stickers to add to each student (in the same order as the
+     *        IDs; negative to remove stickers)
+     * @return the number of students in the database that were updated for each of the given IDs
+     *         (in the same order as the given array)
+     */
+    public int[] addStickers(long[] ids, int[] numStickers) {
+        assert ids.length == numStickers.length : "Must give a number of stickers for each ID.";
+        synchronized (mWriteLock) {
+            int[] numStudentsUpdated = new int[ids.length];
+            SQLiteDatabase db = getWritableDatabase();
+            SQLiteStatement updateStatement = getStatement(STATEMENT_ADD_STICKERS);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < ids.length; i++) {
+                    updateStatement.bindLong(1, numStickers[i]);
+                    updateStatement.bindLong(2, ids[i]);
+                    updateStatement.bindLong(3, numStickers[i]);
+                    numStudentsUpdated[i] = updateStatement.executeUpdateDelete();
+                    if (numStudentsUpdated[i] == 1) {
+                        insertStickerEvent(ids[i], numStickers[i],
+                                reasonForStickers(numStickers[i]));
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return numStudentsUpdated;
+        }
+    }
+
+    /**
+     * Adds a classroom with the given name to the database.
+     *
+     * @param name the name of the classroom (must be a non-empty string)
+     * @return the ID of the new classroom, or -1 if it could not be added
+     */
+    public long insertClassroom(String name) {
+        synchronized (mWriteLock) {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_NAME, name);
+            try {
+                return getWritableDatabase().insertOrThrow(TABLE_CLASSROOMS, null, values);
+            } catch (SQLException e) {
+                Log.e(TAG, "Unable to insert classroom with name " + name, e);
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Collapses the sticker events older than the given time into a single checkpoint event for
+     * each student, in a single transaction. The number of stickers of each student is unchanged,
+     * since the checkpoint event adds up the events it replaces.
+     *
+     * @param beforeTimestamp the time (in milliseconds since the epoch) before which events are
+     *        collapsed
+     * @return the number of events that were removed
+     */
+    public int compactStickerEvents(long beforeTimestamp) {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // The checkpoints get IDs after lastEventId, so they are not removed themselves.
+                long lastEventId = DatabaseUtils.longForQuery(db, "select ifnull(max(" + COLUMN_ID
+                        + "), 0) from " + TABLE_STICKER_EVENTS, null);
+                String oldEvents = COLUMN_ID + " <= ? and " + COLUMN_EVENT_TIMESTAMP + " < ?";
+
+                // Add up the old events of each student that has more than one.
+                db.execSQL("insert into " + TABLE_STICKER_EVENTS + " (" + COLUMN_EVENT_STUDENT_ID
+                        + ", " + COLUMN_EVENT_DELTA + ", " + COLUMN_EVENT_TIMESTAMP + ", "
+                        + COLUMN_EVENT_REASON + ") select " + COLUMN_EVENT_STUDENT_ID + ", sum("
+                        + COLUMN_EVENT_DELTA + "), max(" + COLUMN_EVENT_TIMESTAMP + "), ? from "
+                        + TABLE_STICKER_EVENTS + " where " + oldEvents + " group by "
+                        + COLUMN_EVENT_STUDENT_ID + " having count(*) > 1",
+                        new Object[] { REASON_CHECKPOINT, lastEventId, beforeTimestamp });
+
+                // Remove the events that were added up.
+                int numEventsRemoved = db.delete(TABLE_STICKER_EVENTS, oldEvents + " and "
+                        + COLUMN_EVENT_STUDENT_ID + " in (select " + COLUMN_EVENT_STUDENT_ID
+                        + " from " + TABLE_STICKER_EVENTS + " where " + COLUMN_ID + " > ?)",
+                        new String[] { String.valueOf(lastEventId),
+                                String.valueOf(beforeTimestamp), String.valueOf(lastEventId) });
+
+                db.setTransactionSuccessful();
+                return numEventsRemoved;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Checks that the class statistics ({@link #TABLE_CLASS_STATS} and
+     * {@link #TABLE_STICKER_HISTOGRAM}) match the students, and rebuilds them from the students
+     * if they do not. This reads every student, so it should only be done in the background.
+     *
+     * @return {@code true} if the statistics were correct, or {@code false} if they were rebuilt
+     */
+    public boolean verifyClassStats() {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                boolean consistent = countDifferences(db, "select " + COLUMN_CLASS_ID + ", "
+                        + COLUMN_NUM_STUDENTS + ", " + COLUMN_TOTAL_STICKERS + " from "
+                        + TABLE_CLASS_STATS, "select " + COLUMN_CLASS_ID + ", count(*), sum("
+                        + COLUMN_NUM_STICKERS + ") from " + TABLE_STUDENTS + " group by "
+                        + COLUMN_CLASS_ID) == 0
+                        && countDifferences(db, "select " + COLUMN_CLASS_ID + ", "
+                                + COLUMN_NUM_STICKERS + ", " + COLUMN_NUM_STUDENTS + " from "
+                                + TABLE_STICKER_HISTOGRAM, "select " + COLUMN_CLASS_ID + ", "
+                                + COLUMN_NUM_STICKERS + ", count(*) from " + TABLE_STUDENTS
+                                + " group by " + COLUMN_CLASS_ID + ", " + COLUMN_NUM_STICKERS)
+                                == 0;
+                if (!consistent) {
+                    rebuildClassStats(db);
+                }
+                db.setTransactionSuccessful();
+                mClassStatsCheckDue = false;
+                return consistent;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Determines whether the class statistics should be checked with {@link #verifyClassStats()},
+     * because the schema has been upgraded or the database replaced (for example, by a restore)
+     * since they were last checked. Otherwise, the triggers that maintain the statistics keep them
+     * correct, and the check, which reads every student, is not worth making. The check is not due
+     * until the data of the upgrade has been copied (see {@link #copyMigrationData()}), since the
+     * statistics may not have counted every student until then.
+     *
+     * @return {@code true} if the class statistics should be checked; otherwise {@code false}
+     */
+    public boolean isClassStatsCheckDue() {
+        return mClassStatsCheckDue && !mMigrationDataPending;
+    }
+
+    /**
+     * Copies the data of every migration that has not finished copying it (for example, the
+     * ledger of the stickers the students already had), a chunk at a time. The database is
+     * usable while the data is copied: each chunk is committed in its own short transaction, so
+     * reads do not wait for the copy, and writes wait for at most one chunk. A copy interrupted
+     * by the app being killed resumes where it left off.
+     *
+     * <p>
+     * Opening an upgraded database does not copy its data; this should be called on a background
+     * thread once it is open (see {@link StudentManager#copyMigrationDataInBackground()}). It
+     * returns once all of the data has been copied.
+     */
+    public void copyMigrationData() {
+        getWritableDatabase(); // Opening the database notes whether there is data to copy.
+        if (!mMigrationDataPending) {
+            return;
+        }
+        for (Migration migration : MIGRATIONS) {
+            if (migration.mHasData) {
+                while (copyMigrationChunk(migration)) {
+                    // Each chunk takes the write lock only while it is being copied.
+                }
+            }
+        }
+        mMigrationDataPending = false;
+    }
+
+    /**
+     * Determines whether the database was opened with the data of a migration still to copy, which
+     * {@link #copyMigrationData()} has not yet finished copying.
+     *
+     * @return {@code true} if the data of a migration is still to be copied; otherwise
+     *         {@code false}
+     */
+    public boolean isMigrationDataPending() {
+        return mMigrationDataPending;
+    }
+
+    // Counts the rows returned by only one of the given queries.
+    private static long countDifferences(SQLiteDatabase db, String query1, String query2) {
+        return DatabaseUtils.longForQuery(db, "select count(*) from (" + query1 + " except "
+                + query2 + ")", null)
+                + DatabaseUtils.longForQuery(db, "select count(*) from (" + query2 + " except "
+                        + query1 + ")", null);
+    }
+
+    // Computes the class statistics from the students, replacing any that were kept. Every
+    // student is then counted, so the migration that counts them has nothing left to copy.
+    private static void rebuildClassStats(SQLiteDatabase db) {
+        db.delete(TABLE_MIGRATIONS, COLUMN_MIGRATION_VERSION + " = ?",
+                new String[] { String.valueOf(CLASS_STATS_VERSION) });
+        db.delete(TABLE_CLASS_STATS, null, null);
+        db.delete(TABLE_STICKER_HISTOGRAM, null, null);
+        db.execSQL("insert into " + TABLE_CLASS_STATS + " (" + COLUMN_CLASS_ID + ", "
+                + COLUMN_NUM_STUDENTS + ", " + COLUMN_TOTAL_STICKERS + ") select "
+                + COLUMN_CLASS_ID + ", count(*), sum(" + COLUMN_NUM_STICKERS + ") from "
+                + TABLE_STUDENTS + " group by " + COLUMN_CLASS_ID);
+        db.execSQL("insert into " + TABLE_STICKER_HISTOGRAM + " (" + COLUMN_CLASS_ID + ", "
+                + COLUMN_NUM_STICKERS + ", " + COLUMN_NUM_STUDENTS + ") select "
+                + COLUMN_CLASS_ID + ", " + COLUMN_NUM_STICKERS + ", count(*) from "
+                + TABLE_STUDENTS + " group by " + COLUMN_CLASS_ID + ", " + COLUMN_NUM_STICKERS);
+    }
+
+    // Returns the condition, for use in a trigger, that the given row of the students table ("new"
+    // or "old") has been counted in the class statistics: every student has been, unless the
+    // migration that counts them has not yet reached it.
+    private static String isCountedInClassStatsSql(String row) {
+        return "not exists (select 1 from " + TABLE_MIGRATIONS + " where "
+                + COLUMN_MIGRATION_VERSION + " = " + CLASS_STATS_VERSION + " and "
+                + COLUMN_MIGRATION_LAST_ID + " < " + row + "." + COLUMN_ID + ")";
+    }
+
+    // Returns the statements, for use in a trigger, that count the given row of the students
+    // table ("new" or "old") in the class statistics, or that stop counting it.
+    private static String countInClassStatsSql(String row, boolean count) {
+        String classId = row + "." + COLUMN_CLASS_ID;
+        String numStickers = row + "." + COLUMN_NUM_STICKERS;
+        String statsRow = " where " + COLUMN_CLASS_ID + " = " + classId;
+        String histogramRow = statsRow + " and " + COLUMN_NUM_STICKERS + " = " + numStickers;
+        if (count) {
+            return "insert or ignore into " + TABLE_CLASS_STATS + " values (" + classId
+                    + ", 0, 0); update " + TABLE_CLASS_STATS + " set " + COLUMN_NUM_STUDENTS
+                    + " = " + COLUMN_NUM_STUDENTS + " + 1, " + COLUMN_TOTAL_STICKERS + " = "
+                    + COLUMN_TOTAL_STICKERS + " + " + numStickers + statsRow + "; "
+                    + "insert or ignore into " + TABLE_STICKER_HISTOGRAM + " values (" + classId
+                    + ", " + numStickers + ", 0); update " + TABLE_STICKER_HISTOGRAM + " set "
+                    + COLUMN_NUM_STUDENTS + " = " + COLUMN_NUM_STUDENTS + " + 1" + histogramRow
+                    + "; ";
+        }
+        return "update " + TABLE_CLASS_STATS + " set " + COLUMN_NUM_STUDENTS + " = "
+                + COLUMN_NUM_STUDENTS + " - 1, " + COLUMN_TOTAL_STICKERS + " = "
+                + COLUMN_TOTAL_STICKERS + " - " + numStickers + statsRow + "; "
+                + "delete from " + TABLE_CLASS_STATS + statsRow + " and " + COLUMN_NUM_STUDENTS
+                + " = 0; update " + TABLE_STICKER_HISTOGRAM + " set " + COLUMN_NUM_STUDENTS
+                + " = " + COLUMN_NUM_STUDENTS + " - 1" + histogramRow + "; "
+                + "delete from " + TABLE_STICKER_HISTOGRAM + histogramRow + " and "
+                + COLUMN_NUM_STUDENTS + " = 0; ";
+    }
+
+    // Updates the given student, and records any change to its number of stickers as an edit. The
+    // caller must hold mWriteLock and be in a transaction.
+    private int updateStudentAndRecordStickers(Student student) {
+        long oldNumStickers = readNumStickers(student.getId());
+        SQLiteStatement updateStatement = getStatement(STATEMENT_UPDATE);
+        bindStudentValues(updateStatement, student);
+        updateStatement.bindLong(5, student.getId());
+        int numStudentsUpdated = updateStatement.executeUpdateDelete();
+        if (numStudentsUpdated == 1) {
+            insertStickerEvent(student.getId(), student.getNumStickers() - oldNumStickers,
+                    REASON_EDIT);
+        }
+        return numStudentsUpdated;
+    }
+
+    // Appends an event to the ledger of the given student's stickers, unless the number of stickers
+    // did not change. The caller must hold mWriteLock and be in the transaction that changed the
+    // student's number of stickers.
+    private void insertStickerEvent(long studentId, long numStickers, String reason) {
+        if (numStickers == 0) {
+            return;
+        }
+        SQLiteStatement insertStatement = getStatement(STATEMENT_INSERT_STICKER_EVENT);
+        insertStatement.bindLong(1, studentId);
+        insertStatement.bindLong(2, numStickers);
+        insertStatement.bindLong(3, System.currentTimeMillis());
+        insertStatement.bindString(4, reason);
+        insertStatement.executeInsert();
+    }
+
+    // Reads the number of stickers of the student with the given ID with the precompiled statement,
+    // or returns -1 if there is no such student. Unlike queryNumStickers(), which readers use, the
+    // caller must hold mWriteLock, and should be in the transaction that reads the count.
+    private long readNumStickers(long id) {
+        SQLiteStatement queryStatement = getStatement(STATEMENT_QUERY_NUM_STICKERS);
+        queryStatement.bindLong(1, id);
+        try {
+            return queryStatement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1; // No such student.
+        }
+    }
+
+    private static String reasonForStickers(int numStickers) {
+        return numStickers < 0 ? REASON_UNDO : REASON_AWARD;
+    }
+
+    // Copies the next chunk of the data of the given migration, if it has not finished copying
+    // it, committing the chunk along with the migration's progress. The progress is read in the
+    // same transaction, so chunks copied by different threads never overlap. Returns whether
+    // there may be more data to copy.
+    private boolean copyMigrationChunk(Migration migration) {
+        synchronized (mWriteLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                String[] versionArgs = new String[] { String.valueOf(migration.mVersion) };
+                long lastId = DatabaseUtils.longForQuery(db, "select ifnull(max("
+                        + COLUMN_MIGRATION_LAST_ID + "), -1) from " + TABLE_MIGRATIONS + " where "
+                        + COLUMN_MIGRATION_VERSION + " = ?", versionArgs);
+                if (lastId != -1) {
+                    lastId = migration.copyData(db, lastId, MIGRATION_CHUNK_SIZE);
+                    if (lastId == -1) {
+                        db.delete(TABLE_MIGRATIONS, COLUMN_MIGRATION_VERSION + " = ?",
+                                versionArgs);
+                    } else {
+                        db.execSQL("update " + TABLE_MIGRATIONS + " set "
+                                + COLUMN_MIGRATION_LAST_ID + " = ? where "
+                                + COLUMN_MIGRATION_VERSION + " = ?",
+                                new Object[] { lastId, migration.mVersion });
+                    }
+                }
+                db.setTransactionSuccessful();
+                return lastId != -1;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    private static void copyFile(File source, File destination) throws IOException {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(destination);
+            try {
+                byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                int numBytes;
+                while ((numBytes = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, numBytes);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Gets the given precompiled statement for the current connection to the database, compiling
+    // it first if this is the first time it has been needed on this connection. The caller must
+    // hold mWriteLock for as long as it uses the statement.
+    private SQLiteStatement getStatement(int statementIndex) {
         SQLiteDatabase db = getWritableDatabase();
+        if (db != mStatementDb) {
+            // The statements belong to a connection that has since been closed.
+            releaseStatements();
+            mStatementDb = db;
+        }
+        SQLiteStatement statement = mStatements[statementIndex];
+        if (statement == null) {
+            statement = db.compileStatement(STATEMENT_SQL[statementIndex]);
+            mStatements[statementIndex] = statement;
+        }
+        return statement;
+    }
 
-        // Delete the student with the given ID from the database.
-        int numStudentsDeleted = db.delete(TABLE_STUDENTS, COLUMN_ID + " = ?",
-                new String[] { String.valueOf(id) });
-        db.close();
+    // Releases all of the precompiled statements. The caller must hold mWriteLock.
+    private void releaseStatements() {
+        for (int i = 0; i < mStatements.length; i++) {
+            if (mStatements[i] != null) {
+                mStatements[i].close();
+                mStatements[i] = null;
+            }
+        }
+        mStatementDb = null;
+    }
+
+    // Binds the name, image name and number of stickers of the given student to the first three
+    // parameters of the given statement.
+    private static void bindStudentValues(SQLiteStatement statement, Student student) {
+        bindStringOrNull(statement, 1, student.getName());
+        bindStringOrNull(statement, 2, student.getImgName());
+        statement.bindLong(3, student.getNumStickers());
+        statement.bindLong(4, student.getClassId());
+    }
 
-        // This should only have deleted a single student.
-        if (numStudentsDeleted > 1) {
-            Log.e(TAG, "When attempted to delete student with ID = " + id + ", "
-                    + numStudentsDeleted + " students were deleted!");
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
         }
+    }
+    // The migrations that bring a version 1 database up to date, in order.
+    private static final Migration[] MIGRATIONS = {
+            new Migration(2, false) {
+                // Index the columns by which students are listed.
+                @Override
+                void upgradeSchema(SQLiteDatabase db) {
+                    db.execSQL("create index " + INDEX_STUDENTS_NAME + " on " + TABLE_STUDENTS
+                            + " (" + COLUMN_NAME + " collate nocase)");
+                    db.execSQL("create index " + INDEX_STUDENTS_NUM_STICKERS + " on "
+                            + TABLE_STUDENTS + " (" + COLUMN_NUM_STICKERS + ")");
+                }
+            },
+            new Migration(3, true) {
+                // Record every change to the number of stickers of each student.
+                @Override
+                void upgradeSchema(SQLiteDatabase db) {
+                    db.execSQL("create table " + TABLE_STICKER_EVENTS + "("
+                            + COLUMN_ID + " integer primary key autoincrement, "
+                            + COLUMN_EVENT_STUDENT_ID + " integer not null references "
+                            + TABLE_STUDENTS + "(" + COLUMN_ID + "), "
+                            + COLUMN_EVENT_DELTA + " integer not null, "
+                            + COLUMN_EVENT_TIMESTAMP + " integer not null, "
+                            + COLUMN_EVENT_REASON + " text not null"
+                            + ")");
+                    db.execSQL("create index " + INDEX_STICKER_EVENTS_STUDENT_ID + " on "
+                            + TABLE_STICKER_EVENTS + " (" + COLUMN_EVENT_STUDENT_ID + ")");
+                    db.execSQL("create trigger " + TRIGGER_DELETE_STICKER_EVENTS
+                            + " after delete on " + TABLE_STUDENTS + " begin delete from "
+                            + TABLE_STICKER_EVENTS + " where " + COLUMN_EVENT_STUDENT_ID
+                            + " = old." + COLUMN_ID + "; end");
+                }
+
+                // Start the ledger of each existing student with the stickers it already has.
+                // Stickers recorded since the upgrade, while the data was being copied, are
+                // already in the ledger, so they are left out of its first event.
+                @Override
+                long copyData(SQLiteDatabase db, long afterId, int maxRows) {
+                    long lastId = DatabaseUtils.longForQuery(db, "select ifnull(max(" + COLUMN_ID
+                            + "), -1) from (select " + COLUMN_ID + " from " + TABLE_STUDENTS
+                            + " where " + COLUMN_ID + " > ? order by " + COLUMN_ID + " limit ?)",
+                            new String[] { String.valueOf(afterId), String.valueOf(maxRows) });
+                    if (lastId != -1) {
+                        db.execSQL("insert into " + TABLE_STICKER_EVENTS + " ("
+                                + COLUMN_EVENT_STUDENT_ID + ", " + COLUMN_EVENT_DELTA + ", "
+                                + COLUMN_EVENT_TIMESTAMP + ", " + COLUMN_EVENT_REASON
+                                + ") select " + COLUMN_ID + ", " + COLUMN_EVENT_DELTA + ", ?, ?"
+                                + " from (select " + COLUMN_ID + ", " + COLUMN_NUM_STICKERS
+                                + " - ifnull((select sum(" + COLUMN_EVENT_DELTA + ") from "
+                                + TABLE_STICKER_EVENTS + " where " + COLUMN_EVENT_STUDENT_ID
+                                + " = " + TABLE_STUDENTS + "." + COLUMN_ID + "), 0) as "
+                                + COLUMN_EVENT_DELTA + " from " + TABLE_STUDENTS + " where "
+                                + COLUMN_ID + " > ? and " + COLUMN_ID + " <= ?) where "
+                                + COLUMN_EVENT_DELTA + " != 0", new Object[] {
+                                        System.currentTimeMillis(), REASON_CHECKPOINT, afterId,
+                                        lastId });
+                    }
+                    return lastId;
+                }
+            },
+            new Migration(4, false) {
+                // Divide the students into classrooms, putting the existing students in the first.
+                @Override
+                void upgradeSchema(SQLiteDatabase db) {
+                    db.execSQL("create table " + TABLE_CLASSROOMS + "("
+                            + COLUMN_ID + " integer primary key autoincrement, "
+                            + COLUMN_NAME + " varchar(255) not null check (" + COLUMN_NAME
+                            + " != '')"
+                            + ")");
+                    db.execSQL("insert into " + TABLE_CLASSROOMS + " (" + COLUMN_ID + ", "
+                            + COLUMN_NAME + ") values (?, ?)", new Object[] {
+                            Student.DEFAULT_CLASS_ID, DEFAULT_CLASSROOM_NAME });
+
+                    // Adding a column with a default value does not rewrite the table.
+                    db.execSQL("alter table " + TABLE_STUDENTS + " add column " + COLUMN_CLASS_ID
+                            + " integer not null default " + Student.DEFAULT_CLASS_ID
+                            + " references " + TABLE_CLASSROOMS + "(" + COLUMN_ID + ")");
+                    db.execSQL("drop index " + INDEX_STUDENTS_NAME);
+                    db.execSQL("create index " + INDEX_STUDENTS_CLASS_ID_NAME + " on "
+                            + TABLE_STUDENTS + " (" + COLUMN_CLASS_ID + ", " + COLUMN_NAME
+                            + " collate nocase)");
+                }
+            },
+            new Migration(5, true) {
+                // Index every word of the students' names, so students can be found by prefix.
+                @Override
+                void upgradeSchema(SQLiteDatabase db) {
+                    db.execSQL("create virtual table " + TABLE_STUDENT_NAME_SEARCH
+                            + " using fts4(" + COLUMN_NAME + ")");
+                    db.execSQL("create trigger " + TRIGGER_INSERT_NAME_SEARCH
+                            + " after insert on " + TABLE_STUDENTS + " begin insert into "
+                            + TABLE_STUDENT_NAME_SEARCH + " (docid, " + COLUMN_NAME
+                            + ") values (new." + COLUMN_ID + ", new." + COLUMN_NAME + "); end");
+                    db.execSQL("create trigger " + TRIGGER_UPDATE_NAME_SEARCH
+                            + " after update of " + COLUMN_NAME + " on " + TABLE_STUDENTS
+                            + " begin update " + TABLE_STUDENT_NAME_SEARCH + " set "
+                            + COLUMN_NAME + " = new." + COLUMN_NAME + " where docid = new."
+                            + COLUMN_ID + "; end");
+                    db.execSQL("create trigger " + TRIGGER_DELETE_NAME_SEARCH
+                            + " after delete on " + TABLE_STUDENTS + " begin delete from "
+                            + TABLE_STUDENT_NAME_SEARCH + " where docid = old." + COLUMN_ID
+                            + "; end");
+                }
+
+                // Index the names of the existing students. Students added since the upgrade
+                // were already indexed by the trigger, so they are skipped.
+                @Override
+                long copyData(SQLiteDatabase db, long afterId, int maxRows) {
+                    long lastId = DatabaseUtils.longForQuery(db, "select ifnull(max(" + COLUMN_ID
+                            + "), -1) from (select " + COLUMN_ID + " from " + TABLE_STUDENTS
+                            + " where " + COLUMN_ID + " > ? order by " + COLUMN_ID + " limit ?)",
+                            new String[] { String.valueOf(afterId), String.valueOf(maxRows) });
+                    if (lastId != -1) {
+                        db.execSQL("insert into " + TABLE_STUDENT_NAME_SEARCH + " (docid, "
+                                + COLUMN_NAME + ") select " + COLUMN_ID + ", " + COLUMN_NAME
+                                + " from " + TABLE_STUDENTS + " where " + COLUMN_ID + " > ? and "
+                                + COLUMN_ID + " <= ? and " + COLUMN_ID + " not in (select docid"
+                                + " from " + TABLE_STUDENT_NAME_SEARCH + ")",
+                                new Object[] { afterId, lastId });
+                    }
+                    return lastId;
+                }
+            },
+            new Migration(6, false) {
+                // Index the leaderboard of each classroom, with ties listed by name.
+                @Override
+                void upgradeSchema(SQLiteDatabase db) {
+                    db.execSQL("drop index " + INDEX_STUDENTS_NUM_STICKERS);
+                    db.execSQL("create index " + INDEX_STUDENTS_CLASS_ID_NUM_STICKERS + " on "
+                            + TABLE_STUDENTS + " (" + COLUMN_CLASS_ID + ", " + COLUMN_NUM_STICKERS
+                            + " desc, " + COLUMN_NAME + " collate nocase)");
+                }
+            },
+            new Migration(CLASS_STATS_VERSION, true) {
+                // Keep statistics on the stickers of each classroom, updated as they change. The
+                // triggers only update the statistics for students that have already been counted
+                // in them, so that students changed while the data is copied are not counted
+                // twice (or uncounted before they have been counted).
+                @Override
+                void upgradeSchema(SQLiteDatabase db) {
+                    db.execSQL("create table " + TABLE_CLASS_STATS + "("
+                            + COLUMN_CLASS_ID + " integer primary key references "
+                            + TABLE_CLASSROOMS + "(" + COLUMN_ID + "), "
+                            + COLUMN_NUM_STUDENTS + " integer not null, "
+                            + COLUMN_TOTAL_STICKERS + " integer not null"
+                            + ")");
+                    db.execSQL("create table " + TABLE_STICKER_HISTOGRAM + "("
+                            + COLUMN_CLASS_ID + " integer not null references "
+                            + TABLE_CLASSROOMS + "(" + COLUMN_ID + "), "
+                            + COLUMN_NUM_STICKERS + " integer not null, "
+                            + COLUMN_NUM_STUDENTS + " integer not null, "
+                            + "primary key (" + COLUMN_CLASS_ID + ", " + COLUMN_NUM_STICKERS + ")"
+                            + ")");
+                    db.execSQL("create trigger " + TRIGGER_INSERT_CLASS_STATS
+                            + " after insert on " + TABLE_STUDENTS + " when "
+                            + isCountedInClassStatsSql("new") + " begin "
+                            + countInClassStatsSql("new", true) + "end");
+                    db.execSQL("create trigger " + TRIGGER_UPDATE_CLASS_STATS
+                            + " after update of " + COLUMN_NUM_STICKERS + ", " + COLUMN_CLASS_ID
+                            + " on " + TABLE_STUDENTS + " when (old." + COLUMN_NUM_STICKERS
+                            + " != new." + COLUMN_NUM_STICKERS + " or old." + COLUMN_CLASS_ID
+                            + " != new." + COLUMN_CLASS_ID + ") and "
+                            + isCountedInClassStatsSql("old") + " begin "
+                            + countInClassStatsSql("old", false)
+                            + countInClassStatsSql("new", true) + "end");
+                    db.execSQL("create trigger " + TRIGGER_DELETE_CLASS_STATS
+                            + " after delete on " + TABLE_STUDENTS + " when "
+                            + isCountedInClassStatsSql("old") + " begin "
+                            + countInClassStatsSql("old", false) + "end");
+                }
+
+                // Count the existing students in the statistics of their classrooms, along with
+                // the students added since the upgrade, which the triggers left uncounted.
+                @Override
+                long copyData(SQLiteDatabase db, long afterId, int maxRows) {
+                    long lastId = DatabaseUtils.longForQuery(db, "select ifnull(max(" + COLUMN_ID
+                            + "), -1) from (select " + COLUMN_ID + " from " + TABLE_STUDENTS
+                            + " where " + COLUMN_ID + " > ? order by " + COLUMN_ID + " limit ?)",
+                            new String[] { String.valueOf(afterId), String.valueOf(maxRows) });
+                    if (lastId != -1) {
+                        String chunk = " from " + TABLE_STUDENTS + " where " + COLUMN_ID
+                                + " > ? and " + COLUMN_ID + " <= ? group by " + COLUMN_CLASS_ID;
+                        db.execSQL("insert or replace into " + TABLE_CLASS_STATS + " ("
+                                + COLUMN_CLASS_ID + ", " + COLUMN_NUM_STUDENTS + ", "
+                                + COLUMN_TOTAL_STICKERS + ") select chunk." + COLUMN_CLASS_ID
+                                + ", ifnull(stats." + COLUMN_NUM_STUDENTS + ", 0) + chunk."
+                                + COLUMN_NUM_STUDENTS + ", ifnull(stats." + COLUMN_TOTAL_STICKERS
+                                + ", 0) + chunk." + COLUMN_TOTAL_STICKERS + " from (select "
+                                + COLUMN_CLASS_ID + ", count(*) as " + COLUMN_NUM_STUDENTS
+                                + ", sum(" + COLUMN_NUM_STICKERS + ") as " + COLUMN_TOTAL_STICKERS
+                                + chunk + ") as chunk left join " + TABLE_CLASS_STATS
+                                + " as stats on stats." + COLUMN_CLASS_ID + " = chunk."
+                                + COLUMN_CLASS_ID, new Object[] { afterId, lastId });
+                        db.execSQL("insert or replace into " + TABLE_STICKER_HISTOGRAM + " ("
+                                + COLUMN_CLASS_ID + ", " + COLUMN_NUM_STICKERS + ", "
+                                + COLUMN_NUM_STUDENTS + ") select chunk." + COLUMN_CLASS_ID
+                                + ", chunk." + COLUMN_NUM_STICKERS + ", ifnull(histogram."
+                                + COLUMN_NUM_STUDENTS + ", 0) + chunk." + COLUMN_NUM_STUDENTS
+                                + " from (select " + COLUMN_CLASS_ID + ", " + COLUMN_NUM_STICKERS
+                                + ", count(*) as " + COLUMN_NUM_STUDENTS + chunk + ", "
+                                + COLUMN_NUM_STICKERS + ") as chunk left join "
+                                + TABLE_STICKER_HISTOGRAM + " as histogram on histogram."
+                                + COLUMN_CLASS_ID + " = chunk." + COLUMN_CLASS_ID
+                                + " and histogram." + COLUMN_NUM_STICKERS + " = chunk."
+                                + COLUMN_NUM_STICKERS, new Object[] { afterId, lastId });
+                    }
+                    return lastId;
+                }
+            },
+            new Migration(8, false) {
+                // Version each student, so that an update can be made only if the student has
+                // not changed since it was read. Existing students start at version 0.
+                @Override
+                void upgradeSchema(SQLiteDatabase db) {
+                    db.execSQL("alter table " + TABLE_STUDENTS + " add column " + COLUMN_VERSION
+                            + " integer not null default 0");
+
+                    // Any update that does not set the version itself increments it.
+                    db.execSQL("create trigger " + TRIGGER_UPDATE_VERSION + " after update of "
+                            + COLUMN_NAME + ", " + COLUMN_IMAGE_NAME + ", " + COLUMN_NUM_STICKERS
+                            + ", " + COLUMN_CLASS_ID + " on " + TABLE_STUDENTS + " when new."
+                            + COLUMN_VERSION + " = old." + COLUMN_VERSION + " begin update "
+                            + TABLE_STUDENTS + " set " + COLUMN_VERSION + " = old."
+                            + COLUMN_VERSION + " + 1 where " + COLUMN_ID + " = new." + COLUMN_ID
+                            + "; end");
+                }
+            },
+    };
 
-        return numStudentsDeleted;
+    // A step in upgrading the database to the next version. Its schema changes must be quick, since
+    // they are made while the database is being opened. Any data it copies is copied in chunks.
+    private abstract static class Migration {
+        // The version to which this migration upgrades the database.
+        final int mVersion;
+
+        // Whether this migration copies data (overriding copyData()).
+        final boolean mHasData;
+
+        Migration(int version, boolean hasData) {
+            mVersion = version;
+            mHasData = hasData;
+        }
+
+        // Makes the schema changes of this migration.
+        abstract void upgradeSchema(SQLiteDatabase db);
+
+        // Copies the data of at most maxRows rows with IDs after the given ID, within the caller's
+        // transaction, and returns the ID of the last row copied, or -1 if there were none left.
+        long copyData(SQLiteDatabase db, long afterId, int maxRows) {
+            return -1;
+        }
+    }
+
+    /**
+     * A source of students to insert with
+     * {@link StudentSQLiteOpenHelper#insertStudents(StudentSource)}, which are read one at a time.
+     */
+    public interface StudentSource {
+        /**
+         * Reads the next student.
+         *
+         * @return the next student, or {@code null} if there are none left
+         * @throws IOException if the student could not be read
+         */
+        public Student next() throws IOException;
+    }
+
+    /**
+     * A unit of work to run in a single database transaction with
+     * {@link StudentSQLiteOpenHelper#runInTransaction(Transaction)}.
+     *
+     * @param <T> the type of the result of the transaction
+     * @param <E> the type of the exception with which the transaction may fail
+     */
+    public interface Transaction<T, E extends Exception> {
+        /**
+         * Makes the writes of the transaction.
+         *
+         * @return the result of the transaction
+         * @throws E if the transaction failed, so that its writes should be rolled back
+         */
+        public T run() throws E;
     }
 
     /**
@@ -147,6 +1614,18 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
      * @author ajkwak@users.noreply.github.com (AJ Parmidge)
      */
     public static class StudentCursor extends CursorWrapper {
+        // The indices of the columns, looked up once rather than for every row; -1 for a column
+        // the cursor does not have.
+        private final int mIdIndex;
+        private final int mNameIndex;
+        private final int mImgNameIndex;
+        private final int mNumStickersIndex;
+        private final int mClassIdIndex;
+        private final int mVersionIndex;
+
+        // The numbers of stickers to return instead of those in the table, keyed by student ID;
+        // null if there are none, or the cursor has no ID or no number of stickers to replace.
+        private final Map<Long, Integer> mNumStickersOverrides;
 
         /**
          * Creates a {@code StudentCursor} that wraps the given cursor.
@@ -154,7 +1633,48 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
          * @param cursor the cursor to wrap
          */
         public StudentCursor(Cursor cursor) {
+            this(cursor, null);
+        }
+
+        /**
+         * Creates a {@code StudentCursor} that wraps the given cursor, but returns the given
+         * numbers of stickers for the given students instead of those in the table, such as the
+         * counts of stickers that have been changed but not yet written. The numbers can only be
+         * replaced if the cursor has the {@link StudentSQLiteOpenHelper#COLUMN_ID COLUMN_ID}
+         * column.
+         *
+         * @param cursor the cursor to wrap
+         * @param numStickersOverrides the numbers of stickers to return, keyed by student ID, or
+         *        {@code null} to return those in the table
+         */
+        public StudentCursor(Cursor cursor, Map<Long, Integer> numStickersOverrides) {
             super(cursor);
+            mIdIndex = cursor.getColumnIndex(COLUMN_ID);
+            mNameIndex = cursor.getColumnIndex(COLUMN_NAME);
+            mImgNameIndex = cursor.getColumnIndex(COLUMN_IMAGE_NAME);
+            mNumStickersIndex = cursor.getColumnIndex(COLUMN_NUM_STICKERS);
+            mClassIdIndex = cursor.getColumnIndex(COLUMN_CLASS_ID);
+            mVersionIndex = cursor.getColumnIndex(COLUMN_VERSION);
+            mNumStickersOverrides = numStickersOverrides == null || numStickersOverrides.isEmpty()
+                    || mIdIndex == -1 || mNumStickersIndex == -1 ? null : numStickersOverrides;
+        }
+
+        @Override
+        public int getInt(int columnIndex) {
+            Integer numStickers = getNumStickersOverride(columnIndex);
+            return numStickers != null ? numStickers : super.getInt(columnIndex);
+        }
+
+        @Override
+        public long getLong(int columnIndex) {
+            Integer numStickers = getNumStickersOverride(columnIndex);
+            return numStickers != null ? numStickers : super.getLong(columnIndex);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            Integer numStickers = getNumStickersOverride(columnIndex);
+            return numStickers != null ? numStickers.toString() : super.getString(columnIndex);
         }
 
         /**
@@ -167,13 +1687,109 @@ public class StudentSQLiteOpenHelper extends SQLiteOpenHelper {
             if (isBeforeFirst() || isAfterLast()) {
                 return null; // There is no current row.
             }
-            Student student = new Student();
-            student.setID(getLong(getColumnIndex(COLUMN_ID)));
-            student.setName(getString(getColumnIndex(COLUMN_NAME)));
-            student.setImgName(getString(getColumnIndex(COLUMN_IMAGE_NAME)));
-            student.setNumStickers(getInt(getColumnIndex(COLUMN_NUM_STICKERS)));
-            return student;
+            return getStudent(new Student());
+        }
+
+        /**
+         * Sets the fields of the given {@link Student} to the current row in the {@code students}
+         * table, so that a scan of many rows can reuse a single {@code Student} rather than
+         * creating one for each row. There must be a current row.
+         *
+         * @param student the student to fill in
+         * @return the given student
+         */
+        public Student getStudent(Student student) {
+            return student.setID(getLong(mIdIndex))
+                    .setName(getString(mNameIndex))
+                    .setImgName(getString(mImgNameIndex))
+                    .setNumStickers(getInt(mNumStickersIndex))
+                    .setClassId(getLong(mClassIdIndex));
+        }
+
+        /**
+         * Creates an immutable {@link StudentSnapshot} of the current row in the {@code students}
+         * table, including the version of the student. There must be a current row, and the
+         * cursor must have all of the columns of the table.
+         *
+         * @return the snapshot of this row in the {@code students} table
+         */
+        public StudentSnapshot getSnapshot() {
+            return new StudentSnapshot(getLong(mIdIndex), getString(mNameIndex),
+                    getString(mImgNameIndex), getInt(mNumStickersIndex), getLong(mClassIdIndex),
+                    getLong(mVersionIndex));
+        }
+
+        /**
+         * Gets the ID of the student in the current row, without creating a {@link Student}.
+         * There must be a current row.
+         *
+         * @return the ID of the student
+         */
+        public long getId() {
+            return getLong(mIdIndex);
+        }
+
+        /**
+         * Gets the name of the student in the current row, without creating a {@link Student}.
+         * There must be a current row.
+         *
+         * @return the name of the student
+         */
+        public String getName() {
+            return getString(mNameIndex);
+        }
+
+        /**
+         * Gets the image name of the student in the current row, without creating a
+         * {@link Student}. There must be a current row, and the cursor must have the
+         * {@link StudentSQLiteOpenHelper#COLUMN_IMAGE_NAME COLUMN_IMAGE_NAME} column.
+         *
+         * @return the image name of the student, or {@code null} if the student has no image
+         */
+        public String getImgName() {
+            return getString(mImgNameIndex);
+        }
+
+        /**
+         * Gets the number of stickers of the student in the current row, without creating a
+         * {@link Student}. There must be a current row, and the cursor must have the
+         * {@link StudentSQLiteOpenHelper#COLUMN_NUM_STICKERS COLUMN_NUM_STICKERS} column.
+         *
+         * @return the number of stickers of the student
+         */
+        public int getStickerCount() {
+            return getInt(mNumStickersIndex);
+        }
+
+        /**
+         * Creates an instance of {@link StudentRow} that represents the current row in the
+         * {@code students} table. Only the {@link StudentSQLiteOpenHelper#COLUMN_ID COLUMN_ID} and
+         * {@link StudentSQLiteOpenHelper#COLUMN_NAME COLUMN_NAME} columns are required; any other
+         * column missing from this cursor is left unset in the returned row.
+         *
+         * @return the {@link StudentRow} representation of this row in the {@code students} table
+         */
+        public StudentRow getStudentRow() {
+            if (isBeforeFirst() || isAfterLast()) {
+                return null; // There is no current row.
+            }
+            if (mIdIndex == -1 || mNameIndex == -1) {
+                throw new IllegalArgumentException("The cursor has no " + COLUMN_ID + " or "
+                        + COLUMN_NAME + " column");
+            }
+            return new StudentRow(getLong(mIdIndex), getString(mNameIndex),
+                    mImgNameIndex == -1 ? null : getString(mImgNameIndex),
+                    mNumStickersIndex == -1 ? StudentRow.UNKNOWN_NUM_STICKERS
+                            : getInt(mNumStickersIndex));
         }
 
+        // Returns the number of stickers to return instead of the value of the given column of the
+        // current row, or null to return the value in the table.
+        private Integer getNumStickersOverride(int columnIndex) {
+            if (columnIndex != mNumStickersIndex || mNumStickersOverrides == null) {
+                return null;
+            }
+            return mNumStickersOverrides.get(super.getLong(mIdIndex));
+        }
     }
 }
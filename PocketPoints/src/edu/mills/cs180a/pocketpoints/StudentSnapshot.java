@@ -0,0 +1,167 @@
+package edu.mills.cs180a.pocketpoints;
+
+/**
+ * An immutable snapshot of a single student, as it was at a given version in the database (see
+ * {@link StudentSQLiteOpenHelper#COLUMN_VERSION}). Because a snapshot never changes, it can be
+ * shared by any number of threads and fragments without copying or locking; the
+ * {@link StudentManager} hands out the same instance until the student changes.
+ *
+ * <p>
+ * To change a student, derive a new snapshot with the {@code with...} methods and pass it to
+ * {@link StudentManager#compareAndSetStudent(StudentSnapshot)}, which only makes the change if
+ * the student is still at the version of the snapshot, so that a change based on a stale copy of
+ * the student cannot overwrite a more recent one. The mutable {@link Student} remains the way to
+ * create students (see {@link #toStudent()}).
+ */
+public final class StudentSnapshot {
+    private final long mId;
+    private final String mName;
+    private final String mImgName;
+    private final int mNumStickers;
+    private final long mClassId;
+    private final long mVersion;
+
+    StudentSnapshot(long id, String name, String imgName, int numStickers, long classId,
+            long version) {
+        mId = id;
+        mName = name;
+        mImgName = imgName;
+        mNumStickers = numStickers;
+        mClassId = classId;
+        mVersion = version;
+    }
+
+    // Creates a snapshot of the given student at the given version.
+    static StudentSnapshot of(Student student, long version) {
+        return new StudentSnapshot(student.getId(), student.getName(), student.getImgName(),
+                student.getNumStickers(), student.getClassId(), version);
+    }
+
+    /**
+     * Creates a snapshot of a new student, which is not yet in the database, in the classroom with
+     * the given ID. The student has no name, image or stickers, and its ID is
+     * {@link Student#INVALID_ID}.
+     *
+     * @param classId the ID of the classroom of the new student
+     * @return a snapshot of the new student
+     */
+    public static StudentSnapshot forNewStudent(long classId) {
+        return new StudentSnapshot(Student.INVALID_ID, null, null, 0, classId, 0);
+    }
+
+    /**
+     * Gets the unique ID of the student.
+     *
+     * @return the ID of the student, or {@link Student#INVALID_ID} if the student is not in the
+     *         database
+     */
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Gets the name of the student.
+     *
+     * @return the name of the student
+     */
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the name of the image of the student, if there is one.
+     *
+     * @return the name of the image associated with the student (if it exists); otherwise
+     *         {@code null}
+     */
+    public String getImgName() {
+        return mImgName;
+    }
+
+    /**
+     * Gets the number of stickers the student has earned.
+     *
+     * @return the number of stickers earned by the student
+     */
+    public int getNumStickers() {
+        return mNumStickers;
+    }
+
+    /**
+     * Gets the ID of the classroom the student belongs to.
+     *
+     * @return the ID of the student's classroom
+     */
+    public long getClassId() {
+        return mClassId;
+    }
+
+    /**
+     * Gets the version of the student this is a snapshot of.
+     *
+     * @return the version of the student
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Creates a snapshot that differs from this one only in the name of the student. It has the
+     * same version, so that it can be used to update the student.
+     *
+     * @param name the name of the student (must be a non-empty string)
+     * @return the new snapshot
+     */
+    public StudentSnapshot withName(String name) {
+        assert name != null && !name.isEmpty() : "Name must be non-empty string.";
+        return new StudentSnapshot(mId, name, mImgName, mNumStickers, mClassId, mVersion);
+    }
+
+    /**
+     * Creates a snapshot that differs from this one only in the name of the image of the student.
+     * An image name of {@code null} or an empty string means the student has no image.
+     *
+     * @param imgName the name of the image of the student
+     * @return the new snapshot
+     */
+    public StudentSnapshot withImgName(String imgName) {
+        return new StudentSnapshot(mId, mName, imgName == null || imgName.isEmpty() ? null
+                : imgName, mNumStickers, mClassId, mVersion);
+    }
+
+    /**
+     * Creates a snapshot that differs from this one only in the number of stickers of the student.
+     *
+     * @param numStickers the number of stickers of the student (must be nonnegative)
+     * @return the new snapshot
+     */
+    public StudentSnapshot withNumStickers(int numStickers) {
+        assert numStickers >= 0 : "Number of stickers cannot be negative.";
+        return new StudentSnapshot(mId, mName, mImgName, numStickers, mClassId, mVersion);
+    }
+
+    /**
+     * Creates a snapshot that differs from this one only in the classroom of the student.
+     *
+     * @param classId the ID of the classroom of the student
+     * @return the new snapshot
+     */
+    public StudentSnapshot withClassId(long classId) {
+        return new StudentSnapshot(mId, mName, mImgName, mNumStickers, classId, mVersion);
+    }
+
+    /**
+     * Creates a mutable {@link Student} with the values of this snapshot, for example to insert a
+     * new student into the database.
+     *
+     * @return a new {@code Student} with the values of this snapshot
+     */
+    public Student toStudent() {
+        Student student = new Student().setID(mId).setImgName(mImgName)
+                .setNumStickers(mNumStickers).setClassId(mClassId);
+        if (mName != null) {
+            student.setName(mName);
+        }
+        return student;
+    }
+}
@@ -0,0 +1,251 @@
+package edu.mills.cs180a.pocketpoints.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Looper;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Callback;
+import edu.mills.cs180a.pocketpoints.AsyncStudentManager.Request;
+import edu.mills.cs180a.pocketpoints.Student;
+import edu.mills.cs180a.pocketpoints.StudentManager;
+import edu.mills.cs180a.pocketpoints.StudentManager.OnStudentsChangedListener;
+import edu.mills.cs180a.pocketpoints.StudentRow;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.Transaction;
+
+/**
+ * JUnit tests for {@link AsyncStudentManager}.
+ */
+public class AsyncStudentManagerTest extends AndroidTestCase {
+    private static final String STUDENT_NAME = "Phillipa Gordon";
+    private static final int STUDENT_NUM_STICKERS = 4;
+
+    // The longest time to wait for a callback.
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private RenamingDelegatingContext context;
+    private AsyncStudentManager testAsyncStudentManager;
+    private StudentManager testStudentManager;
+    private Student student;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // Create an isolated context that does not affect the production database.
+        context = new RenamingDelegatingContext(getContext(), "test_");
+        context.deleteDatabase(StudentSQLiteOpenHelper.DATABASE_NAME); // Start from scratch.
+
+        // Initialize the variables that will be used during this test.
+        testAsyncStudentManager = AsyncStudentManager.getTestInstance(context);
+        testStudentManager = testAsyncStudentManager.getStudentManager();
+        student = new Student().setName(STUDENT_NAME).setNumStickers(STUDENT_NUM_STICKERS);
+    }
+
+    public void testGetStudent_resultDeliveredOnMainThread() throws InterruptedException {
+        assertTrue(testStudentManager.createStudent(student));
+
+        // Get the student asynchronously.
+        RecordingCallback<Student> callback = new RecordingCallback<Student>(1);
+        testAsyncStudentManager.getStudent(student.getId(), callback);
+
+        // Verify the student was delivered on the main thread.
+        callback.await();
+        assertEquals(STUDENT_NAME, callback.mResults.get(0).getName());
+        assertTrue(callback.mAlwaysOnMainThread);
+    }
+
+    public void testGetStudentRowsAfter() throws InterruptedException {
+        assertTrue(testStudentManager.createStudent(student));
+
+        // Get the first page of students asynchronously.
+        RecordingCallback<List<StudentRow>> callback = new RecordingCallback<List<StudentRow>>(1);
+        testAsyncStudentManager.getStudentRowsAfter(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_IMAGE_AND_STICKERS, null, Student.INVALID_ID, 10,
+                callback);
+
+        // Verify the page holds the only student.
+        callback.await();
+        List<StudentRow> page = callback.mResults.get(0);
+        assertEquals(1, page.size());
+        assertEquals(student.getId(), page.get(0).getId());
+        assertEquals(STUDENT_NUM_STICKERS, page.get(0).getNumStickers());
+    }
+
+    public void testGetStudentRowsAfter_failureDeliveredOnMainThread()
+            throws InterruptedException {
+        assertTrue(testStudentManager.createStudent(student));
+
+        // Read a column that doesn't exist, which makes the query throw.
+        RecordingCallback<List<StudentRow>> callback = new RecordingCallback<List<StudentRow>>(1);
+        testAsyncStudentManager.getStudentRowsAfter(Student.DEFAULT_CLASS_ID,
+                new String[] { "no_such_column" }, null, Student.INVALID_ID, 10, callback);
+
+        // Verify the failure result was delivered on the main thread.
+        callback.await();
+        assertTrue(callback.mResults.get(0).isEmpty());
+        assertTrue(callback.mAlwaysOnMainThread);
+
+        // Verify that later requests are still made.
+        RecordingCallback<Student> studentCallback = new RecordingCallback<Student>(1);
+        testAsyncStudentManager.getStudent(student.getId(), studentCallback);
+        studentCallback.await();
+        assertEquals(STUDENT_NAME, studentCallback.mResults.get(0).getName());
+    }
+
+    public void testAddStickers_writesMadeInOrder() throws InterruptedException {
+        assertTrue(testStudentManager.createStudent(student));
+
+        // Request many writes at once.
+        int numWrites = 20;
+        RecordingCallback<Integer> callback = new RecordingCallback<Integer>(numWrites);
+        for (int i = 0; i < numWrites; i++) {
+            testAsyncStudentManager.addStickers(student.getId(), 1, callback);
+        }
+
+        // Verify they were made (and their results delivered) in the order requested.
+        callback.await();
+        for (int i = 0; i < numWrites; i++) {
+            assertEquals(STUDENT_NUM_STICKERS + i + 1, callback.mResults.get(i).intValue());
+        }
+        assertTrue(callback.mAlwaysOnMainThread);
+    }
+
+    public void testFlushStickers_writesStickersQueuedBeforeIt() throws InterruptedException {
+        assertTrue(testStudentManager.createStudent(student));
+        final long id = student.getId();
+
+        // Tap, then pause, while the writer is kept busy, so the tap is still waiting to be queued
+        // when the flush is requested.
+        testStudentManager.runInTransaction(new Transaction<Void, RuntimeException>() {
+            @Override
+            public Void run() {
+                testAsyncStudentManager.queueAddStickers(id, 1, null);
+                testAsyncStudentManager.flushStickers();
+                return null;
+            }
+        });
+
+        // Verify the sticker was written once the writer was done, long before the queued stickers
+        // would have been written otherwise.
+        testAsyncStudentManager.shutdown(TIMEOUT_MILLIS);
+        StudentSQLiteOpenHelper helper = new StudentSQLiteOpenHelper(context);
+        try {
+            assertEquals(STUDENT_NUM_STICKERS + 1, helper.queryNumStickers(id));
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testCancel_callbackNotCalledButWriteMade() throws InterruptedException {
+        assertTrue(testStudentManager.createStudent(student));
+
+        // Request a write, and cancel it immediately.
+        RecordingCallback<Integer> cancelledCallback = new RecordingCallback<Integer>(1);
+        Request request = testAsyncStudentManager.addStickers(student.getId(), 1,
+                cancelledCallback);
+        request.cancel();
+        assertTrue(request.isCancelled());
+
+        // Wait for a later write, whose result is delivered after that of the cancelled write.
+        RecordingCallback<Integer> callback = new RecordingCallback<Integer>(1);
+        testAsyncStudentManager.addStickers(student.getId(), 1, callback);
+        callback.await();
+
+        // Verify the cancelled write was made, but its result was not delivered.
+        assertEquals(STUDENT_NUM_STICKERS + 2, callback.mResults.get(0).intValue());
+        assertTrue(cancelledCallback.mResults.isEmpty());
+    }
+
+    public void testListener_notifiedOnMainThread() throws InterruptedException {
+        RecordingListener listener = new RecordingListener();
+        testAsyncStudentManager.registerOnStudentsChangedListener(listener);
+
+        // Create, change and delete a student asynchronously.
+        RecordingCallback<Boolean> createCallback = new RecordingCallback<Boolean>(1);
+        testAsyncStudentManager.createStudent(student, createCallback);
+        createCallback.await();
+        assertTrue(createCallback.mResults.get(0));
+        RecordingCallback<Boolean> deleteCallback = new RecordingCallback<Boolean>(1);
+        testAsyncStudentManager.clearStickers(student.getId(), null);
+        testAsyncStudentManager.deleteStudent(student.getId(), deleteCallback);
+        deleteCallback.await();
+        assertTrue(deleteCallback.mResults.get(0));
+
+        // Verify that every change was published on the main thread (before the result of the
+        // write that made it was delivered).
+        assertEquals(3, listener.mNumEvents);
+        assertTrue(listener.mAlwaysOnMainThread);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        testAsyncStudentManager.shutdown(TIMEOUT_MILLIS);
+        testStudentManager.closeDatabase();
+        super.tearDown();
+    }
+
+    private static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    // Records the results it receives, and whether they were all received on the main thread.
+    private static class RecordingCallback<T> implements Callback<T> {
+        private final CountDownLatch mLatch;
+        private final List<T> mResults = new ArrayList<T>();
+        private volatile boolean mAlwaysOnMainThread = true;
+
+        RecordingCallback(int numResults) {
+            mLatch = new CountDownLatch(numResults);
+        }
+
+        @Override
+        public void onResult(T result) {
+            synchronized (mResults) {
+                mResults.add(result);
+            }
+            mAlwaysOnMainThread &= isMainThread();
+            mLatch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("Timed out", mLatch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    // Counts the changes it is notified of, and whether they were all notified on the main thread.
+    private static class RecordingListener implements OnStudentsChangedListener {
+        private volatile int mNumEvents;
+        private volatile boolean mAlwaysOnMainThread = true;
+
+        @Override
+        public void onStudentInserted(Student student) {
+            record();
+        }
+
+        @Override
+        public void onStudentUpdated(Student student, int changedFields) {
+            record();
+        }
+
+        @Override
+        public void onStudentDeleted(long id) {
+            record();
+        }
+
+        @Override
+        public void onStudentsChanged() {
+            record();
+        }
+
+        private void record() {
+            mNumEvents++;
+            mAlwaysOnMainThread &= isMainThread();
+        }
+    }
+}
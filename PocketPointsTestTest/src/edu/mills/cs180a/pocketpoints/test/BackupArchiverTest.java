@@ -0,0 +1,181 @@
+package edu.mills.cs180a.pocketpoints.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import edu.mills.cs180a.pocketpoints.BackupArchiver;
+import edu.mills.cs180a.pocketpoints.Student;
+import edu.mills.cs180a.pocketpoints.StudentManager;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper;
+
+/**
+ * JUnit tests for {@link BackupArchiver}.
+ */
+public class BackupArchiverTest extends AndroidTestCase {
+    private RenamingDelegatingContext context;
+    private StudentManager testStudentManager;
+    private File photoDirectory;
+    private File backupDirectory;
+    private File restoredPhotoDirectory;
+    private BackupArchiver archiver;
+    private Student phillipa;
+    private Student stella;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // Create an isolated context that does not affect the production database.
+        context = new RenamingDelegatingContext(getContext(), "test_");
+        context.deleteDatabase(StudentSQLiteOpenHelper.DATABASE_NAME); // Start from scratch.
+        testStudentManager = StudentManager.getTestInstance(context);
+
+        photoDirectory = new File(getContext().getFilesDir(), "test_photos");
+        backupDirectory = new File(getContext().getFilesDir(), "test_backups");
+        restoredPhotoDirectory = new File(getContext().getFilesDir(), "test_restored_photos");
+        deleteDirectory(photoDirectory);
+        deleteDirectory(backupDirectory);
+        deleteDirectory(restoredPhotoDirectory);
+        photoDirectory.mkdirs();
+        archiver = new BackupArchiver(testStudentManager, photoDirectory, backupDirectory);
+
+        phillipa = new Student().setName("Phillipa Gordon").setNumStickers(3)
+                .setImgName(writePhoto("phillipa.jpg", "Phillipa's photo").getAbsolutePath());
+        stella = new Student().setName("Stella Maynard").setNumStickers(5)
+                .setImgName(writePhoto("stella.jpg", "Stella's photo").getAbsolutePath());
+        assertTrue(testStudentManager.createStudent(phillipa));
+        assertTrue(testStudentManager.createStudent(stella));
+    }
+
+    public void testBackUp_unchangedPhotosNotCopiedAgain() throws IOException {
+        BackupArchiver.Result first = archiver.backUp();
+        assertEquals(2, first.getNumPhotos());
+        assertEquals(2, first.getNumPhotosCopied());
+        assertEquals(first.getArchive(), archiver.getLatestArchive());
+
+        // Verify that a second backup only holds the database and manifest.
+        BackupArchiver.Result second = archiver.backUp();
+        assertFalse(first.getArchive().equals(second.getArchive()));
+        assertEquals(2, second.getNumPhotos());
+        assertEquals(0, second.getNumPhotosCopied());
+        assertEquals(0, countPhotoEntries(second.getArchive()));
+
+        // Verify that only a changed photo is copied by a third backup.
+        File stellaPhoto = writePhoto("stella.jpg", "Stella's new photo");
+        stellaPhoto.setLastModified(stellaPhoto.lastModified() + 1000);
+        BackupArchiver.Result third = archiver.backUp();
+        assertEquals(1, third.getNumPhotosCopied());
+        assertEquals(1, countPhotoEntries(third.getArchive()));
+    }
+
+    public void testRestore_studentsAndPhotosRestored() throws IOException {
+        archiver.backUp();
+        testStudentManager.addStickers(phillipa.getId(), 2); // Backed up by the second backup.
+        File archive = archiver.backUp().getArchive();
+
+        // Change the database after the backup.
+        testStudentManager.deleteStudent(stella.getId());
+        testStudentManager.createStudent(new Student().setName("Diana Barry"));
+
+        // Restore as if on another device, with a different photo directory.
+        BackupArchiver restoringArchiver = new BackupArchiver(testStudentManager,
+                restoredPhotoDirectory, backupDirectory);
+        restoringArchiver.restore(archive);
+
+        List<Student> students = testStudentManager.getAllStudents();
+        assertEquals(2, students.size());
+        assertEquals("Phillipa Gordon", students.get(0).getName());
+        assertEquals(5, students.get(0).getNumStickers());
+        assertEquals("Stella Maynard", students.get(1).getName());
+        File restoredPhoto = new File(restoredPhotoDirectory, "stella.jpg");
+        assertEquals(restoredPhoto.getAbsolutePath(), students.get(1).getImgName());
+        assertEquals("Stella's photo", readPhoto(restoredPhoto));
+    }
+
+    public void testRestore_missingArchive_databaseUnchanged() throws IOException {
+        File firstArchive = archiver.backUp().getArchive();
+        File secondArchive = archiver.backUp().getArchive();
+        testStudentManager.deleteStudent(stella.getId());
+
+        // The photos in the second archive are held by the first.
+        assertTrue(firstArchive.delete());
+        try {
+            archiver.restore(secondArchive);
+            fail("The photos should not have been found");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(1, testStudentManager.getAllStudents().size());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        testStudentManager.closeDatabase();
+        deleteDirectory(photoDirectory);
+        deleteDirectory(backupDirectory);
+        deleteDirectory(restoredPhotoDirectory);
+        super.tearDown();
+    }
+
+    private File writePhoto(String name, String contents) throws IOException {
+        File photo = new File(photoDirectory, name);
+        OutputStream out = new FileOutputStream(photo);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return photo;
+    }
+
+    private static String readPhoto(File photo) throws IOException {
+        InputStream in = new FileInputStream(photo);
+        try {
+            byte[] contents = new byte[(int) photo.length()];
+            int length = 0;
+            while (length < contents.length) {
+                length += in.read(contents, length, contents.length - length);
+            }
+            return new String(contents, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int countPhotoEntries(File archive) throws IOException {
+        ZipFile zip = new ZipFile(archive);
+        try {
+            int numPhotoEntries = 0;
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                if (entries.nextElement().getName().startsWith(
+                        BackupArchiver.PHOTO_ENTRY_PREFIX)) {
+                    numPhotoEntries++;
+                }
+            }
+            return numPhotoEntries;
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
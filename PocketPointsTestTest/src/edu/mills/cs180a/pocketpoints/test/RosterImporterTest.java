@@ -0,0 +1,201 @@
+package edu.mills.cs180a.pocketpoints.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import edu.mills.cs180a.pocketpoints.RosterImporter;
+import edu.mills.cs180a.pocketpoints.Student;
+import edu.mills.cs180a.pocketpoints.StudentManager;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
+
+/**
+ * JUnit tests for {@link RosterImporter}.
+ */
+public class RosterImporterTest extends AndroidTestCase {
+    private static final String ROSTER_FILE_NAME = "test_roster.csv";
+
+    // The number of students in the roster imported by the large import test.
+    private static final int LARGE_NUM_STUDENTS = 10000;
+
+    // The number of invalid records spread through the roster imported by the large import test.
+    private static final int NUM_INVALID_RECORDS = 10;
+
+    private RenamingDelegatingContext context;
+    private StudentManager testStudentManager;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // Create an isolated context that does not affect the production database.
+        context = new RenamingDelegatingContext(getContext(), "test_");
+        context.deleteDatabase(StudentSQLiteOpenHelper.DATABASE_NAME); // Start from scratch.
+        testStudentManager = StudentManager.getTestInstance(context);
+    }
+
+    public void testNext_namesAndStickers() throws IOException {
+        List<Student> students = readAll(new RosterImporter(new StringReader(
+                "Name,Stickers\r\nPhillipa Gordon,4\r\n  Stella Maynard  \r\n"), 7));
+        assertEquals(2, students.size());
+        assertEquals("Phillipa Gordon", students.get(0).getName());
+        assertEquals(4, students.get(0).getNumStickers());
+        assertEquals(7, students.get(0).getClassId());
+        assertEquals("Stella Maynard", students.get(1).getName()); // Spaces are trimmed.
+        assertEquals(0, students.get(1).getNumStickers());
+    }
+
+    public void testNext_quotedFields() throws IOException {
+        List<Student> students = readAll(new RosterImporter(new StringReader(
+                "\"Gordon, Phillipa\",\"4\"\n\"Maynard, \"\"Stel\"\"\nStella\"\n"),
+                Student.DEFAULT_CLASS_ID));
+        assertEquals(2, students.size());
+        assertEquals("Gordon, Phillipa", students.get(0).getName());
+        assertEquals(4, students.get(0).getNumStickers());
+        assertEquals("Maynard, \"Stel\"\nStella", students.get(1).getName());
+    }
+
+    public void testNext_invalidRecordsReported() throws IOException {
+        StringBuilder longName = new StringBuilder();
+        for (int i = 0; i <= StudentSQLiteOpenHelper.MAX_NAME_LENGTH; i++) {
+            longName.append('x');
+        }
+        RosterImporter importer = new RosterImporter(new StringReader("Phillipa Gordon\n"
+                + "\n" // Blank lines are skipped silently.
+                + " ,3\n"
+                + "Stella Maynard,-1\n"
+                + "Diana Barry,lots\n"
+                + longName + "\n"
+                + "Anne Shirley,2"), Student.DEFAULT_CLASS_ID);
+        List<Student> students = readAll(importer);
+        assertEquals(2, students.size());
+        assertEquals("Anne Shirley", students.get(1).getName());
+
+        // Verify that each invalid record was reported, with its line number.
+        RosterImporter.Result result = importer.getResult(students.size());
+        assertEquals(4, result.getNumErrors());
+        int[] expectedLineNumbers = { 3, 4, 5, 6 };
+        for (int i = 0; i < expectedLineNumbers.length; i++) {
+            assertEquals(expectedLineNumbers[i], result.getErrors().get(i).getLineNumber());
+        }
+    }
+
+    // Verifies that a large roster is imported in a single transaction, so that a concurrent
+    // reader sees either none of the students or all of them, and that its invalid records do not
+    // prevent the rest from being imported.
+    public void testImportRoster_largeFile() throws IOException, InterruptedException {
+        File rosterFile = new File(getContext().getFilesDir(), ROSTER_FILE_NAME);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(rosterFile), "UTF-8");
+        try {
+            writer.write("name,stickers\n");
+            for (int i = 0; i < LARGE_NUM_STUDENTS; i++) {
+                writer.write("Student " + i + "," + (i % 10) + "\n");
+                if (i % (LARGE_NUM_STUDENTS / NUM_INVALID_RECORDS) == 0) {
+                    writer.write("Student " + i + ",-1\n"); // A negative number of stickers.
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        // Import the roster from the file in the background, reading the students meanwhile.
+        final Reader reader = new InputStreamReader(new FileInputStream(rosterFile), "UTF-8");
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        Thread importer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    results.add(testStudentManager.importRoster(reader,
+                            Student.DEFAULT_CLASS_ID));
+                } catch (IOException e) {
+                    results.add(e);
+                }
+            }
+        });
+        try {
+            importer.start();
+            while (importer.isAlive()) {
+                int numStudents = countStudents();
+                assertTrue("Read " + numStudents + " students",
+                        numStudents == 0 || numStudents == LARGE_NUM_STUDENTS);
+            }
+            importer.join();
+        } finally {
+            reader.close();
+            rosterFile.delete();
+        }
+
+        // Verify that every valid student was imported, and every invalid record reported.
+        assertTrue("Failed: " + results.get(0), results.get(0) instanceof RosterImporter.Result);
+        RosterImporter.Result result = (RosterImporter.Result) results.get(0);
+        assertEquals(LARGE_NUM_STUDENTS, result.getNumImported());
+        assertEquals(NUM_INVALID_RECORDS, result.getNumErrors());
+        List<Student> students = testStudentManager.getAllStudents();
+        assertEquals(LARGE_NUM_STUDENTS, students.size());
+        long totalNumStickers = 0;
+        for (Student student : students) {
+            totalNumStickers += student.getNumStickers();
+        }
+        assertEquals(LARGE_NUM_STUDENTS / 10 * 45, totalNumStickers);
+    }
+
+    public void testImportRoster_unreadableRoster_nothingImported() {
+        // A reader that fails after the first students have been read.
+        Reader failingReader = new StringReader("Phillipa Gordon\nStella Maynard\n") {
+            private boolean mRead;
+
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                if (mRead) {
+                    throw new IOException("Disk removed");
+                }
+                mRead = true;
+                return super.read(buffer, offset, length);
+            }
+        };
+        try {
+            testStudentManager.importRoster(failingReader, Student.DEFAULT_CLASS_ID);
+            fail("The roster should not have been readable");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, testStudentManager.getAllStudents().size());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        testStudentManager.closeDatabase();
+        super.tearDown();
+    }
+
+    // Counts the students in the default classroom by querying the database, bypassing the cache.
+    private int countStudents() {
+        StudentCursor studentCursor = testStudentManager.queryStudents(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_AND_IMAGE);
+        try {
+            return studentCursor.getCount();
+        } finally {
+            studentCursor.close();
+        }
+    }
+
+    private static List<Student> readAll(RosterImporter importer) throws IOException {
+        List<Student> students = new ArrayList<Student>();
+        for (Student student = importer.next(); student != null; student = importer.next()) {
+            students.add(student);
+        }
+        return students;
+    }
+}
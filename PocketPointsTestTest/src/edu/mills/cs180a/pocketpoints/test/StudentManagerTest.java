@@ -1,11 +1,28 @@
 package edu.mills.cs180a.pocketpoints.test;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
+import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 import android.test.RenamingDelegatingContext;
+import edu.mills.cs180a.pocketpoints.ClassStats;
+import edu.mills.cs180a.pocketpoints.Classroom;
+import edu.mills.cs180a.pocketpoints.LeaderboardEntry;
+import edu.mills.cs180a.pocketpoints.RosterImporter;
 import edu.mills.cs180a.pocketpoints.Student;
 import edu.mills.cs180a.pocketpoints.StudentManager;
+import edu.mills.cs180a.pocketpoints.StudentManager.OnStudentsChangedListener;
+import edu.mills.cs180a.pocketpoints.StudentRow;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
+import edu.mills.cs180a.pocketpoints.StudentSnapshot;
 
 /**
  * JUnit tests for {@link StudentManager}.
@@ -23,6 +40,13 @@ public class StudentManagerTest extends AndroidTestCase {
     private static final String STUDENT_2_IMG_NAME = "StelMay_student_profile.jpg";
     private static final int STUDENT_2_NUM_STICKERS = 0;
 
+    // The number of students in the classroom searched by the large search test.
+    private static final int SEARCH_NUM_STUDENTS = 5000;
+
+    // The number of stickers added one at a time by the shared connection test.
+    private static final int NUM_STICKER_TAPS = 50;
+
+    private RenamingDelegatingContext context;
     StudentManager testStudentManager;
     private Student student1;
     private Student student2;
@@ -32,7 +56,8 @@ public class StudentManagerTest extends AndroidTestCase {
         super.setUp();
 
         // Create an isolated context that does not affect the production database.
-        RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(), "test_");
+        context = new RenamingDelegatingContext(getContext(), "test_");
+        context.deleteDatabase(StudentSQLiteOpenHelper.DATABASE_NAME); // Start from scratch.
 
         // Initialize the variables that will be used during this test.
         testStudentManager = StudentManager.getTestInstance(context);
@@ -143,6 +168,320 @@ public class StudentManagerTest extends AndroidTestCase {
         verifyAllFieldsEqual(studentS, studentList.get(4));
     }
 
+    public void testGetStudents_ReturnsStudentsInAlphabeticalOrderIgnoringCase() {
+        verifyDatabaseEmpty();
+
+        // Add students whose names differ in case to the database in non-alphabetical order.
+        Student studentBob = new Student().setName("Bob");
+        Student studentAlice = new Student().setName("alice");
+        Student studentCarol = new Student().setName("Carol");
+        testStudentManager.createStudent(studentBob);
+        testStudentManager.createStudent(studentAlice);
+        testStudentManager.createStudent(studentCarol);
+
+        // Verify that the lowercase name isn't sorted after all of the uppercase names.
+        List<Student> studentList = testStudentManager.getAllStudents();
+        assertEquals(3, studentList.size());
+        verifyAllFieldsEqual(studentAlice, studentList.get(0));
+        verifyAllFieldsEqual(studentBob, studentList.get(1));
+        verifyAllFieldsEqual(studentCarol, studentList.get(2));
+    }
+
+    public void testGetStudentsAfter_pagesMatchAllStudents() {
+        verifyDatabaseEmpty();
+
+        // Create a roster that includes students with the same name (in different cases).
+        List<Student> roster = createRoster(8);
+        roster.add(new Student().setName("student 3"));
+        roster.add(new Student().setName("Student 3"));
+        testStudentManager.createStudents(roster);
+        List<Student> allStudents = testStudentManager.getAllStudents();
+        assertEquals(10, allStudents.size());
+
+        // Load the students three at a time.
+        List<Student> pagedStudents = new ArrayList<Student>();
+        List<Student> page = testStudentManager.getStudentsAfter(Student.DEFAULT_CLASS_ID, null,
+                Student.INVALID_ID, 3);
+        while (true) {
+            pagedStudents.addAll(page);
+            if (page.size() < 3) {
+                break;
+            }
+            assertEquals(3, page.size());
+            Student lastStudent = page.get(page.size() - 1);
+            page = testStudentManager.getStudentsAfter(Student.DEFAULT_CLASS_ID,
+                    lastStudent.getName(), lastStudent.getId(), 3);
+        }
+
+        // Verify that the pages contain every student exactly once, in the same order.
+        assertEquals(allStudents.size(), pagedStudents.size());
+        for (int i = 0; i < allStudents.size(); i++) {
+            verifyAllFieldsEqual(allStudents.get(i), pagedStudents.get(i));
+        }
+    }
+
+    public void testGetStudentsAfter_databaseEmpty() {
+        verifyDatabaseEmpty();
+        assertEquals(0, testStudentManager.getStudentsAfter(Student.DEFAULT_CLASS_ID, null,
+                Student.INVALID_ID, 10).size());
+    }
+
+    public void testGetStudentRowsAfter_withStickers() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student2));
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Get the rows, including the sticker counts.
+        List<StudentRow> rows = testStudentManager.getStudentRowsAfter(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_IMAGE_AND_STICKERS, null, Student.INVALID_ID, 10);
+        assertEquals(2, rows.size());
+        verifyRowAsExpected(rows.get(0), student1.getId(), STUDENT_1_NAME, STUDENT_1_IMG_NAME,
+                STUDENT_1_NUM_STICKERS);
+        verifyRowAsExpected(rows.get(1), student2.getId(), STUDENT_2_NAME, STUDENT_2_IMG_NAME,
+                STUDENT_2_NUM_STICKERS);
+
+        // Get the page after student1.
+        rows = testStudentManager.getStudentRowsAfter(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_IMAGE_AND_STICKERS, STUDENT_1_NAME,
+                student1.getId(), 10);
+        assertEquals(1, rows.size());
+        assertEquals(student2.getId(), rows.get(0).getId());
+    }
+
+    public void testQueryStudents() {
+        verifyDatabaseEmpty();
+        Classroom classroom = testStudentManager.createClassroom("Period 2");
+        assertNotNull(classroom);
+        assertTrue(testStudentManager.createStudent(student2));
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(new Student().setName("Other")
+                .setClassId(classroom.getId())));
+
+        // Verify that the students of the classroom are read from the cursor in order.
+        StudentCursor studentCursor = testStudentManager.queryStudents(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_AND_IMAGE);
+        assertEquals(2, studentCursor.getCount());
+        assertTrue(studentCursor.moveToFirst());
+        assertEquals(student1.getId(), studentCursor.getId());
+        assertEquals(STUDENT_1_NAME, studentCursor.getName());
+        assertEquals(STUDENT_1_IMG_NAME, studentCursor.getImgName());
+        assertTrue(studentCursor.moveToNext());
+        assertEquals(student2.getId(), studentCursor.getId());
+        assertEquals(STUDENT_2_NAME, studentCursor.getName());
+        assertFalse(studentCursor.moveToNext());
+        studentCursor.close();
+    }
+
+    public void testGetStudentRowsAfter_withoutStickers() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Get the rows, without the sticker counts.
+        List<StudentRow> rows = testStudentManager.getStudentRowsAfter(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_AND_IMAGE, null, Student.INVALID_ID, 10);
+        assertEquals(1, rows.size());
+        verifyRowAsExpected(rows.get(0), student1.getId(), STUDENT_1_NAME, STUDENT_1_IMG_NAME,
+                StudentRow.UNKNOWN_NUM_STICKERS);
+    }
+
+    public void testGetStudentRowsAfter_onlyGivenClassroom() {
+        verifyDatabaseEmpty();
+        Classroom classroom = testStudentManager.createClassroom("Period 2");
+        assertNotNull(classroom);
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2.setClassId(classroom.getId())));
+
+        // Verify that each classroom lists only its own students.
+        List<StudentRow> rows = testStudentManager.getStudentRowsAfter(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_AND_IMAGE, null, Student.INVALID_ID, 10);
+        assertEquals(1, rows.size());
+        assertEquals(student1.getId(), rows.get(0).getId());
+        rows = testStudentManager.getStudentRowsAfter(classroom.getId(),
+                StudentManager.PROJECTION_NAME_AND_IMAGE, null, Student.INVALID_ID, 10);
+        assertEquals(1, rows.size());
+        assertEquals(student2.getId(), rows.get(0).getId());
+
+        // Verify that the student's classroom is read back.
+        testStudentManager.closeDatabase(); // Empty the cache.
+        assertEquals(classroom.getId(), testStudentManager.getStudent(student2.getId())
+                .getClassId());
+    }
+
+    public void testSearchStudents_matchesWordPrefixes() {
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+        assertTrue(testStudentManager.createStudent(new Student().setName("Gordon Blythe")));
+
+        // Any word of the name may match, ignoring case.
+        List<Student> students = testStudentManager.searchStudents(Student.DEFAULT_CLASS_ID,
+                "gor", 10);
+        assertEquals(2, students.size());
+        assertEquals("Gordon Blythe", students.get(0).getName());
+        verifyAllFieldsEqual(student1, students.get(1));
+
+        // Every word of the prefix must match; punctuation is ignored.
+        students = testStudentManager.searchStudents(Student.DEFAULT_CLASS_ID, "Ph, GO*", 10);
+        assertEquals(1, students.size());
+        assertEquals(student1.getId(), students.get(0).getId());
+        assertEquals(0, testStudentManager.searchStudents(Student.DEFAULT_CLASS_ID, "ph may", 10)
+                .size());
+        assertEquals(0, testStudentManager.searchStudents(Student.DEFAULT_CLASS_ID, " -\"", 10)
+                .size());
+    }
+
+    public void testSearchStudents_followsChanges() {
+        Classroom classroom = testStudentManager.createClassroom("Period 2");
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2.setClassId(classroom.getId())));
+
+        // Only the given classroom is searched.
+        assertEquals(0, testStudentManager.searchStudents(Student.DEFAULT_CLASS_ID, "stel", 10)
+                .size());
+        List<StudentRow> rows = testStudentManager.searchStudentRows(classroom.getId(),
+                StudentManager.PROJECTION_NAME_AND_IMAGE, "stel", 10);
+        assertEquals(1, rows.size());
+        verifyRowAsExpected(rows.get(0), student2.getId(), STUDENT_2_NAME, STUDENT_2_IMG_NAME,
+                StudentRow.UNKNOWN_NUM_STICKERS);
+
+        // Verify that renamed and deleted students are found by their new names only.
+        assertTrue(testStudentManager.updateStudent(student1.setName("Anne Shirley")));
+        assertEquals(0, testStudentManager.searchStudents(Student.DEFAULT_CLASS_ID, "phil", 10)
+                .size());
+        assertEquals(1, testStudentManager.searchStudents(Student.DEFAULT_CLASS_ID, "shir", 10)
+                .size());
+        assertTrue(testStudentManager.deleteStudent(student1.getId()));
+        assertEquals(0, testStudentManager.searchStudents(Student.DEFAULT_CLASS_ID, "shir", 10)
+                .size());
+    }
+
+    // The search is found in the name search index rather than by reading every student; see
+    // StudentSQLiteOpenHelperTest.testIndexes_searchQueryUsesNameSearchIndex().
+    public void testSearchStudents_largeClassroom() {
+        assertTrue(testStudentManager.createStudents(createRoster(SEARCH_NUM_STUDENTS))[0]);
+
+        // "Student 12", "Student 120" to "Student 129", and "Student 1200" to "Student 1299".
+        List<StudentRow> rows = testStudentManager.searchStudentRows(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_IMAGE_AND_STICKERS, "Student 12", 200);
+        assertEquals(111, rows.size());
+    }
+
+    public void testGetTopStudents_rankedByStickersThenName() {
+        Classroom classroom = testStudentManager.createClassroom("Period 2");
+        assertTrue(testStudentManager.createStudent(student1)); // 4 stickers.
+        assertTrue(testStudentManager.createStudent(student2.setNumStickers(7)));
+        assertTrue(testStudentManager.createStudent(new Student().setName("anne Shirley")
+                .setNumStickers(4)));
+        assertTrue(testStudentManager.createStudent(new Student().setName("Diana Barry")));
+        assertTrue(testStudentManager.createStudent(new Student().setName("Ruby Gillis")
+                .setNumStickers(20).setClassId(classroom.getId())));
+
+        // Students with as many stickers share a rank, and are listed by name (ignoring case).
+        List<LeaderboardEntry> leaders =
+                testStudentManager.getTopStudents(Student.DEFAULT_CLASS_ID, 3);
+        assertEquals(3, leaders.size());
+        verifyLeaderAsExpected(leaders.get(0), 1, student2.getId(), 7);
+        verifyLeaderAsExpected(leaders.get(1), 2, leaders.get(1).getStudent().getId(), 4);
+        assertEquals("anne Shirley", leaders.get(1).getStudent().getName());
+        verifyLeaderAsExpected(leaders.get(2), 2, student1.getId(), 4);
+        assertEquals(STUDENT_1_IMG_NAME, leaders.get(2).getStudent().getImgName());
+
+        // Verify that queued stickers count, and that ranks follow them.
+        testStudentManager.queueAddStickers(student1.getId(), 4);
+        leaders = testStudentManager.getTopStudents(Student.DEFAULT_CLASS_ID, 10);
+        assertEquals(4, leaders.size());
+        verifyLeaderAsExpected(leaders.get(0), 1, student1.getId(), 8);
+        verifyLeaderAsExpected(leaders.get(3), 4, leaders.get(3).getStudent().getId(), 0);
+    }
+
+    public void testGetClassStats_matchesStudents() throws IOException {
+        Classroom classroom = testStudentManager.createClassroom("Period 2");
+        assertEquals(0, testStudentManager.getClassStats(classroom.getId()).getNumStudents());
+
+        // Change the students in every way that changes the statistics.
+        assertTrue(testStudentManager.createStudents(createRoster(25))[0]);
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2.setClassId(classroom.getId())));
+        testStudentManager.importRoster(new StringReader("Diana Barry,3\nRuby Gillis,12\n"),
+                classroom.getId());
+        testStudentManager.addStickers(student1.getId(), 5);
+        testStudentManager.removeStickers(student1.getId(), 2);
+        testStudentManager.clearStickers(student2.getId());
+        testStudentManager.queueAddStickers(student2.getId(), 6); // Not yet written.
+        List<Student> students = testStudentManager.getAllStudents();
+        assertTrue(testStudentManager.updateStudent(students.get(5).setClassId(classroom.getId())
+                .setNumStickers(40)));
+        assertTrue(testStudentManager.deleteStudent(students.get(4).getId()));
+
+        // Verify that the statistics kept by the database match those computed from the students.
+        verifyClassStatsMatchStudents(Student.DEFAULT_CLASS_ID);
+        verifyClassStatsMatchStudents(classroom.getId());
+        assertTrue(testStudentManager.verifyClassStats());
+    }
+
+    public void testGetClassStats_meanAndMedian() {
+        testStudentManager.createStudents(Arrays.asList(
+                new Student().setName("Anne Shirley").setNumStickers(1),
+                new Student().setName("Diana Barry").setNumStickers(2),
+                new Student().setName("Gilbert Blythe").setNumStickers(2),
+                new Student().setName("Ruby Gillis").setNumStickers(9)));
+        ClassStats stats = testStudentManager.getClassStats(Student.DEFAULT_CLASS_ID);
+        assertEquals(4, stats.getNumStudents());
+        assertEquals(14, stats.getTotalStickers());
+        assertEquals(3.5, stats.getMean(), 0.001);
+        assertEquals(2.0, stats.getMedian(), 0.001);
+        assertEquals(Integer.valueOf(2), stats.getHistogram().get(2));
+
+        // With an odd number of students, the median is the middle number of stickers.
+        testStudentManager.createStudent(new Student().setName("Josie Pye").setNumStickers(8));
+        assertEquals(2.0, testStudentManager.getClassStats(Student.DEFAULT_CLASS_ID).getMedian(),
+                0.001);
+    }
+
+    public void testGetClassrooms() {
+        // The default classroom always exists.
+        List<Classroom> classrooms = testStudentManager.getClassrooms();
+        assertEquals(1, classrooms.size());
+        assertEquals(Student.DEFAULT_CLASS_ID, classrooms.get(0).getId());
+
+        // Add classrooms, and verify they are listed in alphabetical order.
+        Classroom period3 = testStudentManager.createClassroom("Period 3");
+        Classroom art = testStudentManager.createClassroom("art");
+        assertNull(testStudentManager.createClassroom(""));
+        classrooms = testStudentManager.getClassrooms();
+        assertEquals(3, classrooms.size());
+        assertEquals(art.getId(), classrooms.get(0).getId());
+        assertEquals(period3.getId(), classrooms.get(2).getId());
+    }
+
+    public void testSetCurrentClassId() {
+        Classroom classroom = testStudentManager.createClassroom("Period 2");
+        testStudentManager.setCurrentClassId(classroom.getId());
+        assertEquals(classroom.getId(), testStudentManager.getCurrentClassId());
+        testStudentManager.setCurrentClassId(Student.DEFAULT_CLASS_ID);
+        assertEquals(Student.DEFAULT_CLASS_ID, testStudentManager.getCurrentClassId());
+    }
+
+    public void testImportRoster() throws IOException {
+        verifyDatabaseEmpty();
+        RecordingListener listener = new RecordingListener();
+        testStudentManager.registerOnStudentsChangedListener(listener);
+
+        // Import a roster with one invalid record.
+        RosterImporter.Result result = testStudentManager.importRoster(new StringReader(
+                "name,stickers\n" + STUDENT_2_NAME + ",2\n,3\n" + STUDENT_1_NAME + "\n"),
+                Student.DEFAULT_CLASS_ID);
+        assertEquals(2, result.getNumImported());
+        assertEquals(1, result.getNumErrors());
+        assertEquals(3, result.getErrors().get(0).getLineNumber());
+
+        // Verify that the students were added, and that listeners were notified only once.
+        List<Student> students = testStudentManager.getAllStudents();
+        assertEquals(2, students.size());
+        verifyFieldsAsExpected(students.get(0), students.get(0).getId(), STUDENT_1_NAME, null, 0);
+        verifyFieldsAsExpected(students.get(1), students.get(1).getId(), STUDENT_2_NAME, null, 2);
+        assertEquals(Arrays.asList("changed"), listener.mEvents);
+    }
+
     public void testGetStudent_databaseEmpty() {
         verifyDatabaseEmpty();
 
@@ -237,6 +576,88 @@ public class StudentManagerTest extends AndroidTestCase {
         }
     }
 
+    public void testAddStickers_studentExists() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+
+        // Add stickers to student1.
+        assertEquals(STUDENT_1_NUM_STICKERS + 1,
+                testStudentManager.addStickers(student1.getId(), 1));
+        assertEquals(STUDENT_1_NUM_STICKERS + 4,
+                testStudentManager.addStickers(student1.getId(), 3));
+
+        // Verify only student1's sticker count changed.
+        verifyFieldsAsExpected(testStudentManager.getStudent(student1.getId()), student1.getId(),
+                STUDENT_1_NAME, STUDENT_1_IMG_NAME, STUDENT_1_NUM_STICKERS + 4);
+        verifyAllFieldsEqual(student2, testStudentManager.getStudent(student2.getId()));
+    }
+
+    public void testAddStickers_staleCopyDoesNotOverwriteOtherChanges() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Rename the student through another copy, then add a sticker through the original.
+        Student student1Copy = testStudentManager.getStudent(student1.getId());
+        student1Copy.setName("Royal Gardner");
+        assertTrue(testStudentManager.updateStudent(student1Copy));
+        assertEquals(STUDENT_1_NUM_STICKERS + 1,
+                testStudentManager.addStickers(student1.getId(), 1));
+
+        // Verify that both changes were kept.
+        verifyFieldsAsExpected(testStudentManager.getStudent(student1.getId()), student1.getId(),
+                "Royal Gardner", STUDENT_1_IMG_NAME, STUDENT_1_NUM_STICKERS + 1);
+    }
+
+    public void testAddStickers_studentDoesNotExist() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Try to add stickers to a student that doesn't exist.
+        assertEquals(-1, testStudentManager.addStickers(student1.getId() + 1, 1));
+
+        // Verify database unchanged.
+        verifyAllFieldsEqual(student1, testStudentManager.getStudent(student1.getId()));
+    }
+
+    public void testRemoveStickers_studentExists() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Remove stickers from student1.
+        assertEquals(STUDENT_1_NUM_STICKERS - 1,
+                testStudentManager.removeStickers(student1.getId(), 1));
+        assertEquals(0, testStudentManager.removeStickers(student1.getId(),
+                STUDENT_1_NUM_STICKERS - 1));
+        assertEquals(0, testStudentManager.getStudent(student1.getId()).getNumStickers());
+    }
+
+    public void testRemoveStickers_notEnoughStickers() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Try to remove more stickers than the student has.
+        assertEquals(-1, testStudentManager.removeStickers(student1.getId(),
+                STUDENT_1_NUM_STICKERS + 1));
+
+        // Verify database unchanged.
+        verifyAllFieldsEqual(student1, testStudentManager.getStudent(student1.getId()));
+    }
+
+    public void testClearStickers() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+
+        // Clear student1's stickers.
+        assertTrue(testStudentManager.clearStickers(student1.getId()));
+        verifyFieldsAsExpected(testStudentManager.getStudent(student1.getId()), student1.getId(),
+                STUDENT_1_NAME, STUDENT_1_IMG_NAME, 0);
+
+        // Try to clear the stickers of a student that doesn't exist.
+        assertFalse(testStudentManager.clearStickers(student2.getId() + 1));
+    }
+
     public void testDeleteStudent_databaseEmpty() {
         verifyDatabaseEmpty();
 
@@ -286,6 +707,595 @@ public class StudentManagerTest extends AndroidTestCase {
         verifyDatabaseEmpty();
     }
 
+    public void testCreateStudents() {
+        verifyDatabaseEmpty();
+
+        // Create both students in a single batch.
+        boolean[] created = testStudentManager.createStudents(Arrays.asList(student1, student2));
+        assertEquals(2, created.length);
+        assertTrue(created[0]);
+        assertTrue(created[1]);
+        assertFalse(student1.getId() == student2.getId()); // Verify the student IDs are different.
+
+        // Make sure that both students are now in the database.
+        List<Student> students = testStudentManager.getAllStudents();
+        assertEquals(2, students.size());
+        verifyAllFieldsEqual(student1, students.get(0));
+        verifyAllFieldsEqual(student2, students.get(1));
+    }
+
+    public void testCreateStudents_invalidStudentDoesNotPreventOthers() {
+        verifyDatabaseEmpty();
+
+        // Try to create a student without a name between two valid students.
+        Student namelessStudent = new Student();
+        boolean[] created = testStudentManager.createStudents(
+                Arrays.asList(student1, namelessStudent, student2));
+        assertTrue(created[0]);
+        assertFalse(created[1]);
+        assertTrue(created[2]);
+        assertEquals(Student.INVALID_ID, namelessStudent.getId());
+
+        // Make sure that only the valid students are in the database.
+        List<Student> students = testStudentManager.getAllStudents();
+        assertEquals(2, students.size());
+        verifyAllFieldsEqual(student1, students.get(0));
+        verifyAllFieldsEqual(student2, students.get(1));
+    }
+
+    public void testUpdateStudents() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+        long student1Id = student1.getId();
+
+        // Update student1 and student2, and try to update a student that doesn't exist.
+        student1.setNumStickers(12);
+        student2.setName("Royal Gardner").setImgName(null);
+        Student nonexistentStudent = new Student().setName("Nobody");
+        boolean[] updated = testStudentManager.updateStudents(
+                Arrays.asList(student1, student2, nonexistentStudent));
+        assertTrue(updated[0]);
+        assertTrue(updated[1]);
+        assertFalse(updated[2]);
+
+        // Verify both students were updated.
+        List<Student> students = testStudentManager.getAllStudents();
+        assertEquals(2, students.size());
+        verifyFieldsAsExpected(students.get(0), student1Id, STUDENT_1_NAME, STUDENT_1_IMG_NAME,
+                12);
+        verifyAllFieldsEqual(student2, students.get(1));
+    }
+
+    public void testDeleteStudents() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+
+        // Delete both students, and try to delete a student that doesn't exist.
+        boolean[] deleted = testStudentManager.deleteStudents(new long[] {
+                student1.getId(), student2.getId() + 1, student2.getId() });
+        assertTrue(deleted[0]);
+        assertFalse(deleted[1]);
+        assertTrue(deleted[2]);
+
+        // Verify that the database is now empty.
+        verifyDatabaseEmpty();
+    }
+
+    // Verifies that a roster created in a batch is written in a single transaction, which is what
+    // makes it faster than creating each student in its own: a concurrent reader sees either none
+    // of the students or all of them.
+    public void testCreateStudents_singleTransaction() throws InterruptedException {
+        verifyDatabaseEmpty();
+        final int rosterSize = 200;
+        final List<Student> roster = createRoster(rosterSize);
+        final List<boolean[]> results = Collections.synchronizedList(new ArrayList<boolean[]>());
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results.add(testStudentManager.createStudents(roster));
+            }
+        });
+
+        writer.start();
+        while (writer.isAlive()) {
+            int numStudents = countStudents();
+            assertTrue("Read " + numStudents + " students",
+                    numStudents == 0 || numStudents == rosterSize);
+        }
+        writer.join();
+
+        for (boolean studentCreated : results.get(0)) {
+            assertTrue(studentCreated);
+        }
+        assertEquals(rosterSize, countStudents());
+    }
+
+    // Stress test: several threads read the roster while another thread adds stickers.
+    public void testConcurrentReadersAndWriter() throws InterruptedException {
+        verifyDatabaseEmpty();
+        final int rosterSize = 30;
+        final int numStickersToAdd = 200;
+        int numReaders = 4;
+        final List<Student> roster = createRoster(rosterSize);
+        for (boolean created : testStudentManager.createStudents(roster)) {
+            assertTrue(created);
+        }
+        final long studentId = roster.get(0).getId();
+        final int initialNumStickers = roster.get(0).getNumStickers();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        // The writer adds stickers to a single student, one at a time.
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 1; i <= numStickersToAdd; i++) {
+                        assertEquals(initialNumStickers + i,
+                                testStudentManager.addStickers(studentId, 1));
+                    }
+                } catch (Throwable t) {
+                    errors.add(t);
+                }
+            }
+        });
+
+        // Each reader repeatedly reads the roster, which must always be complete and consistent.
+        final Thread[] readers = new Thread[numReaders];
+        for (int i = 0; i < numReaders; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int lastNumStickers = initialNumStickers;
+                        for (int j = 0; j < 50; j++) {
+                            List<Student> students = testStudentManager.getAllStudents();
+                            assertEquals(rosterSize, students.size());
+                            int numStickers = testStudentManager.getStudent(studentId)
+                                    .getNumStickers();
+                            assertTrue(numStickers >= lastNumStickers); // Never goes backwards.
+                            lastNumStickers = numStickers;
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals("Errors: " + errors, 0, errors.size());
+        assertEquals(initialNumStickers + numStickersToAdd,
+                testStudentManager.getStudent(studentId).getNumStickers());
+    }
+
+    public void testCloseDatabase_databaseReopenedWhenNeeded() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Release the connection to the database.
+        testStudentManager.closeDatabase();
+
+        // Verify that the database can still be read from.
+        verifyAllFieldsEqual(student1, testStudentManager.getStudent(student1.getId()));
+
+        // Release the connection again, and verify that the database can still be written to.
+        testStudentManager.closeDatabase();
+        assertTrue(testStudentManager.createStudent(student2));
+        assertEquals(2, testStudentManager.getAllStudents().size());
+    }
+
+    // Verifies that adding stickers reuses the shared connection to the database, rather than
+    // closing it after each sticker and opening a new one for the next, as it did before.
+    public void testAddStickers_reusesSharedConnection() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        long id = student1.getId();
+
+        StudentSQLiteOpenHelper helper = new StudentSQLiteOpenHelper(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        for (int i = 1; i <= NUM_STICKER_TAPS; i++) {
+            assertEquals(STUDENT_1_NUM_STICKERS + i, helper.addStickers(id, 1));
+            assertTrue(db.isOpen());
+            assertSame(db, helper.getWritableDatabase());
+        }
+        helper.close();
+    }
+
+    public void testReleaseMemory_openCursorStillReadable() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+        assertEquals(STUDENT_1_NUM_STICKERS + 1,
+                testStudentManager.queueAddStickers(student1.getId(), 1));
+
+        // Release the memory while a cursor is open on the connection.
+        StudentCursor studentCursor = testStudentManager.queryStudents(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_AND_IMAGE);
+        testStudentManager.releaseMemory();
+
+        // Verify that the cursor can still be read, and that no queued stickers were lost.
+        assertTrue(studentCursor.moveToFirst());
+        assertEquals(STUDENT_1_NAME, studentCursor.getName());
+        assertTrue(studentCursor.moveToNext());
+        assertEquals(STUDENT_2_NAME, studentCursor.getName());
+        studentCursor.close();
+        verifyFieldsAsExpected(testStudentManager.getStudent(student1.getId()), student1.getId(),
+                STUDENT_1_NAME, STUDENT_1_IMG_NAME, STUDENT_1_NUM_STICKERS + 1);
+        assertEquals(1, testStudentManager.getCacheMissCount()); // The cache was emptied.
+    }
+
+    public void testGetStudent_writtenStudentServedFromCache() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Verify the newly created student is read without a trip to the database.
+        verifyAllFieldsEqual(student1, testStudentManager.getStudent(student1.getId()));
+        assertEquals(1, testStudentManager.getCacheHitCount());
+        assertEquals(0, testStudentManager.getCacheMissCount());
+
+        // Verify the cache follows sticker changes and updates.
+        assertEquals(STUDENT_1_NUM_STICKERS + 2,
+                testStudentManager.addStickers(student1.getId(), 2));
+        student1.setNumStickers(STUDENT_1_NUM_STICKERS + 2).setName("Royal Gardner");
+        assertTrue(testStudentManager.updateStudent(student1));
+        verifyAllFieldsEqual(student1, testStudentManager.getStudent(student1.getId()));
+        assertEquals(2, testStudentManager.getCacheHitCount());
+
+        // Verify a deleted student is not served from the cache.
+        assertTrue(testStudentManager.deleteStudent(student1.getId()));
+        assertNull(testStudentManager.getStudent(student1.getId()));
+        assertEquals(1, testStudentManager.getCacheMissCount());
+    }
+
+    public void testGetStudent_returnsCopyOfCachedStudent() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+
+        // Change the caller's copies without writing them to the database.
+        student1.setName("Royal Gardner");
+        testStudentManager.getStudent(student1.getId()).setNumStickers(0);
+
+        // Verify the cached student was unaffected.
+        verifyFieldsAsExpected(testStudentManager.getStudent(student1.getId()), student1.getId(),
+                STUDENT_1_NAME, STUDENT_1_IMG_NAME, STUDENT_1_NUM_STICKERS);
+        assertEquals(0, testStudentManager.getCacheMissCount());
+    }
+
+    public void testGetStudent_readStudentCached() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+
+        // Empty the cache, then read the whole class list back into it.
+        testStudentManager.closeDatabase();
+        assertNotNull(testStudentManager.getStudent(student1.getId()));
+        assertEquals(1, testStudentManager.getCacheMissCount());
+        assertEquals(2, testStudentManager.getAllStudents().size());
+
+        // Verify both students are now served from the cache.
+        verifyAllFieldsEqual(student1, testStudentManager.getStudent(student1.getId()));
+        verifyAllFieldsEqual(student2, testStudentManager.getStudent(student2.getId()));
+        assertEquals(2, testStudentManager.getCacheHitCount());
+        assertEquals(1, testStudentManager.getCacheMissCount());
+    }
+
+    public void testQueueAddStickers_writtenOnlyWhenFlushed() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        long id = student1.getId();
+
+        // Queue several changes, which are visible at once.
+        assertEquals(STUDENT_1_NUM_STICKERS + 1, testStudentManager.queueAddStickers(id, 1));
+        assertEquals(STUDENT_1_NUM_STICKERS + 3, testStudentManager.queueAddStickers(id, 2));
+        assertEquals(STUDENT_1_NUM_STICKERS + 2, testStudentManager.queueRemoveStickers(id, 1));
+        assertEquals(STUDENT_1_NUM_STICKERS + 2,
+                testStudentManager.getStudent(id).getNumStickers());
+
+        // Verify they were combined, and written to the database only when flushed.
+        StudentSQLiteOpenHelper helper = new StudentSQLiteOpenHelper(context);
+        assertEquals(STUDENT_1_NUM_STICKERS, helper.queryNumStickers(id));
+        testStudentManager.flushStickers();
+        assertEquals(STUDENT_1_NUM_STICKERS + 2, helper.queryNumStickers(id));
+        helper.close();
+    }
+
+    public void testQueueAddStickers_writtenAfterDelay() throws InterruptedException {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        long id = student1.getId();
+        assertEquals(STUDENT_1_NUM_STICKERS + 1, testStudentManager.queueAddStickers(id, 1));
+
+        // Verify the sticker is written once it has been left alone for long enough.
+        StudentSQLiteOpenHelper helper = new StudentSQLiteOpenHelper(context);
+        long deadline = System.currentTimeMillis() + 5 * StudentManager.STICKER_FLUSH_DELAY_MILLIS;
+        while (helper.queryNumStickers(id) != STUDENT_1_NUM_STICKERS + 1) {
+            assertTrue("Sticker never written", System.currentTimeMillis() < deadline);
+            Thread.sleep(StudentManager.STICKER_FLUSH_DELAY_MILLIS / 10);
+        }
+        helper.close();
+    }
+
+    public void testQueueRemoveStickers_notEnoughStickers() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        long id = student1.getId();
+
+        // Try to remove more stickers than the student will have once the queue is written.
+        assertEquals(STUDENT_1_NUM_STICKERS - 1, testStudentManager.queueRemoveStickers(id, 1));
+        assertEquals(-1, testStudentManager.queueRemoveStickers(id, STUDENT_1_NUM_STICKERS));
+        assertEquals(-1, testStudentManager.queueAddStickers(id + 1, 1));
+
+        // Verify only the first change was made.
+        testStudentManager.flushStickers();
+        testStudentManager.closeDatabase(); // Empty the cache, so the database is read.
+        assertEquals(STUDENT_1_NUM_STICKERS - 1,
+                testStudentManager.getStudent(id).getNumStickers());
+    }
+
+    public void testFlushStickers_studentChangedElsewhere() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+        long id1 = student1.getId();
+        long id2 = student2.getId();
+        assertEquals(STUDENT_1_NUM_STICKERS - 1,
+                testStudentManager.queueRemoveStickers(id1, STUDENT_1_NUM_STICKERS - 1));
+        assertEquals(STUDENT_2_NUM_STICKERS + 1, testStudentManager.queueAddStickers(id2, 1));
+
+        // Clear the stickers of one student and delete the other, without going through the
+        // student manager, so the queued stickers can no longer be written.
+        StudentSQLiteOpenHelper helper = new StudentSQLiteOpenHelper(context);
+        assertEquals(1, helper.clearStickers(id1));
+        assertEquals(1, helper.deleteStudent(id2));
+        helper.close();
+        RecordingListener listener = new RecordingListener();
+        testStudentManager.registerOnStudentsChangedListener(listener);
+        testStudentManager.flushStickers();
+        testStudentManager.unregisterOnStudentsChangedListener(listener);
+
+        // Verify the cache no longer holds the counts that were never written.
+        assertEquals(0, testStudentManager.getStudent(id1).getNumStickers());
+        assertNull(testStudentManager.getStudent(id2));
+        assertTrue(listener.mEvents.contains("updated " + id1 + " " + STUDENT_1_NAME + " 0 fields "
+                + StudentManager.FIELD_NUM_STICKERS));
+        assertTrue(listener.mEvents.contains("deleted " + id2));
+        assertEquals(2, listener.mEvents.size());
+    }
+
+    public void testQueueAddStickers_seenByReadsAndWrites() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        long id = student1.getId();
+        assertEquals(STUDENT_1_NUM_STICKERS + 2, testStudentManager.queueAddStickers(id, 2));
+
+        // Verify that lists of students include the queued stickers.
+        assertEquals(STUDENT_1_NUM_STICKERS + 2,
+                testStudentManager.getAllStudents().get(0).getNumStickers());
+        assertEquals(STUDENT_1_NUM_STICKERS + 2, testStudentManager.getStudentRowsAfter(
+                Student.DEFAULT_CLASS_ID, StudentManager.PROJECTION_NAME_IMAGE_AND_STICKERS, null,
+                Student.INVALID_ID, 1).get(0).getNumStickers());
+
+        // Verify that later writes are made after the queued stickers.
+        assertEquals(STUDENT_1_NUM_STICKERS + 3, testStudentManager.queueAddStickers(id, 1));
+        assertTrue(testStudentManager.clearStickers(id));
+        testStudentManager.closeDatabase();
+        assertEquals(0, testStudentManager.getStudent(id).getNumStickers());
+    }
+
+    public void testQueueAddStickers_readsDoNotWrite() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        assertTrue(testStudentManager.createStudent(student2));
+        long id = student2.getId();
+        assertEquals(STUDENT_2_NUM_STICKERS + 5, testStudentManager.queueAddStickers(id, 5));
+
+        // Verify that every kind of read shows the queued stickers.
+        StudentSnapshot snapshot = testStudentManager.getStudentSnapshot(id);
+        assertEquals(STUDENT_2_NUM_STICKERS + 5, snapshot.getNumStickers());
+        List<LeaderboardEntry> leaders =
+                testStudentManager.getTopStudents(Student.DEFAULT_CLASS_ID, 1);
+        verifyLeaderAsExpected(leaders.get(0), 1, id, STUDENT_2_NUM_STICKERS + 5);
+        ClassStats stats = testStudentManager.getClassStats(Student.DEFAULT_CLASS_ID);
+        assertEquals(STUDENT_1_NUM_STICKERS + STUDENT_2_NUM_STICKERS + 5,
+                stats.getTotalStickers());
+        assertNull(stats.getHistogram().get(STUDENT_2_NUM_STICKERS));
+        assertEquals(Integer.valueOf(1), stats.getHistogram().get(STUDENT_2_NUM_STICKERS + 5));
+        StudentCursor studentCursor = testStudentManager.queryStudents(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_IMAGE_AND_STICKERS);
+        assertTrue(studentCursor.moveToLast());
+        assertEquals(STUDENT_2_NUM_STICKERS + 5, studentCursor.getStickerCount());
+        studentCursor.close();
+
+        // Verify that none of the reads wrote the stickers.
+        StudentSQLiteOpenHelper helper = new StudentSQLiteOpenHelper(context);
+        assertEquals(STUDENT_2_NUM_STICKERS, helper.queryNumStickers(id));
+        helper.close();
+
+        // Verify that the snapshot is still current once the stickers have been written.
+        assertNotNull(testStudentManager.compareAndSetStudent(snapshot.withName("Royal Gardner")));
+        testStudentManager.closeDatabase(); // Empty the cache, so the database is read.
+        verifyFieldsAsExpected(testStudentManager.getStudent(id), id, "Royal Gardner",
+                STUDENT_2_IMG_NAME, STUDENT_2_NUM_STICKERS + 5);
+    }
+
+    public void testGetStudentSnapshot_sharedUntilStudentChanges() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        long id = student1.getId();
+
+        // Verify the same snapshot is handed out until the student changes.
+        StudentSnapshot snapshot = testStudentManager.getStudentSnapshot(id);
+        verifySnapshotAsExpected(snapshot, id, STUDENT_1_NAME, STUDENT_1_IMG_NAME,
+                STUDENT_1_NUM_STICKERS);
+        assertSame(snapshot, testStudentManager.getStudentSnapshot(id));
+
+        // Verify that queued stickers are seen, and move the student to a new version.
+        assertEquals(STUDENT_1_NUM_STICKERS + 1, testStudentManager.queueAddStickers(id, 1));
+        StudentSnapshot changedSnapshot = testStudentManager.getStudentSnapshot(id);
+        assertNotSame(snapshot, changedSnapshot);
+        verifySnapshotAsExpected(changedSnapshot, id, STUDENT_1_NAME, STUDENT_1_IMG_NAME,
+                STUDENT_1_NUM_STICKERS + 1);
+        assertTrue(changedSnapshot.getVersion() > snapshot.getVersion());
+
+        // Verify the earlier snapshot itself was unaffected.
+        verifySnapshotAsExpected(snapshot, id, STUDENT_1_NAME, STUDENT_1_IMG_NAME,
+                STUDENT_1_NUM_STICKERS);
+        assertNull(testStudentManager.getStudentSnapshot(id + 1));
+    }
+
+    public void testCompareAndSetStudent_succeedsOnCurrentVersion() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        StudentSnapshot snapshot = testStudentManager.getStudentSnapshot(student1.getId());
+
+        // Rename the student through its current snapshot.
+        StudentSnapshot updatedSnapshot =
+                testStudentManager.compareAndSetStudent(snapshot.withName("Royal Gardner"));
+        assertNotNull(updatedSnapshot);
+        assertEquals(snapshot.getVersion() + 1, updatedSnapshot.getVersion());
+        assertSame(updatedSnapshot, testStudentManager.getStudentSnapshot(student1.getId()));
+
+        // Verify the change was written to the database and the cache.
+        verifyFieldsAsExpected(testStudentManager.getStudent(student1.getId()), student1.getId(),
+                "Royal Gardner", STUDENT_1_IMG_NAME, STUDENT_1_NUM_STICKERS);
+        testStudentManager.closeDatabase();
+        verifySnapshotAsExpected(testStudentManager.getStudentSnapshot(student1.getId()),
+                student1.getId(), "Royal Gardner", STUDENT_1_IMG_NAME, STUDENT_1_NUM_STICKERS);
+    }
+
+    public void testCompareAndSetStudent_staleSnapshotRejected() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student1));
+        long id = student1.getId();
+        StudentSnapshot staleSnapshot = testStudentManager.getStudentSnapshot(id);
+
+        // Change the student after the snapshot was read, through each kind of write.
+        assertEquals(STUDENT_1_NUM_STICKERS + 1, testStudentManager.queueAddStickers(id, 1));
+        assertNull(testStudentManager.compareAndSetStudent(staleSnapshot.withName("A")));
+        staleSnapshot = testStudentManager.getStudentSnapshot(id);
+        assertTrue(testStudentManager.updateStudent(
+                testStudentManager.getStudent(id).setImgName(null)));
+        assertNull(testStudentManager.compareAndSetStudent(staleSnapshot.withName("A")));
+
+        // Verify the stale snapshots did not overwrite the other changes.
+        verifySnapshotAsExpected(testStudentManager.getStudentSnapshot(id), id, STUDENT_1_NAME,
+                null, STUDENT_1_NUM_STICKERS + 1);
+
+        // Verify that a deleted student cannot be updated either.
+        StudentSnapshot snapshot = testStudentManager.getStudentSnapshot(id);
+        assertTrue(testStudentManager.deleteStudent(id));
+        assertNull(testStudentManager.compareAndSetStudent(snapshot.withName("A")));
+        assertNull(testStudentManager.getStudentSnapshot(id));
+    }
+
+    public void testListener_notifiedOfEachChange() {
+        verifyDatabaseEmpty();
+        RecordingListener listener = new RecordingListener();
+        testStudentManager.registerOnStudentsChangedListener(listener);
+
+        // Make one of each kind of change.
+        assertTrue(testStudentManager.createStudent(student1));
+        long id = student1.getId();
+        student1.setName("Royal Gardner");
+        assertTrue(testStudentManager.updateStudent(student1));
+        assertEquals(STUDENT_1_NUM_STICKERS + 2, testStudentManager.addStickers(id, 2));
+        assertEquals(STUDENT_1_NUM_STICKERS + 1, testStudentManager.removeStickers(id, 1));
+        assertTrue(testStudentManager.clearStickers(id));
+        assertTrue(testStudentManager.deleteStudent(id));
+
+        // Verify that each change was published, with just the fields that changed.
+        assertEquals(Arrays.asList(
+                "inserted " + id + " " + STUDENT_1_NAME + " " + STUDENT_1_NUM_STICKERS,
+                "updated " + id + " Royal Gardner " + STUDENT_1_NUM_STICKERS + " fields "
+                        + StudentManager.FIELD_NAME,
+                "updated " + id + " Royal Gardner " + (STUDENT_1_NUM_STICKERS + 2) + " fields "
+                        + StudentManager.FIELD_NUM_STICKERS,
+                "updated " + id + " Royal Gardner " + (STUDENT_1_NUM_STICKERS + 1) + " fields "
+                        + StudentManager.FIELD_NUM_STICKERS,
+                "updated " + id + " Royal Gardner 0 fields " + StudentManager.FIELD_NUM_STICKERS,
+                "deleted " + id), listener.mEvents);
+    }
+
+    public void testListener_notNotifiedOfFailedChanges() {
+        verifyDatabaseEmpty();
+        assertTrue(testStudentManager.createStudent(student2));
+        RecordingListener listener = new RecordingListener();
+        testStudentManager.registerOnStudentsChangedListener(listener);
+
+        // Make changes that fail or change nothing.
+        assertEquals(-1, testStudentManager.removeStickers(student2.getId(), 1));
+        assertFalse(testStudentManager.deleteStudent(student2.getId() + 1));
+        assertTrue(testStudentManager.updateStudent(student2));
+
+        // Verify nothing was published, and nothing is published after unregistering.
+        assertEquals(Collections.emptyList(), listener.mEvents);
+        testStudentManager.unregisterOnStudentsChangedListener(listener);
+        assertTrue(testStudentManager.deleteStudent(student2.getId()));
+        assertEquals(Collections.emptyList(), listener.mEvents);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        testStudentManager.closeDatabase();
+        super.tearDown();
+    }
+
+    // Records each change it is notified of as a string.
+    private static class RecordingListener implements OnStudentsChangedListener {
+        private final List<String> mEvents = new ArrayList<String>();
+
+        @Override
+        public void onStudentInserted(Student student) {
+            mEvents.add("inserted " + student.getId() + " " + student.getName() + " "
+                    + student.getNumStickers());
+        }
+
+        @Override
+        public void onStudentUpdated(Student student, int changedFields) {
+            mEvents.add("updated " + student.getId() + " " + student.getName() + " "
+                    + student.getNumStickers() + " fields " + changedFields);
+        }
+
+        @Override
+        public void onStudentDeleted(long id) {
+            mEvents.add("deleted " + id);
+        }
+
+        @Override
+        public void onStudentsChanged() {
+            mEvents.add("changed");
+        }
+    }
+
+    private List<Student> createRoster(int size) {
+        List<Student> roster = new ArrayList<Student>(size);
+        for (int i = 0; i < size; i++) {
+            roster.add(new Student().setName("Student " + i).setNumStickers(i % 10));
+        }
+        return roster;
+    }
+
+    // Counts the students in the default classroom by querying the database, bypassing the cache.
+    private int countStudents() {
+        StudentCursor studentCursor = testStudentManager.queryStudents(Student.DEFAULT_CLASS_ID,
+                StudentManager.PROJECTION_NAME_AND_IMAGE);
+        try {
+            return studentCursor.getCount();
+        } finally {
+            studentCursor.close();
+        }
+    }
+
     private void verifyDatabaseEmpty(){
         assertEquals(0, testStudentManager.getAllStudents().size());
     }
@@ -295,6 +1305,49 @@ public class StudentManagerTest extends AndroidTestCase {
                 expected.getNumStickers());
     }
 
+    // Verifies that the statistics of the given classroom are those computed from its students.
+    private void verifyClassStatsMatchStudents(long classId) {
+        int numStudents = 0;
+        long totalStickers = 0;
+        SortedMap<Integer, Integer> histogram = new TreeMap<Integer, Integer>();
+        for (Student student : testStudentManager.getAllStudents()) {
+            if (student.getClassId() == classId) {
+                numStudents++;
+                totalStickers += student.getNumStickers();
+                Integer count = histogram.get(student.getNumStickers());
+                histogram.put(student.getNumStickers(), count == null ? 1 : count + 1);
+            }
+        }
+        ClassStats stats = testStudentManager.getClassStats(classId);
+        assertEquals(numStudents, stats.getNumStudents());
+        assertEquals(totalStickers, stats.getTotalStickers());
+        assertEquals(histogram, stats.getHistogram());
+    }
+
+    private void verifyLeaderAsExpected(LeaderboardEntry leader, int expectedRank,
+            long expectedId, int expectedNumStickers) {
+        assertEquals(expectedRank, leader.getRank());
+        assertEquals(expectedId, leader.getStudent().getId());
+        assertEquals(expectedNumStickers, leader.getStudent().getNumStickers());
+    }
+
+    private void verifyRowAsExpected(StudentRow row, long expectedId, String expectedName,
+            String expectedImgName, int expectedNumStickers) {
+        assertEquals(expectedId, row.getId());
+        assertEquals(expectedName, row.getName());
+        assertEquals(expectedImgName, row.getImgName());
+        assertEquals(expectedNumStickers, row.getNumStickers());
+    }
+
+    private void verifySnapshotAsExpected(StudentSnapshot snapshot, long expectedId,
+            String expectedName, String expectedImgName, int expectedNumStickers) {
+        assertEquals(expectedId, snapshot.getId());
+        assertEquals(expectedName, snapshot.getName());
+        assertEquals(expectedImgName, snapshot.getImgName());
+        assertEquals(expectedNumStickers, snapshot.getNumStickers());
+        assertEquals(Student.DEFAULT_CLASS_ID, snapshot.getClassId());
+    }
+
     private void verifyFieldsAsExpected(Student student, long expectedId, String expectedName,
             String expectedImgName, int expectedNumStickers) {
         assertEquals(expectedId, student.getId());
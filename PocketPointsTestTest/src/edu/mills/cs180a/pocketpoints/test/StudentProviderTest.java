@@ -0,0 +1,293 @@
+package edu.mills.cs180a.pocketpoints.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import edu.mills.cs180a.pocketpoints.Student;
+import edu.mills.cs180a.pocketpoints.StudentProvider;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.Transaction;
+
+/**
+ * JUnit tests for {@link StudentProvider}.
+ */
+public class StudentProviderTest extends AndroidTestCase {
+    private static final String STUDENT_NAME = "Phillipa Gordon";
+    private static final String STUDENT_IMG_NAME = "PhilG_student_profile.jpg";
+    private static final int STUDENT_NUM_STICKERS = 4;
+    private static final String NEW_STUDENT_NAME = "Stella Maynard";
+
+    // The longest to wait for another thread.
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // The number of students inserted by the batch in the single transaction test.
+    private static final int NUM_OPERATIONS = 200;
+
+    private StudentProvider testProvider;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+
+        // Create an isolated context that does not affect the production database.
+        RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(), "test_");
+        context.deleteDatabase(StudentSQLiteOpenHelper.DATABASE_NAME); // Start from scratch.
+
+        testProvider = StudentProvider.getTestInstance(context);
+    }
+
+    public void testGetType() {
+        assertEquals(StudentProvider.CONTENT_TYPE,
+                testProvider.getType(StudentProvider.CONTENT_URI));
+        assertEquals(StudentProvider.CONTENT_ITEM_TYPE,
+                testProvider.getType(ContentUris.withAppendedId(StudentProvider.CONTENT_URI, 1)));
+        assertEquals(StudentProvider.CONTENT_TYPE,
+                testProvider.getType(Uri.withAppendedPath(StudentProvider.SEARCH_URI, "ph")));
+    }
+
+    public void testInsertAndQuery() {
+        Uri uri = testProvider.insert(StudentProvider.CONTENT_URI, studentValues(STUDENT_NAME));
+        assertNotNull(uri);
+        long id = ContentUris.parseId(uri);
+
+        // Verify that the student can be read through both the item and the list URIs.
+        Cursor cursor = testProvider.query(uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        verifyRowAsExpected(cursor, id, STUDENT_NAME, STUDENT_IMG_NAME, STUDENT_NUM_STICKERS);
+        cursor.close();
+        assertEquals(1, countStudents());
+
+        // Verify that the student is cached by the student manager.
+        assertEquals(STUDENT_NAME, testProvider.getStudentManager().getStudent(id).getName());
+    }
+
+    public void testInsert_nameMissing_fails() {
+        ContentValues values = studentValues(STUDENT_NAME);
+        values.remove(StudentSQLiteOpenHelper.COLUMN_NAME);
+        assertNull(testProvider.insert(StudentProvider.CONTENT_URI, values));
+        assertEquals(0, countStudents());
+    }
+
+    public void testQuery_search() {
+        testProvider.insert(StudentProvider.CONTENT_URI, studentValues(STUDENT_NAME));
+        testProvider.insert(StudentProvider.CONTENT_URI, studentValues("Stella Maynard"));
+
+        // Verify that only the matching student is found.
+        Cursor cursor = testProvider.query(Uri.withAppendedPath(StudentProvider.SEARCH_URI, "gor"),
+                null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(STUDENT_NAME, cursor.getString(
+                cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_NAME)));
+        cursor.close();
+
+        // Verify that a prefix without any words matches no students.
+        cursor = testProvider.query(Uri.withAppendedPath(StudentProvider.SEARCH_URI, "*"),
+                null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testUpdate() {
+        Uri uri = testProvider.insert(StudentProvider.CONTENT_URI, studentValues(STUDENT_NAME));
+        ContentValues values = new ContentValues();
+        values.put(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS, 10);
+        assertEquals(1, testProvider.update(uri, values, null, null));
+
+        // Verify that only the sticker count was changed, through the student manager.
+        Student student = testProvider.getStudentManager().getStudent(ContentUris.parseId(uri));
+        assertEquals(STUDENT_NAME, student.getName());
+        assertEquals(10, student.getNumStickers());
+        Cursor cursor = testProvider.query(uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        verifyRowAsExpected(cursor, student.getId(), STUDENT_NAME, STUDENT_IMG_NAME, 10);
+        cursor.close();
+    }
+
+    public void testUpdate_concurrentEditNotOverwritten() throws InterruptedException {
+        final Uri uri =
+                testProvider.insert(StudentProvider.CONTENT_URI, studentValues(STUDENT_NAME));
+        final long id = ContentUris.parseId(uri);
+
+        // Start a transaction that renames the student once it is released.
+        final CountDownLatch editing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread editor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    testProvider.getStudentManager().runInTransaction(
+                            new Transaction<Void, InterruptedException>() {
+                                @Override
+                                public Void run() throws InterruptedException {
+                                    editing.countDown();
+                                    release.await();
+                                    Student student =
+                                            testProvider.getStudentManager().getStudent(id);
+                                    testProvider.getStudentManager().updateStudent(
+                                            student.setName(NEW_STUDENT_NAME));
+                                    return null;
+                                }
+                            });
+                } catch (InterruptedException e) {
+                    // The test is over.
+                }
+            }
+        };
+        editor.start();
+
+        // Update the sticker count through the provider while the edit is in progress.
+        Thread updater = new Thread() {
+            @Override
+            public void run() {
+                ContentValues values = new ContentValues();
+                values.put(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS, 10);
+                testProvider.update(uri, values, null, null);
+            }
+        };
+        try {
+            assertTrue(editing.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            updater.start();
+            long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+            while (updater.getState() != Thread.State.BLOCKED) {
+                assertTrue("Update did not wait for the edit",
+                        SystemClock.uptimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        } finally {
+            release.countDown();
+        }
+        editor.join(TIMEOUT_MILLIS);
+        updater.join(TIMEOUT_MILLIS);
+
+        // Verify that both the edit and the update were made.
+        Cursor cursor = testProvider.query(uri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        verifyRowAsExpected(cursor, id, NEW_STUDENT_NAME, STUDENT_IMG_NAME, 10);
+        cursor.close();
+    }
+
+    public void testDelete_withSelection() {
+        testProvider.insert(StudentProvider.CONTENT_URI, studentValues(STUDENT_NAME));
+        testProvider.insert(StudentProvider.CONTENT_URI, studentValues("Stella Maynard"));
+
+        // Delete only the students matching the selection.
+        assertEquals(1, testProvider.delete(StudentProvider.CONTENT_URI,
+                StudentSQLiteOpenHelper.COLUMN_NAME + " = ?", new String[] { STUDENT_NAME }));
+        assertEquals(1, countStudents());
+    }
+
+    public void testApplyBatch() throws OperationApplicationException {
+        Uri uri = testProvider.insert(StudentProvider.CONTENT_URI, studentValues(STUDENT_NAME));
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(StudentProvider.CONTENT_URI)
+                .withValues(studentValues("Stella Maynard")).build());
+        operations.add(ContentProviderOperation.newDelete(uri).build());
+
+        ContentProviderResult[] results = testProvider.applyBatch(operations);
+        assertEquals(2, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+        assertEquals(1, countStudents());
+    }
+
+    public void testApplyBatch_failedOperation_nothingApplied() {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(StudentProvider.CONTENT_URI)
+                .withValues(studentValues(STUDENT_NAME)).build());
+        operations.add(ContentProviderOperation.newInsert(StudentProvider.CONTENT_URI)
+                .withValues(studentValues("")).build()); // The name must not be empty.
+
+        try {
+            testProvider.applyBatch(operations);
+            fail("The batch should have failed");
+        } catch (OperationApplicationException e) {
+            // Expected.
+        }
+
+        // Verify that the first student was not inserted either.
+        assertEquals(0, countStudents());
+        assertTrue(testProvider.getStudentManager().getAllStudents().isEmpty());
+    }
+
+    // Verifies that a batch is applied in a single transaction, which is what makes it faster
+    // than applying each operation in its own: a concurrent reader sees either none of the
+    // inserted students or all of them.
+    public void testApplyBatch_singleTransaction() throws InterruptedException {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < NUM_OPERATIONS; i++) {
+            operations.add(ContentProviderOperation.newInsert(StudentProvider.CONTENT_URI)
+                    .withValues(studentValues("Batch " + i)).build());
+        }
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    results.add(testProvider.applyBatch(operations));
+                } catch (OperationApplicationException e) {
+                    results.add(e);
+                }
+            }
+        });
+
+        writer.start();
+        while (writer.isAlive()) {
+            int numStudents = countStudents();
+            assertTrue("Read " + numStudents + " students",
+                    numStudents == 0 || numStudents == NUM_OPERATIONS);
+        }
+        writer.join();
+
+        assertTrue("Failed: " + results.get(0), results.get(0) instanceof ContentProviderResult[]);
+        assertEquals(NUM_OPERATIONS, ((ContentProviderResult[]) results.get(0)).length);
+        assertEquals(NUM_OPERATIONS, countStudents());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        testProvider.getStudentManager().closeDatabase();
+        super.tearDown();
+    }
+
+    private int countStudents() {
+        Cursor cursor = testProvider.query(StudentProvider.CONTENT_URI, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private static ContentValues studentValues(String name) {
+        ContentValues values = new ContentValues();
+        values.put(StudentSQLiteOpenHelper.COLUMN_NAME, name);
+        values.put(StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME, STUDENT_IMG_NAME);
+        values.put(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS, STUDENT_NUM_STICKERS);
+        return values;
+    }
+
+    private void verifyRowAsExpected(Cursor cursor, long expectedId, String expectedName,
+            String expectedImgName, int expectedNumStickers) {
+        assertEquals(expectedId,
+                cursor.getLong(cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_ID)));
+        assertEquals(expectedName,
+                cursor.getString(cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_NAME)));
+        assertEquals(expectedImgName, cursor.getString(
+                cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME)));
+        assertEquals(expectedNumStickers, cursor.getInt(
+                cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS)));
+    }
+}
@@ -1,13 +1,23 @@
 package edu.mills.cs180a.pocketpoints.test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 import android.test.RenamingDelegatingContext;
 import edu.mills.cs180a.pocketpoints.Student;
 import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.StudentCursor;
+import edu.mills.cs180a.pocketpoints.StudentSQLiteOpenHelper.Transaction;
+import edu.mills.cs180a.pocketpoints.StudentSnapshot;
 
 /**
  * JUnit tests for {@link StudentSQLiteOpenHelper}.
@@ -25,6 +35,22 @@ public class StudentSQLiteOpenHelperTest extends AndroidTestCase {
     private static final String STUDENT_2_IMG_NAME = "StelMay_student_profile.jpg";
     private static final int STUDENT_2_NUM_STICKERS = 0;
 
+    // The number of students in the database upgraded by the large upgrade tests.
+    private static final int LARGE_NUM_STUDENTS = 10000;
+
+    // The longest to wait for the data of a database of LARGE_NUM_STUDENTS students to be copied.
+    private static final long MIGRATION_TIMEOUT_MILLIS = 60000;
+
+    // The version whose migration starts the ledger of sticker events.
+    private static final int STICKER_EVENTS_VERSION = 3;
+
+    // The longest time to wait for another thread in the concurrency tests.
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // The number of students read by the large cursor scan test.
+    private static final int SCAN_NUM_STUDENTS = 5000;
+
+    private RenamingDelegatingContext context;
     private StudentSQLiteOpenHelper studentDbHelper;
     private Student student1;
     private Student student2;
@@ -34,7 +60,8 @@ public class StudentSQLiteOpenHelperTest extends AndroidTestCase {
         super.setUp();
 
         // Create an isolated context that does not affect the production database.
-        RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(), "test_");
+        context = new RenamingDelegatingContext(getContext(), "test_");
+        context.deleteDatabase(StudentSQLiteOpenHelper.DATABASE_NAME); // Start from scratch.
 
         // Initialize the variables that will be used during this test.
         studentDbHelper = new StudentSQLiteOpenHelper(context);
@@ -52,18 +79,32 @@ public class StudentSQLiteOpenHelperTest extends AndroidTestCase {
     public void testSchema_expectedColumnsPresent() {
         Cursor cursor = queryEntireStudentTable();
 
-        // Right now, there are only 4 columns in the students table definition.
-        assertEquals(4, cursor.getColumnCount());
+        // Right now, there are only 6 columns in the students table definition.
+        assertEquals(6, cursor.getColumnCount());
 
         // Verify that the columns have the expected names.
         cursor.getColumnIndexOrThrow(StudentSQLiteOpenHelper.COLUMN_ID);
         cursor.getColumnIndexOrThrow(StudentSQLiteOpenHelper.COLUMN_NAME);
         cursor.getColumnIndexOrThrow(StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME);
         cursor.getColumnIndexOrThrow(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS);
+        cursor.getColumnIndexOrThrow(StudentSQLiteOpenHelper.COLUMN_CLASS_ID);
+        cursor.getColumnIndexOrThrow(StudentSQLiteOpenHelper.COLUMN_VERSION);
 
         cursor.close();
     }
 
+    public void testJournalMode_writeAheadLogging() {
+        Cursor cursor = studentDbHelper.getWritableDatabase().rawQuery("pragma journal_mode",
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("wal", cursor.getString(0).toLowerCase());
+        cursor.close();
+
+        // Checkpointing should succeed whether or not there is anything to checkpoint.
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.checkpoint();
+    }
+
     // Tests the schema of the 'students' table created in the onCreate() method.
     public void testSchema_insertEntry_allFieldsProvided_succeeds() {
         verifyDatabaseInitiallyEmpty();
@@ -371,6 +412,83 @@ public class StudentSQLiteOpenHelperTest extends AndroidTestCase {
         cursor.close();
     }
 
+    // Verifies that the statements cached by the helper are recompiled for a new connection.
+    public void testInsertStudent_afterConnectionClosed() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+
+        // Close the connection directly, then through the helper, inserting a student after each.
+        studentDbHelper.getWritableDatabase().close();
+        long student2Id = studentDbHelper.insertStudent(student2);
+        assertTrue(student2Id > -1);
+        studentDbHelper.close();
+        Student student3 = new Student().setName("Royal Gardner");
+        assertTrue(studentDbHelper.insertStudent(student3) > -1);
+
+        // Verify that all three students were inserted.
+        Cursor cursor = queryEntireStudentTable();
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+    }
+
+    public void testQueryNumStickers() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+
+        assertEquals(STUDENT_1_NUM_STICKERS, studentDbHelper.queryNumStickers(student1.getId()));
+        assertEquals(-1, studentDbHelper.queryNumStickers(student1.getId() + 1));
+    }
+
+    public void testQueryNumStickers_doesNotWaitForWriter() throws InterruptedException {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        final long id = student1.getId();
+
+        // Start a write transaction that stays open until it is released.
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    studentDbHelper.runInTransaction(new Transaction<Void, InterruptedException>() {
+                        @Override
+                        public Void run() throws InterruptedException {
+                            studentDbHelper.addStickers(id, 1);
+                            writing.countDown();
+                            release.await();
+                            return null;
+                        }
+                    });
+                } catch (InterruptedException e) {
+                    // The test is over.
+                }
+            }
+        };
+        writer.start();
+
+        // Verify that the sticker count can be read while the write is in progress.
+        try {
+            assertTrue(writing.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            final AtomicLong numStickers = new AtomicLong(-2);
+            final CountDownLatch read = new CountDownLatch(1);
+            new Thread() {
+                @Override
+                public void run() {
+                    numStickers.set(studentDbHelper.queryNumStickers(id));
+                    read.countDown();
+                }
+            }.start();
+            assertTrue("Read waited for the writer",
+                    read.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            assertEquals(STUDENT_1_NUM_STICKERS, numStickers.get()); // The write isn't committed.
+        } finally {
+            release.countDown();
+        }
+        writer.join(TIMEOUT_MILLIS);
+        assertEquals(STUDENT_1_NUM_STICKERS + 1, studentDbHelper.queryNumStickers(id));
+    }
+
     public void testUpdateStudent_fails() {
         verifyDatabaseInitiallyEmpty();
         studentDbHelper.insertStudent(student1);
@@ -420,6 +538,52 @@ public class StudentSQLiteOpenHelperTest extends AndroidTestCase {
         cursor.close();
     }
 
+    public void testVersion_incrementedByEveryUpdate() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        long id = student1.getId();
+        assertEquals(0, queryVersion(id));
+
+        // Verify that each kind of update moves the student to a new version.
+        assertEquals(1, studentDbHelper.updateStudent(student1.setName("Royal Gardner")));
+        assertEquals(1, queryVersion(id));
+        assertEquals(STUDENT_1_NUM_STICKERS + 1, studentDbHelper.addStickers(id, 1));
+        assertEquals(2, queryVersion(id));
+        studentDbHelper.addStickers(new long[] { id }, new int[] { 1 });
+        assertEquals(3, queryVersion(id));
+        assertEquals(1, studentDbHelper.clearStickers(id));
+        assertEquals(4, queryVersion(id));
+
+        // Verify that a failed update does not.
+        assertEquals(-1, studentDbHelper.addStickers(id, -1));
+        assertEquals(4, queryVersion(id));
+    }
+
+    public void testUpdateStudentIfVersion() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        long id = student1.getId();
+
+        // Update the student at its current version.
+        student1.setName("Royal Gardner").setNumStickers(STUDENT_1_NUM_STICKERS + 2);
+        assertEquals(1, studentDbHelper.updateStudentIfVersion(student1, 0));
+        assertEquals(1, queryVersion(id));
+        verifyStickerEventsMatchNumStickers(id);
+
+        // Verify that an update based on the previous version is rejected.
+        assertEquals(0, studentDbHelper.updateStudentIfVersion(student1.setNumStickers(0), 0));
+        Cursor cursor = queryEntireStudentTable();
+        assertTrue(cursor.moveToFirst());
+        verifyRowContainsExpectedInfo(cursor, id, "Royal Gardner", STUDENT_1_IMG_NAME,
+                STUDENT_1_NUM_STICKERS + 2);
+        cursor.close();
+        assertEquals(1, queryVersion(id));
+        verifyStickerEventsMatchNumStickers(id);
+
+        // Verify that a student that doesn't exist is not updated.
+        assertEquals(0, studentDbHelper.updateStudentIfVersion(student2.setID(id + 1), 0));
+    }
+
     public void testDeleteStudent_fails() {
         verifyDatabaseInitiallyEmpty();
         studentDbHelper.insertStudent(student1);
@@ -458,12 +622,512 @@ public class StudentSQLiteOpenHelperTest extends AndroidTestCase {
         cursor.close();
     }
 
+    public void testAddStickers_succeeds() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+
+        // Add, then remove, stickers.
+        assertEquals(STUDENT_1_NUM_STICKERS + 2, studentDbHelper.addStickers(student1.getId(), 2));
+        assertEquals(STUDENT_1_NUM_STICKERS - 1, studentDbHelper.addStickers(student1.getId(), -3));
+
+        // Verify that the database contains the new sticker count.
+        Cursor cursor = queryEntireStudentTable();
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        verifyRowContainsExpectedInfo(cursor, student1.getId(), STUDENT_1_NAME, STUDENT_1_IMG_NAME,
+                STUDENT_1_NUM_STICKERS - 1);
+        cursor.close();
+    }
+
+    public void testAddStickers_negativeResult_fails() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+
+        // Try to remove more stickers than the student has.
+        assertEquals(-1, studentDbHelper.addStickers(student1.getId(),
+                -(STUDENT_1_NUM_STICKERS + 1)));
+
+        // Verify that the database hasn't changed.
+        Cursor cursor = queryEntireStudentTable();
+        assertTrue(cursor.moveToFirst());
+        verifyRowContainsExpectedInfo(cursor, student1.getId(), STUDENT_1_NAME, STUDENT_1_IMG_NAME,
+                STUDENT_1_NUM_STICKERS);
+        cursor.close();
+    }
+
+    public void testAddStickers_batch() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.insertStudent(student2);
+
+        // Change both students' stickers at once, including one change that cannot be made.
+        int[] numStudentsUpdated = studentDbHelper.addStickers(
+                new long[] { student1.getId(), student2.getId() },
+                new int[] { -2, -(STUDENT_2_NUM_STICKERS + 1) });
+        assertEquals(1, numStudentsUpdated[0]);
+        assertEquals(0, numStudentsUpdated[1]);
+
+        // Verify that only the possible change was made.
+        assertEquals(STUDENT_1_NUM_STICKERS - 2, studentDbHelper.queryNumStickers(student1.getId()));
+        assertEquals(STUDENT_2_NUM_STICKERS, studentDbHelper.queryNumStickers(student2.getId()));
+    }
+
+    public void testStickerEvents_sumMatchesNumStickers() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.insertStudent(student2);
+        verifyStickerEventsMatchNumStickers(student1.getId());
+        verifyStickerEventsMatchNumStickers(student2.getId());
+
+        // Change the students' stickers in every way they can be changed.
+        studentDbHelper.addStickers(student1.getId(), 3);
+        studentDbHelper.addStickers(student1.getId(), -1);
+        studentDbHelper.addStickers(new long[] { student1.getId(), student2.getId() },
+                new int[] { 2, 5 });
+        studentDbHelper.updateStudent(student2.setNumStickers(1));
+        studentDbHelper.clearStickers(student1.getId());
+        studentDbHelper.addStickers(student1.getId(), 6);
+
+        // Verify that the events of each student add up to its number of stickers.
+        verifyStickerEventsMatchNumStickers(student1.getId());
+        verifyStickerEventsMatchNumStickers(student2.getId());
+        assertEquals(6, studentDbHelper.queryNumStickers(student1.getId()));
+        assertEquals(1, studentDbHelper.queryNumStickers(student2.getId()));
+    }
+
+    public void testStickerEvents_failedChangeNotRecorded() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        long numEvents = countStickerEvents(student1.getId());
+
+        // Try to remove more stickers than the student has.
+        assertEquals(-1, studentDbHelper.addStickers(student1.getId(),
+                -(STUDENT_1_NUM_STICKERS + 1)));
+
+        // Verify that no event was recorded.
+        assertEquals(numEvents, countStickerEvents(student1.getId()));
+    }
+
+    public void testStickerEvents_deletedWithStudent() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.addStickers(student1.getId(), 2);
+        assertTrue(countStickerEvents(student1.getId()) > 0);
+
+        assertEquals(1, studentDbHelper.deleteStudent(student1.getId()));
+        assertEquals(0, countStickerEvents(student1.getId()));
+    }
+
+    public void testCompactStickerEvents() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.insertStudent(student2);
+        for (int i = 0; i < 5; i++) {
+            studentDbHelper.addStickers(student1.getId(), 1);
+        }
+        studentDbHelper.addStickers(student2.getId(), 1);
+
+        // Collapse every event so far.
+        long numEvents = countStickerEvents(student1.getId());
+        assertEquals(numEvents, studentDbHelper.compactStickerEvents(Long.MAX_VALUE));
+
+        // Verify that only the first student's events were collapsed, into a single event.
+        assertEquals(1, countStickerEvents(student1.getId()));
+        assertEquals(1, countStickerEvents(student2.getId()));
+        verifyStickerEventsMatchNumStickers(student1.getId());
+        verifyStickerEventsMatchNumStickers(student2.getId());
+
+        // Verify that compacting again changes nothing.
+        assertEquals(0, studentDbHelper.compactStickerEvents(Long.MAX_VALUE));
+    }
+
+    public void testCompactStickerEvents_recentEventsKept() {
+        verifyDatabaseInitiallyEmpty();
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.addStickers(student1.getId(), 1);
+        long numEvents = countStickerEvents(student1.getId());
+
+        // Compact only events older than every event.
+        assertEquals(0, studentDbHelper.compactStickerEvents(0));
+        assertEquals(numEvents, countStickerEvents(student1.getId()));
+    }
+
+    public void testIndexes_rosterQueryUsesClassIdNameIndex() {
+        String queryPlan = explainQueryPlan("select * from "
+                + StudentSQLiteOpenHelper.TABLE_STUDENTS
+                + " where " + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = 2"
+                + " order by " + StudentSQLiteOpenHelper.ORDER_BY_NAME);
+        assertTrue(queryPlan,
+                queryPlan.contains(StudentSQLiteOpenHelper.INDEX_STUDENTS_CLASS_ID_NAME));
+        assertFalse(queryPlan, queryPlan.contains("SCAN")); // Other classrooms are not read.
+        assertFalse(queryPlan, queryPlan.contains("TEMP B-TREE")); // The rows are not sorted.
+    }
+
+    public void testIndexes_searchQueryUsesNameSearchIndex() {
+        // The query made by StudentManager.searchStudents().
+        String queryPlan = explainQueryPlan("select * from "
+                + StudentSQLiteOpenHelper.TABLE_STUDENTS
+                + " where " + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = 2 and "
+                + StudentSQLiteOpenHelper.COLUMN_ID + " in (select docid from "
+                + StudentSQLiteOpenHelper.TABLE_STUDENT_NAME_SEARCH + " where "
+                + StudentSQLiteOpenHelper.TABLE_STUDENT_NAME_SEARCH + " match 'student* 12*')"
+                + " order by " + StudentSQLiteOpenHelper.ORDER_BY_NAME + " limit 200");
+
+        // Verify that the names are matched in the search index, and that the only table read
+        // from start to end is the index's own.
+        assertTrue(queryPlan, queryPlan.contains("VIRTUAL TABLE INDEX"));
+        for (String step : queryPlan.split("\n")) {
+            assertFalse(queryPlan, step.contains("SCAN") && !step.contains("VIRTUAL TABLE"));
+        }
+    }
+
+    public void testInsertClassroom() {
+        long classId = studentDbHelper.insertClassroom("Period 2");
+        assertTrue(classId > Student.DEFAULT_CLASS_ID);
+        assertEquals(-1, studentDbHelper.insertClassroom(""));
+
+        // Put a student in the new classroom, and verify it was stored there.
+        studentDbHelper.insertStudent(student1.setClassId(classId));
+        Cursor cursor = queryEntireStudentTable();
+        assertTrue(cursor.moveToFirst());
+        assertEquals(classId, cursor.getLong(
+                cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_CLASS_ID)));
+        cursor.close();
+    }
+
+    public void testForeignKeys_enforced() {
+        long classId = studentDbHelper.insertClassroom("Period 2");
+
+        // Verify that a student cannot be put in a classroom that does not exist.
+        assertEquals(-1, studentDbHelper.insertStudent(student1.setClassId(classId + 1)));
+        assertTrue(studentDbHelper.insertStudent(student1.setClassId(classId)) > -1);
+
+        // Verify that a classroom cannot be deleted while it has students.
+        SQLiteDatabase db = studentDbHelper.getWritableDatabase();
+        String[] classIdArgs = new String[] { String.valueOf(classId) };
+        try {
+            db.delete(StudentSQLiteOpenHelper.TABLE_CLASSROOMS,
+                    StudentSQLiteOpenHelper.COLUMN_ID + " = ?", classIdArgs);
+            fail("Deleted a classroom that still had students");
+        } catch (SQLException expected) {
+            // The classroom should not have been deleted.
+        }
+
+        // Verify that deleting the student leaves nothing referring to it, or to the classroom.
+        assertEquals(1, studentDbHelper.deleteStudent(student1.getId()));
+        assertEquals(1, db.delete(StudentSQLiteOpenHelper.TABLE_CLASSROOMS,
+                StudentSQLiteOpenHelper.COLUMN_ID + " = ?", classIdArgs));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db,
+                StudentSQLiteOpenHelper.TABLE_STICKER_EVENTS));
+    }
+
+    public void testIndexes_leaderboardQueryUsesClassIdNumStickersIndex() {
+        String queryPlan = explainQueryPlan("select * from "
+                + StudentSQLiteOpenHelper.TABLE_STUDENTS
+                + " where " + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = 2"
+                + " order by " + StudentSQLiteOpenHelper.ORDER_BY_NUM_STICKERS + " limit 10");
+        assertTrue(queryPlan,
+                queryPlan.contains(StudentSQLiteOpenHelper.INDEX_STUDENTS_CLASS_ID_NUM_STICKERS));
+        assertFalse(queryPlan, queryPlan.contains("SCAN")); // Other classrooms are not read.
+        assertFalse(queryPlan, queryPlan.contains("TEMP B-TREE")); // The rows are not sorted.
+    }
+
+    public void testVerifyClassStats_inconsistentStatsRebuilt() {
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.insertStudent(student2);
+        studentDbHelper.addStickers(student2.getId(), 3);
+        assertTrue(studentDbHelper.verifyClassStats());
+
+        // Make the statistics disagree with the students, as a bug in a trigger might.
+        SQLiteDatabase db = studentDbHelper.getWritableDatabase();
+        db.execSQL("update " + StudentSQLiteOpenHelper.TABLE_CLASS_STATS + " set "
+                + StudentSQLiteOpenHelper.COLUMN_TOTAL_STICKERS + " = 100");
+        db.delete(StudentSQLiteOpenHelper.TABLE_STICKER_HISTOGRAM, null, null);
+
+        // Verify that the statistics were rebuilt from the students.
+        assertFalse(studentDbHelper.verifyClassStats());
+        assertTrue(studentDbHelper.verifyClassStats());
+        assertEquals(STUDENT_1_NUM_STICKERS + STUDENT_2_NUM_STICKERS + 3,
+                DatabaseUtils.longForQuery(db, "select "
+                        + StudentSQLiteOpenHelper.COLUMN_TOTAL_STICKERS + " from "
+                        + StudentSQLiteOpenHelper.TABLE_CLASS_STATS, null));
+        assertEquals(2, DatabaseUtils.queryNumEntries(db,
+                StudentSQLiteOpenHelper.TABLE_STICKER_HISTOGRAM));
+    }
+
+    public void testStudentCursor_fillsExistingStudent() {
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.insertStudent(student2);
+        StudentCursor cursor = new StudentCursor(queryEntireStudentTable());
+        assertNull(cursor.getStudent()); // There is no current row yet.
+
+        // Read both rows into the same student.
+        Student student = new Student();
+        assertTrue(cursor.moveToFirst());
+        assertSame(student, cursor.getStudent(student));
+        verifyAllFieldsEqual(student1, student);
+        assertEquals(student1.getId(), cursor.getId());
+        assertEquals(STUDENT_1_NUM_STICKERS, cursor.getStickerCount());
+        assertTrue(cursor.moveToNext());
+        assertSame(student, cursor.getStudent(student));
+        verifyAllFieldsEqual(student2, student);
+        assertEquals(student2.getId(), cursor.getId());
+        assertEquals(STUDENT_2_NUM_STICKERS, cursor.getStickerCount());
+        cursor.close();
+    }
+
+    // Verifies that reading a large roster through the columns the cursor resolved once, into the
+    // same student for every row, reads the same values as looking up the columns for every row,
+    // as StudentCursor used to.
+    public void testStudentCursor_scanWithCachedColumns() {
+        List<Student> roster = new ArrayList<Student>();
+        long expectedTotal = 0;
+        for (int i = 0; i < SCAN_NUM_STUDENTS; i++) {
+            roster.add(new Student().setName("Student " + i).setNumStickers(i % 10));
+            expectedTotal += i % 10;
+        }
+        studentDbHelper.insertStudents(roster);
+        StudentCursor cursor = new StudentCursor(queryEntireStudentTable());
+        assertEquals(SCAN_NUM_STUDENTS, cursor.getCount());
+
+        Student student = new Student();
+        long total = 0;
+        while (cursor.moveToNext()) {
+            assertSame(student, cursor.getStudent(student));
+            verifyAllFieldsEqual(readLookingUpColumns(cursor), student);
+            assertEquals(student.getId(), cursor.getId());
+            assertEquals(student.getNumStickers(), cursor.getStickerCount());
+            total += cursor.getStickerCount();
+        }
+        cursor.close();
+        assertEquals(expectedTotal, total);
+    }
+
+    public void testUpgrade_fromVersion1_classStatsComputed() {
+        createVersion1Database(20);
+
+        // Open the version 1 database with the helper, which should upgrade it, and change the
+        // students before they have all been counted.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        SQLiteDatabase db = studentDbHelper.getReadableDatabase();
+        assertTrue(studentDbHelper.isMigrationDataPending());
+        assertEquals(11, studentDbHelper.addStickers(20, 2)); // It had 9.
+        assertEquals(1, studentDbHelper.deleteStudent(1));
+        studentDbHelper.insertStudent(student1);
+        studentDbHelper.copyMigrationData();
+
+        // Verify that every student was counted once.
+        assertEquals(20, DatabaseUtils.longForQuery(db, "select "
+                + StudentSQLiteOpenHelper.COLUMN_NUM_STUDENTS + " from "
+                + StudentSQLiteOpenHelper.TABLE_CLASS_STATS + " where "
+                + StudentSQLiteOpenHelper.COLUMN_CLASS_ID + " = " + Student.DEFAULT_CLASS_ID,
+                null));
+        assertTrue(studentDbHelper.verifyClassStats());
+    }
+
+    public void testIsClassStatsCheckDue_onlyAfterUpgrade() {
+        // Verify that a new database's statistics need no check.
+        studentDbHelper.insertStudent(student1);
+        assertFalse(studentDbHelper.isClassStatsCheckDue());
+
+        // Verify that an upgraded database's statistics are checked once.
+        createVersion1Database(20);
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        studentDbHelper.getWritableDatabase();
+        assertFalse(studentDbHelper.isClassStatsCheckDue()); // Not every student is counted yet.
+        studentDbHelper.copyMigrationData();
+        assertTrue(studentDbHelper.isClassStatsCheckDue());
+        assertTrue(studentDbHelper.verifyClassStats());
+        assertFalse(studentDbHelper.isClassStatsCheckDue());
+    }
+
+    public void testUpgrade_fromVersion1_studentsVersioned() {
+        createVersion1Database(20);
+
+        // Verify that the existing students start at version 0, and are versioned from then on.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        StudentCursor studentCursor = new StudentCursor(queryEntireStudentTable());
+        assertTrue(studentCursor.moveToFirst());
+        StudentSnapshot snapshot = studentCursor.getSnapshot();
+        studentCursor.close();
+        assertEquals(0, snapshot.getVersion());
+        assertEquals(1, studentDbHelper.updateStudentIfVersion(
+                snapshot.withName("Royal Gardner").toStudent(), 0));
+        assertEquals(1, queryVersion(snapshot.getId()));
+    }
+
+    public void testUpgrade_fromVersion1_indexesCreated() {
+        createVersion1Database(2);
+
+        // Open the version 1 database with the helper, which should upgrade it.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        SQLiteDatabase db = studentDbHelper.getReadableDatabase();
+        Cursor cursor = db.rawQuery("select name from sqlite_master where type = 'index'"
+                + " and tbl_name = ?", new String[] { StudentSQLiteOpenHelper.TABLE_STUDENTS });
+        List<String> indexNames = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            indexNames.add(cursor.getString(0));
+        }
+        cursor.close();
+        assertTrue(indexNames.contains(StudentSQLiteOpenHelper.INDEX_STUDENTS_CLASS_ID_NAME));
+        assertTrue(indexNames.contains(
+                StudentSQLiteOpenHelper.INDEX_STUDENTS_CLASS_ID_NUM_STICKERS));
+
+        // Verify that the existing students were kept, in the default classroom.
+        cursor = queryEntireStudentTable();
+        assertEquals(2, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals(Student.DEFAULT_CLASS_ID, cursor.getLong(
+                    cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_CLASS_ID)));
+        }
+        cursor.close();
+    }
+
+    public void testUpgrade_fromVersion1_stickerEventsBackfilled() {
+        int numStudents = 20;
+        createVersion1Database(numStudents);
+
+        // Open the version 1 database with the helper, which should upgrade it.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        studentDbHelper.copyMigrationData();
+
+        // Verify that every student's ledger starts with the stickers it already had.
+        for (long id = 1; id <= numStudents; id++) {
+            verifyStickerEventsMatchNumStickers(id);
+        }
+    }
+
+    public void testUpgrade_fromVersion1_namesIndexedForSearch() {
+        createVersion1Database(20);
+
+        // Open the version 1 database with the helper, which should upgrade it.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        studentDbHelper.insertStudent(student1); // Indexed by the trigger.
+        studentDbHelper.copyMigrationData();
+
+        // Verify that the existing students were indexed, and none were indexed twice.
+        SQLiteDatabase db = studentDbHelper.getReadableDatabase();
+        assertEquals(21, DatabaseUtils.queryNumEntries(db,
+                StudentSQLiteOpenHelper.TABLE_STUDENT_NAME_SEARCH));
+        assertEquals(11, DatabaseUtils.longForQuery(db, "select count(*) from "
+                + StudentSQLiteOpenHelper.TABLE_STUDENT_NAME_SEARCH + " where "
+                + StudentSQLiteOpenHelper.TABLE_STUDENT_NAME_SEARCH + " match '1*'", null));
+    }
+
+    public void testUpgrade_fromVersion1_largeDatabase() {
+        createVersion1Database(LARGE_NUM_STUDENTS);
+
+        // Open the version 1 database with the helper, which should upgrade its schema but leave
+        // the data to copy, so that opening the database does not take longer as it grows.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        SQLiteDatabase db = studentDbHelper.getWritableDatabase();
+        assertTrue(studentDbHelper.isMigrationDataPending());
+        studentDbHelper.copyMigrationData();
+
+        // Verify that every student was kept, with its stickers.
+        assertEquals(LARGE_NUM_STUDENTS,
+                DatabaseUtils.queryNumEntries(db, StudentSQLiteOpenHelper.TABLE_STUDENTS));
+        long expectedTotalNumStickers = 0;
+        for (int i = 0; i < LARGE_NUM_STUDENTS; i++) {
+            expectedTotalNumStickers += i % 10;
+        }
+        assertEquals(expectedTotalNumStickers, DatabaseUtils.longForQuery(db, "select sum("
+                + StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS + ") from "
+                + StudentSQLiteOpenHelper.TABLE_STUDENTS, null));
+
+        // Verify that the data of every migration was copied.
+        verifyAllStickerEventsMatchNumStickers();
+        assertEquals(0, DatabaseUtils.queryNumEntries(db,
+                StudentSQLiteOpenHelper.TABLE_MIGRATIONS));
+    }
+
+    public void testUpgrade_interruptedMigrationResumed() {
+        createVersion1Database(LARGE_NUM_STUDENTS);
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        studentDbHelper.copyMigrationData();
+        SQLiteDatabase db = studentDbHelper.getWritableDatabase();
+
+        // Put the database back the way it would be if the app had been killed halfway through
+        // starting the ledger.
+        long lastIdCopied = LARGE_NUM_STUDENTS / 2;
+        db.delete(StudentSQLiteOpenHelper.TABLE_STICKER_EVENTS,
+                StudentSQLiteOpenHelper.COLUMN_EVENT_STUDENT_ID + " > ?",
+                new String[] { String.valueOf(lastIdCopied) });
+        ContentValues progress = new ContentValues();
+        progress.put(StudentSQLiteOpenHelper.COLUMN_MIGRATION_VERSION, STICKER_EVENTS_VERSION);
+        progress.put(StudentSQLiteOpenHelper.COLUMN_MIGRATION_LAST_ID, lastIdCopied);
+        db.insertOrThrow(StudentSQLiteOpenHelper.TABLE_MIGRATIONS, null, progress);
+        studentDbHelper.close();
+
+        // Reopen the database, which should finish the migration without repeating any of it.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        db = studentDbHelper.getWritableDatabase();
+        assertTrue(studentDbHelper.isMigrationDataPending());
+        studentDbHelper.copyMigrationData();
+        assertFalse(studentDbHelper.isMigrationDataPending());
+        verifyAllStickerEventsMatchNumStickers();
+        assertEquals(0, DatabaseUtils.queryNumEntries(db,
+                StudentSQLiteOpenHelper.TABLE_MIGRATIONS));
+    }
+
+    public void testUpgrade_largeDatabase_readableWhileDataCopied() throws InterruptedException {
+        createVersion1Database(LARGE_NUM_STUDENTS);
+
+        // Open the version 1 database, which upgrades its schema but leaves its data to copy.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        studentDbHelper.getReadableDatabase();
+        assertTrue(studentDbHelper.isMigrationDataPending());
+
+        // Copy the data in the background, as the student manager does.
+        final CountDownLatch copied = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                studentDbHelper.copyMigrationData();
+                copied.countDown();
+            }
+        }.start();
+
+        // Verify that the students can be read, and changed, while the data is being copied.
+        SQLiteDatabase db = studentDbHelper.getReadableDatabase();
+        assertEquals(LARGE_NUM_STUDENTS,
+                DatabaseUtils.queryNumEntries(db, StudentSQLiteOpenHelper.TABLE_STUDENTS));
+        assertEquals(10, studentDbHelper.addStickers(LARGE_NUM_STUDENTS, 1)); // It had 9.
+
+        assertTrue(copied.await(MIGRATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(studentDbHelper.isMigrationDataPending());
+        verifyAllStickerEventsMatchNumStickers();
+        assertTrue(studentDbHelper.verifyClassStats());
+    }
+
+    public void testUpgrade_fromVersion1_stickersAddedBeforeDataCopied() {
+        int numStudents = 20;
+        createVersion1Database(numStudents);
+
+        // Add stickers to a student before its ledger has been started.
+        studentDbHelper = new StudentSQLiteOpenHelper(context);
+        assertEquals(11, studentDbHelper.addStickers(numStudents, 2)); // It had 9.
+        studentDbHelper.copyMigrationData();
+
+        // Verify that the stickers were counted only once.
+        for (long id = 1; id <= numStudents; id++) {
+            verifyStickerEventsMatchNumStickers(id);
+        }
+    }
+
     @Override
     public void tearDown() throws Exception {
         studentDbHelper.close();
         super.tearDown();
     }
 
+    private long queryVersion(long id) {
+        return DatabaseUtils.longForQuery(studentDbHelper.getReadableDatabase(), "select "
+                + StudentSQLiteOpenHelper.COLUMN_VERSION + " from "
+                + StudentSQLiteOpenHelper.TABLE_STUDENTS + " where "
+                + StudentSQLiteOpenHelper.COLUMN_ID + " = ?", new String[] { String.valueOf(id) });
+    }
+
     private Cursor queryEntireStudentTable() {
         SQLiteDatabase db = studentDbHelper.getReadableDatabase();
         return db.query(StudentSQLiteOpenHelper.TABLE_STUDENTS, null, // Get all columns.
@@ -474,6 +1138,96 @@ public class StudentSQLiteOpenHelperTest extends AndroidTestCase {
                 StudentSQLiteOpenHelper.COLUMN_NAME + " asc"); // Order by ascending student name.
     }
 
+    // Reads the current row of the given cursor as StudentCursor.getStudent() used to, looking up
+    // each column and creating a new student.
+    private static Student readLookingUpColumns(Cursor cursor) {
+        Student student = new Student();
+        student.setID(cursor.getLong(cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_ID)));
+        student.setName(cursor.getString(
+                cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_NAME)));
+        student.setImgName(cursor.getString(
+                cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_IMAGE_NAME)));
+        student.setNumStickers(cursor.getInt(
+                cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS)));
+        student.setClassId(cursor.getLong(
+                cursor.getColumnIndex(StudentSQLiteOpenHelper.COLUMN_CLASS_ID)));
+        return student;
+    }
+
+    // Returns the 'detail' column of each row of the query plan for the given query.
+    private String explainQueryPlan(String query) {
+        Cursor cursor = studentDbHelper.getReadableDatabase().rawQuery(
+                "explain query plan " + query, null);
+        StringBuilder queryPlan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            queryPlan.append(cursor.getString(cursor.getColumnIndex("detail"))).append('\n');
+        }
+        cursor.close();
+        return queryPlan.toString();
+    }
+
+    private long countStickerEvents(long studentId) {
+        return DatabaseUtils.queryNumEntries(studentDbHelper.getReadableDatabase(),
+                StudentSQLiteOpenHelper.TABLE_STICKER_EVENTS,
+                StudentSQLiteOpenHelper.COLUMN_EVENT_STUDENT_ID + " = ?",
+                new String[] { String.valueOf(studentId) });
+    }
+
+    private void verifyStickerEventsMatchNumStickers(long studentId) {
+        long sumOfEvents = DatabaseUtils.longForQuery(studentDbHelper.getReadableDatabase(),
+                "select ifnull(sum(" + StudentSQLiteOpenHelper.COLUMN_EVENT_DELTA + "), 0) from "
+                        + StudentSQLiteOpenHelper.TABLE_STICKER_EVENTS + " where "
+                        + StudentSQLiteOpenHelper.COLUMN_EVENT_STUDENT_ID + " = ?",
+                new String[] { String.valueOf(studentId) });
+        assertEquals(studentDbHelper.queryNumStickers(studentId), sumOfEvents);
+    }
+
+    // Verifies, with a single query, that the events of every student add up to its stickers.
+    private void verifyAllStickerEventsMatchNumStickers() {
+        assertEquals(0, DatabaseUtils.longForQuery(studentDbHelper.getReadableDatabase(),
+                "select count(*) from " + StudentSQLiteOpenHelper.TABLE_STUDENTS + " s where "
+                        + StudentSQLiteOpenHelper.COLUMN_NUM_STICKERS + " != (select ifnull(sum("
+                        + StudentSQLiteOpenHelper.COLUMN_EVENT_DELTA + "), 0) from "
+                        + StudentSQLiteOpenHelper.TABLE_STICKER_EVENTS + " where "
+                        + StudentSQLiteOpenHelper.COLUMN_EVENT_STUDENT_ID + " = s."
+                        + StudentSQLiteOpenHelper.COLUMN_ID + ")", null));
+    }
+
+    // Replaces the test database with a version 1 database (the schema before any upgrades)
+    // containing the given number of students.
+    private void createVersion1Database(int numStudents) {
+        studentDbHelper.close();
+        context.deleteDatabase(StudentSQLiteOpenHelper.DATABASE_NAME);
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(
+                context.getDatabasePath(StudentSQLiteOpenHelper.DATABASE_NAME), null);
+        try {
+            db.execSQL("create table students(_id integer primary key autoincrement, "
+                    + "name varchar(255) not null check (name != ''), image_name varchar(255), "
+                    + "num_stickers integer not null default 0 check (num_stickers>-1))");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < numStudents; i++) {
+                    db.execSQL("insert into students (name, image_name, num_stickers)"
+                            + " values (?, ?, ?)", new Object[] { "Student " + i, null, i % 10 });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private void verifyAllFieldsEqual(Student expected, Student actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getImgName(), actual.getImgName());
+        assertEquals(expected.getNumStickers(), actual.getNumStickers());
+        assertEquals(expected.getClassId(), actual.getClassId());
+    }
+
     private void verifyDatabaseInitiallyEmpty() {
         SQLiteDatabase db = studentDbHelper.getReadableDatabase();
         Cursor cursor = db.query(StudentSQLiteOpenHelper.TABLE_STUDENTS, null, // Get all columns.